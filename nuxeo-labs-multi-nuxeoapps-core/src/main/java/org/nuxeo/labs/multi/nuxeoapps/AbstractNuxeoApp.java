@@ -19,14 +19,20 @@
 package org.nuxeo.labs.multi.nuxeoapps;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.net.URLConnection;
 import java.net.http.HttpClient;
 import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
@@ -34,8 +40,12 @@ import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.labs.multi.nuxeoapps.authentication.NuxeoAppAuthentication;
+import org.nuxeo.labs.multi.nuxeoapps.cache.SpillingBuffer;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.BandwidthLimiter;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.BlobUrlRewriter;
 import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServlet;
 import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServletUtils;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  * Base class for all NuxeoApp, providing centralized shared methods
@@ -46,6 +56,11 @@ public abstract class AbstractNuxeoApp {
 
     public static final String MULTI_NUXEO_APPS_PROPERTY_NAME = "multiNxAppInfo";
 
+    // Blobs up to this size (KB) are downloaded in memory by getBlob, bigger ones in a temporary file
+    public static final String BLOB_MEMORY_THRESHOLD_PROPERTY = "nuxeo.multinuxeoapps.blobMemoryThresholdKB";
+
+    public static final long DEFAULT_BLOB_MEMORY_THRESHOLD_KB = 512;
+
     public enum AuthenticationType {
         NOT_NEEDED, BASIC, JWT
     }
@@ -60,6 +75,17 @@ public abstract class AbstractNuxeoApp {
 
     protected boolean fullStackOnError = false;
 
+    protected long searchCacheTtl = 0;
+
+    protected long staleWhileRevalidate = 0;
+
+    protected BandwidthLimiter bandwidthLimiter;
+
+    protected BlobUrlRewriter blobUrlRewriter;
+
+    // Shared by all the blob requests to the app, so connections (and TLS sessions) are reused
+    protected HttpClient blobHttpClient;
+
     /**
      * Initialize the internal fields
      * 
@@ -74,6 +100,9 @@ public abstract class AbstractNuxeoApp {
         this.appUrl = appUrl;
         this.isLocalNuxeo = isLocalNuxeo;
         this.authenticationType = authenticationType;
+        blobUrlRewriter = new BlobUrlRewriter(appName, appUrl, isLocalNuxeo);
+        // Blobs of the local app are not proxied
+        blobHttpClient = isLocalNuxeo ? null : newBlobHttpClient();
     }
 
     /**
@@ -106,6 +135,125 @@ public abstract class AbstractNuxeoApp {
         fullStackOnError = value;
     }
 
+    /**
+     * @return the time to live, in seconds, of the search results cached for this app. 0 means no cache.
+     * @since 2025
+     */
+    public long getSearchCacheTtl() {
+        return searchCacheTtl;
+    }
+
+    public void setSearchCacheTtl(long seconds) {
+        searchCacheTtl = seconds;
+    }
+
+    /**
+     * @return how long, in seconds, an expired cached search result can still be returned while it is refreshed in the
+     *         background. 0 means the caller waits for the refresh.
+     * @since 2025
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public void setStaleWhileRevalidate(long seconds) {
+        staleWhileRevalidate = seconds;
+    }
+
+    /**
+     * @return the bandwidth limits of the blobs streamed from this app, null if there is no limit
+     * @since 2025
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    public void setBandwidthLimiter(BandwidthLimiter limiter) {
+        bandwidthLimiter = limiter == null || !limiter.isEnabled() ? null : limiter;
+    }
+
+    /**
+     * Returns the user whose permissions apply when searching this app. Results cached for one effective user are
+     * never returned to another one.
+     * 
+     * @param currentUserName, the user passed to the search (can be null)
+     * @return the effective user
+     * @since 2025
+     */
+    public abstract String getEffectiveUser(String currentUserName);
+
+    /**
+     * Returns the effective user of the blob requests (see {@link NuxeoAppServletUtils#getBlobUser}), that can differ
+     * from the one of the searches: when the app connects as a fixed user, the searches pass the current user, the
+     * blob requests don't. Thumbnails prefetched after a search must be cached for this user.
+     *
+     * @param currentUserName, the user of the request (can be null)
+     * @return the effective user of the blob requests
+     * @since 2025
+     */
+    public abstract String getBlobUser(String currentUserName);
+
+    /**
+     * @param result
+     * @return <code>true</code> if {@code result} was built by {@code generateErrorObject}
+     * @since 2025
+     */
+    public static boolean isErrorResult(JSONObject result) {
+
+        if (result == null) {
+            return true;
+        }
+        JSONObject info = result.optJSONObject(MULTI_NUXEO_APPS_PROPERTY_NAME);
+
+        return info != null && info.optBoolean("hasError", false);
+    }
+
+    /**
+     * @param result
+     * @return <code>true</code> if {@code result} is an error that will happen again for the same call (malformed
+     *         query, unknown page provider, ...), see {@code markAsDeterministicError}
+     * @since 2025
+     */
+    public static boolean isDeterministicError(JSONObject result) {
+
+        if (result == null || !isErrorResult(result)) {
+            return false;
+        }
+
+        return result.getJSONObject(MULTI_NUXEO_APPS_PROPERTY_NAME).optBoolean("deterministicError", false);
+    }
+
+    /**
+     * Flags an error object built by {@code generateErrorObject} as deterministic: retrying the same call will fail
+     * the same way, so the error can be cached for a short time.
+     * 
+     * @param errorResult
+     * @return {@code errorResult}
+     * @since 2025
+     */
+    public static JSONObject markAsDeterministicError(JSONObject errorResult) {
+
+        errorResult.getJSONObject(MULTI_NUXEO_APPS_PROPERTY_NAME).put("deterministicError", true);
+
+        return errorResult;
+    }
+
+    /**
+     * 4xx statuses that don't depend on time, authentication or load. 401, 403, 408, 409, 429 are not (expired token,
+     * permission change, ...)
+     * 
+     * @param httpStatus
+     * @return <code>true</code> if the same request will get the same status
+     * @since 2025
+     */
+    public static boolean isDeterministicErrorStatus(int httpStatus) {
+
+        return switch (httpStatus) {
+        case 400, 404, 405, 406, 410, 414, 415, 422 -> true;
+        default -> false;
+        };
+    }
+
     /**
      * {@code result} is expected to be a "documents" entity-type.
      * The method:
@@ -126,7 +274,7 @@ public abstract class AbstractNuxeoApp {
             JSONObject oneDoc = entries.getJSONObject(i);
 
             // Change blob URLs
-            NuxeoAppServletUtils.updateBlobUrlsInProperties(oneDoc, getAppName(), isLocalNuxeo);
+            blobUrlRewriter.rewriteDocument(oneDoc);
 
             // Add NuxeoApp info
             JSONObject info = createMultiNxAppInfo(null, appUrl + "/ui/#!/doc/" + oneDoc.getString("uid"), null);
@@ -234,6 +382,10 @@ public abstract class AbstractNuxeoApp {
      * handles the case where the distant Nuxeo server is configured to use AWS directDownload, for example.
      * <br>
      * If {@code returnRedirectInfo} is <code>false</code>, the method always returns the Blob.
+     * <br>
+     * Small blobs are returned in memory, big ones in a temporary file (see {@link SpillingBuffer}), that the caller
+     * should delete once done (see {@link SpillingBuffer#deleteIfSpilled}). Very big blobs can be downloaded with
+     * several concurrent requests, see {@link ParallelRangeDownload}.
      * 
      * @param relativePath
      * @param returnRedirectInfo
@@ -247,37 +399,20 @@ public abstract class AbstractNuxeoApp {
         // Implement calling GET to get the blob
         // throw new UnsupportedOperationException();
 
-        String authHeaderValue = getNuxeoAppAuthentication().getAutorizationHeaderValue();
-
-        String url = relativePath;
-        if (!url.startsWith("/")) {
-            url = "/" + url;
-        }
-        if (url.indexOf("&clientReason=download") < 0) {
-            url += "&clientReason=download";
-        }
-
-        String targetUrl = appUrl + url;
-
-        HttpClient client = HttpClient.newBuilder()
-                                      .connectTimeout(Duration.ofSeconds(60))
-                                      .followRedirects(HttpClient.Redirect.NEVER) // Automatic redirect fails when using
-                                                                                  // S3 direct download
-                                      .build();
+        String url = buildBlobRelativeUrl(relativePath);
 
-        HttpRequest request = HttpRequest.newBuilder(URI.create(targetUrl))
-                                         .timeout(Duration.ofSeconds(40))
-                                         .header("Authorization", authHeaderValue)
-                                         .header("Accept", "*/*")
-                                         .GET()
-                                         .build();
+        HttpClient client = getBlobHttpClient();
 
-        Blob blob = Blobs.createBlobWithExtension(".bin");// Create a temp. file
-        Path blobFilePath = blob.getFile().toPath();
+        HttpRequest request = newBlobRequestBuilder(url, null, null).GET().build();
 
-        HttpResponse<Path> response = client.send(request, HttpResponse.BodyHandlers.ofFile(blobFilePath));
+        // In memory if small, in a temporary file if not
+        HttpResponse.BodyHandler<SpillingBuffer> bodyHandler = SpillingBuffer.bodyHandler(getBlobMemoryThreshold());
+        // If enabled, the response also tells if the blob is big enough to be downloaded in parts
+        ParallelRangeDownload parallelDownload = ParallelRangeDownload.fromConfiguration();
+        HttpResponse<SpillingBuffer> response = sendFirstBlobRequest(client, request, bodyHandler, parallelDownload);
 
         if (NuxeoAppServletUtils.isRedirect(response.statusCode())) {
+            response.body().release();
             String location = response.headers()
                                       .firstValue("Location")
                                       .orElseThrow(() -> new IOException("Redirect without Location header"));
@@ -286,34 +421,221 @@ public abstract class AbstractNuxeoApp {
                 JSONObject redirectInfoJson = new JSONObject();
                 redirectInfoJson.put("status", response.statusCode());
                 redirectInfoJson.put("location", location);
-                blob = Blobs.createJSONBlob(redirectInfoJson.toString());
-                return blob;
+                return Blobs.createJSONBlob(redirectInfoJson.toString());
             }
             // Do download the blob of caller wants it
             request = HttpRequest.newBuilder(URI.create(location)).GET().header("Accept", "*/*").build();
-            response = client.send(request, HttpResponse.BodyHandlers.ofFile(blobFilePath));
+            response = sendFirstBlobRequest(client, request, bodyHandler, parallelDownload);
+        }
+
+        if (response.body() == null) {
+            // Not read, see ParallelRangeDownload#firstRequestHandler
+            long totalLength = ParallelRangeDownload.parseTotalLength(
+                    response.headers().firstValue("Content-Range").orElse(null));
+            if (parallelDownload.accepts(totalLength)) {
+                return getBlobInParts(client, request, url, response.headers(), totalLength, parallelDownload);
+            }
+            // The server sent only a part of the blob
+            response = client.send(request, bodyHandler);
         }
 
-        if (response.statusCode() != 200) {
+        // 206: the whole blob, see ParallelRangeDownload#firstRequestHandler
+        if (response.statusCode() != 200 && response.statusCode() != 206) {
+            response.body().release();
             throw new IOException("Failed to download file: HTTP " + response.statusCode());
         }
 
         HttpHeaders headers = response.headers();
+        String fileName = NuxeoAppServletUtils.extractFileName(headers.firstValue("Content-Disposition").orElse(null),
+                url);
         String mimeType = headers.firstValue("Content-Type").orElse(null);
         // Detect MIME type if not provided
         if (mimeType == null) {
-            mimeType = Files.probeContentType(blobFilePath);
+            mimeType = fileName == null ? null : URLConnection.guessContentTypeFromName(fileName);
             if (mimeType == null) {
                 mimeType = "application/octet-stream";
             }
         }
-        blob.setMimeType(mimeType);
+
+        return response.body().toBlob(mimeType, fileName);
+    }
+
+    /**
+     * Sends {@code request}. With a parallel download, asks for the whole blob as a range, so the response gives its
+     * size: the body is then read only if the blob is too small to be downloaded in parts (see
+     * {@link ParallelRangeDownload#firstRequestHandler}).
+     */
+    protected static HttpResponse<SpillingBuffer> sendFirstBlobRequest(HttpClient client, HttpRequest request,
+            HttpResponse.BodyHandler<SpillingBuffer> bodyHandler, ParallelRangeDownload parallelDownload)
+            throws IOException, InterruptedException {
+
+        if (parallelDownload == null) {
+            return client.send(request, bodyHandler);
+        }
+        return client.send(ParallelRangeDownload.withRangeFromStart(request),
+                parallelDownload.firstRequestHandler(bodyHandler));
+    }
+
+    /**
+     * Downloads a big blob with several concurrent requests (see {@link ParallelRangeDownload}), once the first
+     * response gave its size
+     *
+     * @param headers, of the first response
+     * @return the blob
+     * @since 2025
+     */
+    protected Blob getBlobInParts(HttpClient client, HttpRequest request, String url, HttpHeaders headers,
+            long totalLength, ParallelRangeDownload parallelDownload) throws IOException, InterruptedException {
+
+        // If-Range needs a strong ETag
+        String validator = headers.firstValue("ETag")
+                                  .filter(etag -> !etag.startsWith("W/"))
+                                  .orElse(headers.firstValue("Last-Modified").orElse(null));
+        Path file = parallelDownload.download(client, request, totalLength, validator);
 
         String fileName = NuxeoAppServletUtils.extractFileName(headers.firstValue("Content-Disposition").orElse(null),
                 url);
-        blob.setFilename(fileName);
+        String mimeType = headers.firstValue("Content-Type").orElse(null);
+        if (mimeType == null) {
+            mimeType = fileName == null ? null : URLConnection.guessContentTypeFromName(fileName);
+            if (mimeType == null) {
+                mimeType = "application/octet-stream";
+            }
+        }
+
+        return Blobs.createBlob(file.toFile(), mimeType, null, fileName);
+    }
+
+    /**
+     * @return the size (in bytes) up to which {@code getBlob} keeps the blob in memory
+     * @since 2025
+     */
+    protected long getBlobMemoryThreshold() {
+        return Long.parseLong(Framework.getProperty(BLOB_MEMORY_THRESHOLD_PROPERTY,
+                String.valueOf(DEFAULT_BLOB_MEMORY_THRESHOLD_KB))) * 1024;
+    }
+
+    /**
+     * Same request as {@code getBlob}, but nothing is downloaded: the response is returned as soon as its headers are
+     * received, with the body as a stream that the caller must close. Redirects are not followed, the status is
+     * returned as is (200, 206, 302, 404, ...).
+     * 
+     * @param relativePath
+     * @param requestHeaders, optional headers to forward (Range, ...)
+     * @return the response
+     * @throws IOException
+     * @throws InterruptedException
+     * @since 2025
+     */
+    public HttpResponse<InputStream> getBlobStream(String relativePath, Map<String, String> requestHeaders)
+            throws IOException, InterruptedException {
+
+        HttpRequest request = newBlobRequest(relativePath, requestHeaders);
+
+        return getBlobHttpClient().send(request, HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    /**
+     * Non-blocking version of {@code getBlobStream}: the future completes when the headers are received, and the body
+     * is published as it arrives, at the pace requested by the subscriber. The publisher must be subscribed to (or the
+     * subscription cancelled) to release the connection.
+     * <br>
+     * The request is built, and its authorization header obtained, in the calling thread (the current user is needed
+     * when the app connects as the current user).
+     * 
+     * @param relativePath
+     * @param requestHeaders, optional headers to forward (Range, ...)
+     * @return the future response
+     * @since 2025
+     */
+    public CompletableFuture<HttpResponse<Flow.Publisher<List<ByteBuffer>>>> getBlobAsync(String relativePath,
+            Map<String, String> requestHeaders) {
+
+        HttpRequest request = newBlobRequest(relativePath, requestHeaders);
+
+        return getBlobHttpClient().sendAsync(request, HttpResponse.BodyHandlers.ofPublisher());
+    }
+
+    /**
+     * Builds the GET request sent by {@code getBlob}, to be sent later (possibly from another thread) with a client
+     * from {@code getBlobHttpClient}. The authorization header is obtained in the calling thread.
+     * 
+     * @param relativePath
+     * @param requestHeaders, optional headers to forward (Range, ...)
+     * @return the request
+     * @since 2025
+     */
+    public HttpRequest newBlobRequest(String relativePath, Map<String, String> requestHeaders) {
+        return newBlobRequest(relativePath, requestHeaders, null);
+    }
+
+    /**
+     * Same as {@code newBlobRequest(String relativePath, Map<String, String> requestHeaders)}, for {@code userName}
+     * (see {@link NuxeoAppAuthentication#getAutorizationHeaderValue(String)}), to be used when there is no current user
+     * (background thread).
+     * 
+     * @param relativePath
+     * @param requestHeaders
+     * @param userName
+     * @return the request
+     * @since 2025
+     */
+    public HttpRequest newBlobRequest(String relativePath, Map<String, String> requestHeaders, String userName) {
+
+        String url = buildBlobRelativeUrl(relativePath);
+
+        return newBlobRequestBuilder(url, requestHeaders, userName).GET().build();
+    }
+
+    /**
+     * @param relativePath
+     * @return the path, starting with "/", with the "clientReason=download" parameter
+     * @since 2025
+     */
+    protected String buildBlobRelativeUrl(String relativePath) {
+
+        String url = relativePath;
+        if (!url.startsWith("/")) {
+            url = "/" + url;
+        }
+        if (url.indexOf("&clientReason=download") < 0) {
+            url += "&clientReason=download";
+        }
+
+        return url;
+    }
+
+    /**
+     * @return the client of the blob requests to this app (redirects are not followed), shared by all of them
+     * @since 2025
+     */
+    public HttpClient getBlobHttpClient() {
+        return blobHttpClient;
+    }
+
+    protected HttpClient newBlobHttpClient() {
+
+        return HttpClient.newBuilder()
+                         .connectTimeout(Duration.ofSeconds(60))
+                         .followRedirects(HttpClient.Redirect.NEVER) // Automatic redirect fails when using
+                                                                     // S3 direct download
+                         .build();
+    }
+
+    protected HttpRequest.Builder newBlobRequestBuilder(String relativeUrl, Map<String, String> requestHeaders,
+            String userName) {
+
+        String authHeaderValue = getNuxeoAppAuthentication().getAutorizationHeaderValue(userName);
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(appUrl + relativeUrl))
+                                                 .timeout(Duration.ofSeconds(40))
+                                                 .header("Authorization", authHeaderValue)
+                                                 .header("Accept", "*/*");
+        if (requestHeaders != null) {
+            requestHeaders.forEach(builder::header);
+        }
 
-        return blob;
+        return builder;
     }
 
 }
@@ -51,6 +51,16 @@ public class NuxeoApp extends AbstractNuxeoApp {
         return nuxeoAppAuthentication;
     }
 
+    @Override
+    public String getEffectiveUser(String currentUserName) {
+        return nuxeoAppAuthentication.getEffectiveUser(currentUserName);
+    }
+
+    @Override
+    public String getBlobUser(String currentUserName) {
+        return nuxeoAppAuthentication.getBlobUser(currentUserName);
+    }
+
     public NuxeoApp(String appName, String appUrl, String basicUser, String basicPwd) {
 
         super.initialize(appName, appUrl, false, AuthenticationType.BASIC);
@@ -169,6 +179,9 @@ public class NuxeoApp extends AbstractNuxeoApp {
                 }
                 result = generateErrorObject(status, "An error occured: " + errMessage, appName, true,
                         fullStackOnError ? errJson : (JSONObject) null);
+                if (isDeterministicErrorStatus(status)) {
+                    markAsDeterministicError(result);
+                }
             }
 
         } catch (IOException | InterruptedException e) {
@@ -279,6 +292,9 @@ public class NuxeoApp extends AbstractNuxeoApp {
                 }
                 result = generateErrorObject(status, "An error occured: " + errMessage, appName, true,
                         fullStackOnError ? errJson : (JSONObject) null);
+                if (isDeterministicErrorStatus(status)) {
+                    markAsDeterministicError(result);
+                }
             }
 
         } catch (IOException | InterruptedException e) {
@@ -37,12 +37,15 @@ import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.IdRef;
 import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
 import org.nuxeo.ecm.core.io.registry.MarshallerHelper;
 import org.nuxeo.ecm.core.io.registry.context.RenderingContext;
+import org.nuxeo.ecm.core.query.QueryParseException;
 import org.nuxeo.ecm.platform.query.api.PageProvider;
 import org.nuxeo.ecm.platform.query.api.PageProviderDefinition;
 import org.nuxeo.ecm.platform.query.api.PageProviderService;
 import org.nuxeo.labs.multi.nuxeoapps.authentication.NuxeoAppAuthentication;
+import org.nuxeo.labs.multi.nuxeoapps.cache.TinyLfuCache;
 import org.nuxeo.runtime.api.Framework;
 
 /**
@@ -56,8 +59,25 @@ public class NuxeoAppCurrent extends AbstractNuxeoApp {
 
     public static final String CONTEXT_PATH = Framework.getProperty("org.nuxeo.ecm.contextPath", "/nuxeo");
 
+    public static final String SEARCH_CACHE_TTL_PROPERTY = "nuxeo.multinuxeoapps.local.searchCacheTtl";
+
+    // Definitions and parsed lists don't change for a given input, TTL is only there to let unused entries go
+    protected static final long COMPILED_CACHE_TTL_MS = 3600 * 1000;
+
+    protected static final int COMPILED_CACHE_MAX_ENTRIES = 1000;
+
+    protected static final String[] EMPTY_LIST = { "" };
+
     protected static final NuxeoAppCurrent instance = new NuxeoAppCurrent();
 
+    // Key: normalized NXQL. Weight is 1 per entry, so the maximum weight is a number of entries
+    protected final TinyLfuCache<String, PageProviderDefinition> ppDefinitionsCache = new TinyLfuCache<>(
+            "localPageProviderDefinitions", COMPILED_CACHE_MAX_ENTRIES, COMPILED_CACHE_MAX_ENTRIES, (k, v) -> 1);
+
+    // Key: the comma separated string (enrichers, properties, query parameters). Arrays must not be modified.
+    protected final TinyLfuCache<String, Object[]> parsedListsCache = new TinyLfuCache<>("localParsedLists",
+            COMPILED_CACHE_MAX_ENTRIES, COMPILED_CACHE_MAX_ENTRIES, (k, v) -> 1);
+
     private NuxeoAppCurrent() {
 
         String appName = Framework.getProperty(Environment.PRODUCT_NAME);// "org.nuxeo.ecm.product.name"
@@ -74,19 +94,38 @@ public class NuxeoAppCurrent extends AbstractNuxeoApp {
 
         initialize(appName, appUrl, true, AuthenticationType.NOT_NEEDED);
 
+        // Local results are cheap to get, so no cache unless explicitly configured
+        searchCacheTtl = Long.parseLong(Framework.getProperty(SEARCH_CACHE_TTL_PROPERTY, "0"));
+
     }
 
     public static NuxeoAppCurrent getInstance() {
         return instance;
     }
 
+    /**
+     * @param e
+     * @return <code>true</code> if the same search will fail the same way (malformed NXQL, unknown page provider, ...).
+     *         Not for the errors of the repository (timeout, no fulltext index, ...)
+     * @since 2025
+     */
+    public static boolean isDeterministicException(NuxeoException e) {
+
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof QueryParseException) {
+                return true;
+            }
+        }
+
+        return isDeterministicErrorStatus(e.getStatusCode());
+    }
+
     public JSONObject search(CoreSession session, String finalNxql, String enrichers, String properties, int pageIndex,
             int pageSize) {
 
         JSONObject result;
         try {
-            PageProviderDefinition ppDef = PageProviderHelper.getQueryPageProviderDefinition(finalNxql, null, true,
-                    true);
+            PageProviderDefinition ppDef = getQueryPageProviderDefinition(finalNxql);
 
             result = doSearch(session, ppDef, null, null, enrichers, properties, pageIndex, pageSize);
 
@@ -98,6 +137,9 @@ public class NuxeoAppCurrent extends AbstractNuxeoApp {
                 exceptionJson = Utilities.exceptionToJson(e);
             }
             result = generateErrorObject(-1, "An error occured: " + message, getAppName(), true, exceptionJson);
+            if (isDeterministicException(e)) {
+                markAsDeterministicError(result);
+            }
         }
 
         return result;
@@ -111,6 +153,9 @@ public class NuxeoAppCurrent extends AbstractNuxeoApp {
         try {
             PageProviderService ppService = Framework.getService(PageProviderService.class);
             PageProviderDefinition ppDef = ppService.getPageProviderDefinition(pageProvider);
+            if (ppDef == null) {
+                throw new NuxeoException("Unknown page provider <" + pageProvider + ">", 404);
+            }
 
             result = doSearch(session, ppDef, queryParams, namedParams, enrichers, properties, pageIndex, pageSize);
 
@@ -122,11 +167,127 @@ public class NuxeoAppCurrent extends AbstractNuxeoApp {
                 exceptionJson = Utilities.exceptionToJson(e);
             }
             result = generateErrorObject(-1, "An error occured: " + message, getAppName(), true, exceptionJson);
+            if (isDeterministicException(e)) {
+                markAsDeterministicError(result);
+            }
         }
 
         return result;
     }
 
+    /**
+     * Returns the statistics of the caches of compiled page provider definitions and parsed lists
+     * 
+     * @return the statistics
+     * @since 2025
+     */
+    public JSONObject getCompiledCacheStatistics() {
+
+        JSONObject stats = new JSONObject();
+        stats.put("pageProviderDefinitions", ppDefinitionsCache.getStatistics());
+        stats.put("parsedLists", parsedListsCache.getStatistics());
+
+        return stats;
+    }
+
+    /**
+     * Returns the cached definition for this NXQL, creating it if needed
+     * 
+     * @param nxql
+     * @return the page provider definition
+     * @since 2025
+     */
+    protected PageProviderDefinition getQueryPageProviderDefinition(String nxql) {
+
+        String key = normalizeNxql(nxql);
+        PageProviderDefinition ppDef = ppDefinitionsCache.get(key);
+        if (ppDef == null) {
+            ppDef = PageProviderHelper.getQueryPageProviderDefinition(nxql, null, true, true);
+            ppDefinitionsCache.put(key, ppDef, COMPILED_CACHE_TTL_MS);
+        }
+
+        return ppDef;
+    }
+
+    /**
+     * Trims and collapses whitespaces outside of string literals, so the same query written differently uses the
+     * same cache entry.
+     * 
+     * @param nxql
+     * @return the normalized NXQL
+     * @since 2025
+     */
+    protected static String normalizeNxql(String nxql) {
+
+        StringBuilder sb = new StringBuilder(nxql.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < nxql.length(); i++) {
+            char c = nxql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                sb.append(' ');
+                pendingSpace = false;
+            }
+            sb.append(c);
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote && nxql.charAt(i - 1) != '\\') {
+                quote = 0;
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Splits a comma separated list, trims values and removes empty ones. Results are cached.
+     * 
+     * @param type, part of the cache key ("enrichers", ...)
+     * @param list
+     * @param trimFirst, if false, empty values are removed before trimming (so " " is kept as "")
+     * @return the parsed array, to be never modified by the caller
+     * @since 2025
+     */
+    protected Object[] parseList(String type, String list, boolean trimFirst) {
+
+        String key = type + ":" + list;
+        Object[] parsed = parsedListsCache.get(key);
+        if (parsed == null) {
+            if (trimFirst) {
+                parsed = Arrays.stream(list.split(","))
+                               .map(String::trim)
+                               .filter(s -> !s.isEmpty())
+                               .toArray(String[]::new);
+            } else {
+                parsed = Arrays.stream(list.split(",")).filter(s -> !s.isEmpty()).map(String::trim).toArray();
+            }
+            parsedListsCache.put(key, parsed, COMPILED_CACHE_TTL_MS);
+        }
+
+        return parsed;
+    }
+
+    @Override
+    public String getEffectiveUser(String currentUserName) {
+
+        if (StringUtils.isNotBlank(currentUserName)) {
+            return currentUserName;
+        }
+        NuxeoPrincipal principal = NuxeoPrincipal.getCurrent();
+
+        return principal == null ? null : principal.getName();
+    }
+
+    @Override
+    public String getBlobUser(String currentUserName) {
+        // Blobs of the local app are not proxied
+        return getEffectiveUser(currentUserName);
+    }
+
     @Override
     public NuxeoAppAuthentication getNuxeoAppAuthentication() {
         // This one should never be called for the Currentnuxeo app
@@ -168,10 +329,7 @@ public class NuxeoAppCurrent extends AbstractNuxeoApp {
 
         Object[] queryParamsArray = null;
         if(StringUtils.isNotBlank(queryParams)) {
-            queryParamsArray = Arrays.stream(queryParams.split(","))
-                                     .filter(s -> !s.isEmpty())
-                                     .map(String::trim)
-                                     .toArray();
+            queryParamsArray = parseList("queryParams", queryParams, false);
         }
 
         @SuppressWarnings("unchecked")
@@ -185,23 +343,19 @@ public class NuxeoAppCurrent extends AbstractNuxeoApp {
 
         PaginableDocumentModelListImpl paginableDocList = new PaginableDocumentModelListImpl(pp);
         if (paginableDocList.hasError()) {
-            throw new NuxeoException(paginableDocList.getErrorMessage());
+            // With the original error (QueryParseException, ...), see isDeterministicException
+            throw new NuxeoException(paginableDocList.getErrorMessage(), pp.getError());
         }
 
         // Convert to JSON "documents" entity-type
-        String[] enrichersList = { "" };
+        // The RenderingContext itself is per request (it is mutable), only the lists are cached
+        String[] enrichersList = EMPTY_LIST;
         if (StringUtils.isNotBlank(enrichers)) {
-            enrichersList = Arrays.stream(enrichers.split(","))
-                                  .map(String::trim)
-                                  .filter(s -> !s.isEmpty())
-                                  .toArray(String[]::new);
+            enrichersList = (String[]) parseList("enrichers", enrichers, true);
         }
-        String[] propertiesList = { "" };
+        String[] propertiesList = EMPTY_LIST;
         if (StringUtils.isNotBlank(properties)) {
-            propertiesList = Arrays.stream(properties.split(","))
-                                   .map(String::trim)
-                                   .filter(s -> !s.isEmpty())
-                                   .toArray(String[]::new);
+            propertiesList = (String[]) parseList("properties", properties, true);
         }
         RenderingContext rCtx = RenderingContext.CtxBuilder.enrichDoc(enrichersList).properties(propertiesList).get();
 
@@ -0,0 +1,495 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.labs.multi.nuxeoapps.cache.SpillingBuffer;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Downloads a big blob with several concurrent {@code Range} requests, each one writing its part at its position in
+ * the same (preallocated) file. On high-latency links, one TCP stream is limited by its window, not by the bandwidth.
+ * <br>
+ * A part that fails is resumed where it stopped (up to {@code maxRetries} times), the bytes already received are kept.
+ * When the server does not honor a range (200 instead of 206, content changed since the first request, ...), the
+ * download fails, and the other parts are aborted.
+ * <br>
+ * The first request of a blob asks for all of it from the start ({@code Range: bytes=0-}, see
+ * {@code firstRequestHandler}): a small blob is read from this response, only a big one is then downloaded in parts,
+ * no request is sent just to learn the size.
+ * <br>
+ * Disabled by default, see {@code fromConfiguration}.
+ *
+ * @since 2025
+ */
+public class ParallelRangeDownload {
+
+    private static final Logger log = LogManager.getLogger(ParallelRangeDownload.class);
+
+    // Number of concurrent requests, 1 (default) disables the parallel download
+    public static final String PARTS_PROPERTY = "nuxeo.multinuxeoapps.parallelDownload.parts";
+
+    // Smaller blobs are downloaded with one request
+    public static final String MIN_SIZE_PROPERTY = "nuxeo.multinuxeoapps.parallelDownload.minSizeMB";
+
+    public static final String MAX_RETRIES_PROPERTY = "nuxeo.multinuxeoapps.parallelDownload.maxRetries";
+
+    // In seconds, for the whole download
+    public static final String TIMEOUT_PROPERTY = "nuxeo.multinuxeoapps.parallelDownload.timeout";
+
+    public static final int DEFAULT_PARTS = 1;
+
+    public static final long DEFAULT_MIN_SIZE_MB = 64;
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    public static final long DEFAULT_TIMEOUT = 3600;
+
+    // The first request: the whole blob, with its size in the Content-Range of the response
+    public static final String RANGE_FROM_START = "bytes=0-";
+
+    protected static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+)");
+
+    protected final int parts;
+
+    protected final long minSize;
+
+    protected final int maxRetries;
+
+    protected final long timeoutSeconds;
+
+    /**
+     * A range of the blob. {@code written} is updated by one thread at a time (the request of the part)
+     */
+    protected static class Part {
+
+        protected final long start;
+
+        protected final long end;
+
+        protected volatile long written = 0;
+
+        protected Part(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        protected long length() {
+            return end - start + 1;
+        }
+    }
+
+    /**
+     * The parts of one download. Once aborted (a part failed, timeout), no part is written or resumed anymore, the
+     * running responses are cancelled.
+     */
+    protected static class Transfer {
+
+        protected final FileChannel channel;
+
+        protected final AtomicBoolean aborted = new AtomicBoolean();
+
+        protected final Set<PartWriter> writers = ConcurrentHashMap.newKeySet();
+
+        protected Transfer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        protected void abort() {
+            if (aborted.compareAndSet(false, true)) {
+                writers.forEach(PartWriter::abort);
+            }
+        }
+    }
+
+    /**
+     * The server did not honor the range, retrying is useless
+     */
+    protected static class RangeNotSupportedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        protected RangeNotSupportedException(String message) {
+            super(message);
+        }
+    }
+
+    public ParallelRangeDownload(int parts, long minSize, int maxRetries, long timeoutSeconds) {
+        this.parts = Math.max(1, parts);
+        this.minSize = minSize;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * @return the configured download, null if disabled
+     * @since 2025
+     */
+    public static ParallelRangeDownload fromConfiguration() {
+
+        int parts = Integer.parseInt(Framework.getProperty(PARTS_PROPERTY, String.valueOf(DEFAULT_PARTS)));
+        if (parts <= 1) {
+            return null;
+        }
+        long minSize = Long.parseLong(Framework.getProperty(MIN_SIZE_PROPERTY, String.valueOf(DEFAULT_MIN_SIZE_MB)))
+                * 1024 * 1024;
+        int maxRetries = Integer.parseInt(
+                Framework.getProperty(MAX_RETRIES_PROPERTY, String.valueOf(DEFAULT_MAX_RETRIES)));
+        long timeout = Long.parseLong(Framework.getProperty(TIMEOUT_PROPERTY, String.valueOf(DEFAULT_TIMEOUT)));
+
+        return new ParallelRangeDownload(parts, minSize, maxRetries, timeout);
+    }
+
+    /**
+     * @param totalLength
+     * @return true if a blob of this size is worth a parallel download
+     * @since 2025
+     */
+    public boolean accepts(long totalLength) {
+        return totalLength >= minSize && totalLength >= parts;
+    }
+
+    /**
+     * @param contentRange, the header of a 206 response ("bytes 0-0/12345")
+     * @return the total length of the blob, -1 if unknown
+     * @since 2025
+     */
+    public static long parseTotalLength(String contentRange) {
+
+        if (contentRange == null) {
+            return -1;
+        }
+        Matcher m = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+        return m.matches() ? Long.parseLong(m.group(3)) : -1;
+    }
+
+    /**
+     * @param contentRange, the header of a 206 response
+     * @return true if the response is the whole blob ("bytes 0-12344/12345")
+     * @since 2025
+     */
+    public static boolean isWholeBlob(String contentRange) {
+
+        if (contentRange == null) {
+            return false;
+        }
+        Matcher m = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+        return m.matches() && Long.parseLong(m.group(1)) == 0
+                && Long.parseLong(m.group(2)) == Long.parseLong(m.group(3)) - 1;
+    }
+
+    /**
+     * @param request
+     * @return a copy of {@code request} asking for the whole blob, from the start ({@code RANGE_FROM_START})
+     * @since 2025
+     */
+    public static HttpRequest withRangeFromStart(HttpRequest request) {
+        return HttpRequest.newBuilder(request, (name, value) -> true).setHeader("Range", RANGE_FROM_START).build();
+    }
+
+    /**
+     * For the first request of a blob (see {@code withRangeFromStart}): the body is read by {@code handler} unless the
+     * blob is big enough to be downloaded in parts, or the response is only a part of it. Then, the transfer is
+     * aborted and the body is null: use {@code parseTotalLength} and {@code accepts} to tell.
+     *
+     * @param handler
+     * @return the handler
+     * @since 2025
+     */
+    public <T> HttpResponse.BodyHandler<T> firstRequestHandler(HttpResponse.BodyHandler<T> handler) {
+
+        return responseInfo -> {
+            if (responseInfo.statusCode() == 206) {
+                String contentRange = responseInfo.headers().firstValue("Content-Range").orElse(null);
+                if (accepts(parseTotalLength(contentRange)) || !isWholeBlob(contentRange)) {
+                    return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(),
+                            in -> abort(in));
+                }
+            }
+            return handler.apply(responseInfo);
+        };
+    }
+
+    protected static <T> T abort(InputStream in) {
+        try {
+            // Closing the body before reading it aborts the transfer
+            in.close();
+        } catch (IOException e) {
+            log.debug("Cannot close the response", e);
+        }
+        return null;
+    }
+
+    /**
+     * Downloads the blob in a new temporary file, deleted on failure. The file is named like the ones of
+     * {@link SpillingBuffer}, so {@link SpillingBuffer#deleteIfSpilled} deletes it.
+     *
+     * @param client
+     * @param template, the GET request of the blob (with its authorization, ...). Built by the caller, in its thread
+     * @param totalLength
+     * @param validator, the ETag (or Last-Modified) of the blob, sent as If-Range so the parts are from the same
+     *            content. Can be null
+     * @return the file
+     * @throws IOException
+     * @throws InterruptedException
+     * @since 2025
+     */
+    public Path download(HttpClient client, HttpRequest template, long totalLength, String validator)
+            throws IOException, InterruptedException {
+
+        Path file = Files.createTempFile(SpillingBuffer.SPILL_FILE_PREFIX, ".bin");
+        boolean ok = false;
+        try {
+            // Preallocated, the parts are written at their position
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.setLength(totalLength);
+            }
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                List<Part> allParts = split(totalLength);
+                Transfer transfer = new Transfer(channel);
+                List<CompletableFuture<Void>> futures = new ArrayList<>();
+                for (Part part : allParts) {
+                    // One failed part fails the download, no need to wait for the others
+                    futures.add(downloadPart(client, template, validator, transfer, part, 0).whenComplete(
+                            (v, error) -> {
+                                if (error != null) {
+                                    transfer.abort();
+                                }
+                            }));
+                }
+
+                try {
+                    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                                     .get(timeoutSeconds, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause()
+                            : e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause
+                            : new IOException("Parallel download failed", cause);
+                } catch (TimeoutException e) {
+                    transfer.abort();
+                    throw new IOException("Timeout downloading the blob in " + parts + " parts");
+                }
+
+                for (Part part : allParts) {
+                    if (part.written != part.length()) {
+                        throw new IOException("Incomplete part " + part.start + "-" + part.end);
+                    }
+                }
+            }
+            ok = true;
+
+            return file;
+        } finally {
+            if (!ok) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    protected List<Part> split(long totalLength) {
+
+        List<Part> result = new ArrayList<>(parts);
+        long partSize = (totalLength + parts - 1) / parts;
+        for (long start = 0; start < totalLength; start += partSize) {
+            result.add(new Part(start, Math.min(start + partSize, totalLength) - 1));
+        }
+
+        return result;
+    }
+
+    /**
+     * Downloads what is missing of the part, resumes it on failure
+     */
+    protected CompletableFuture<Void> downloadPart(HttpClient client, HttpRequest template, String validator,
+            Transfer transfer, Part part, int attempt) {
+
+        long from = part.start + part.written;
+        HttpRequest.Builder builder = HttpRequest.newBuilder(template, (name, value) -> true)
+                                                 .header("Range", "bytes=" + from + "-" + part.end);
+        if (validator != null) {
+            builder.header("If-Range", validator);
+        }
+
+        return client.sendAsync(builder.build(), responseInfo -> new PartWriter(transfer, part, from, responseInfo))
+                     .handle((response, error) -> error)
+                     .thenCompose(error -> {
+                         if (error == null && part.written == part.length()) {
+                             return CompletableFuture.completedFuture(null);
+                         }
+                         Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                         if (transfer.aborted.get()) {
+                             return CompletableFuture.failedFuture(
+                                     new IOException("Download aborted, part " + part.start + "-" + part.end));
+                         }
+                         if (cause instanceof RangeNotSupportedException || attempt >= maxRetries) {
+                             return CompletableFuture.failedFuture(cause != null ? cause
+                                     : new IOException("Incomplete part " + part.start + "-" + part.end));
+                         }
+                         log.debug("Resuming part " + part.start + "-" + part.end + " at " + part.written, cause);
+                         return downloadPart(client, template, validator, transfer, part, attempt + 1);
+                     });
+    }
+
+    /**
+     * Writes the body of a 206 response at its position in the file
+     */
+    protected static class PartWriter implements HttpResponse.BodySubscriber<Void> {
+
+        protected final Transfer transfer;
+
+        protected final Part part;
+
+        protected final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        protected final IOException invalidResponse;
+
+        protected Flow.Subscription subscription;
+
+        protected PartWriter(Transfer transfer, Part part, long from, HttpResponse.ResponseInfo responseInfo) {
+            this.transfer = transfer;
+            this.part = part;
+            this.invalidResponse = checkResponse(responseInfo, from);
+        }
+
+        protected static IOException checkResponse(HttpResponse.ResponseInfo responseInfo, long from) {
+
+            int status = responseInfo.statusCode();
+            if (status == 200) {
+                // Range ignored, or If-Range did not match (content changed)
+                return new RangeNotSupportedException("The server sent the whole blob instead of a range");
+            }
+            if (status != 206) {
+                return new IOException("HTTP " + status);
+            }
+            String contentRange = responseInfo.headers().firstValue("Content-Range").orElse("");
+            Matcher m = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+            if (!m.matches() || Long.parseLong(m.group(1)) != from) {
+                return new RangeNotSupportedException("Unexpected Content-Range: " + contentRange);
+            }
+
+            return null;
+        }
+
+        @Override
+        public CompletionStage<Void> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+
+            this.subscription = subscription;
+            if (invalidResponse != null) {
+                subscription.cancel();
+                result.completeExceptionally(invalidResponse);
+                return;
+            }
+            transfer.writers.add(this);
+            if (transfer.aborted.get()) {
+                // Aborted meanwhile
+                abort();
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+
+            if (transfer.aborted.get()) {
+                // Once aborted, the channel may be closed
+                abort();
+                return;
+            }
+            try {
+                for (ByteBuffer item : items) {
+                    if (part.written + item.remaining() > part.length()) {
+                        throw new IOException("The server sent more than the range");
+                    }
+                    while (item.hasRemaining()) {
+                        // Positional: the parts write concurrently in the same channel
+                        part.written += transfer.channel.write(item, part.start + part.written);
+                    }
+                }
+            } catch (IOException e) {
+                subscription.cancel();
+                complete(e);
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            complete(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            complete(null);
+        }
+
+        /**
+         * Cancels the response, nothing more is written
+         */
+        protected void abort() {
+            subscription.cancel();
+            complete(new IOException("Download aborted"));
+        }
+
+        protected void complete(Throwable error) {
+            transfer.writers.remove(this);
+            if (error == null) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(error);
+            }
+        }
+    }
+
+}
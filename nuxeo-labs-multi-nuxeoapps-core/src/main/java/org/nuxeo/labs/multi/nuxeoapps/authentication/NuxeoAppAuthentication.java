@@ -26,7 +26,8 @@ import org.json.JSONObject;
 public interface NuxeoAppAuthentication {
 
     /**
-     * For JWT authentication, {@code user} is used only once. After the call, it is reset.
+     * For JWT authentication, {@code user} is used for this call only (if blank, the configured user is used).
+     * Implementations must be thread safe, they are called in parallel.
      * For BASIC authentication, {@code user} is not used at all
      * 
      * @param user
@@ -39,6 +40,22 @@ public interface NuxeoAppAuthentication {
         return getAutorizationHeaderValue(null);
     }
 
+    /**
+     * @param user, same as for {@code getAutorizationHeaderValue(String user)}
+     * @return the user that will be authenticated on the remote app for this {@code user}
+     * @since 2025
+     */
+    String getEffectiveUser(String user);
+
+    /**
+     * @param currentUser, the user of the request (can be null)
+     * @return the user blobs are downloaded as in a request of {@code currentUser}, when no user is passed to
+     *         {@code getAutorizationHeaderValue}. Same as {@code getEffectiveUser(null)} in this request, but can be
+     *         called in any thread
+     * @since 2025
+     */
+    String getBlobUser(String currentUser);
+
     /**
      * 
      * @return a JSONObject with the fields of the implementor
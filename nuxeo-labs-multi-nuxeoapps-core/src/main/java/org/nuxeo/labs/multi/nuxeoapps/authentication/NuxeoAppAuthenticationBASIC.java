@@ -70,6 +70,17 @@ public class NuxeoAppAuthenticationBASIC implements NuxeoAppAuthentication {
         // We ignore the parameter.
         return "Basic " + basicAuthHeaderValue;
     }
+
+    @Override
+    public String getEffectiveUser(String user) {
+        // Always the configured user
+        return this.user;
+    }
+
+    @Override
+    public String getBlobUser(String currentUser) {
+        return this.user;
+    }
     
 
 }
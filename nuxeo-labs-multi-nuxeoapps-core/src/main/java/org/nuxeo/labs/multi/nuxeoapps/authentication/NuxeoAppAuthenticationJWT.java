@@ -30,13 +30,23 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.labs.multi.nuxeoapps.cache.ExpiringLruMap;
+import org.nuxeo.labs.multi.nuxeoapps.cache.SharedCache;
+import org.nuxeo.runtime.api.Framework;
 
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.algorithms.Algorithm;
@@ -44,36 +54,68 @@ import com.auth0.jwt.algorithms.Algorithm;
 /**
  * We make sure to avoid requesting a token at evey call.This would send a lot of uslesse requests when for example,
  * getting thumbnails to display in a list.
+ * <br>
+ * Thread safe: the same instance is used by all the threads searching the app in parallel. The user is always passed
+ * explicitly, and when a token must be requested, concurrent callers for the same user share the same request.
  * 
  * @since Nuxeo LTS 2023
  */
 public class NuxeoAppAuthenticationJWT implements NuxeoAppAuthentication {
 
+    private static final Logger log = LogManager.getLogger(NuxeoAppAuthenticationJWT.class);
+
     public static final String TAG_CURRENT_USER = "MULTI_NUXEO_APPS_JWT_CURRENT_USER";
 
     public static final String MULTI_NUXEO_APPS_PROPERTY_NAME = "multiNuxeoAppsInfo";
 
+    protected static final String SHARED_CACHE_TOKEN_NAMESPACE = "token";
+
+    // Maximum number of tokens kept per app (one per user when tokenUser is TAG_CURRENT_USER)
+    public static final String TOKEN_CACHE_MAX_SIZE_PROPERTY = "nuxeo.multinuxeoapps.tokenCache.maxSize";
+
+    public static final int DEFAULT_TOKEN_CACHE_MAX_SIZE = 10000;
+
+    // Signed assertions are valid for this long, and reused until shortly before
+    protected static final long ASSERTION_VALIDITY_SECONDS = 600;
+
+    protected static final long ASSERTION_REUSE_MARGIN_SECONDS = 60;
+
     protected String appUrl;
 
     protected String tokenUser;
 
-    protected String tempTokenUser;
-
     protected String tokenClientId;
 
     protected String tokenClientSecret;
 
     protected String jwtSecret;
 
-    private class TokenAndExpiration {
-        public String token;
+    protected static class TokenAndExpiration {
+
+        public final String token;
+
+        public final Instant tokenExpiration;
+
+        public final Instant issuedAt;
 
-        public Instant tokenExpiration;
+        // Updated each time the token is used, for idle eviction
+        public volatile Instant lastAccess;
 
         public TokenAndExpiration(String token, Instant tokenExpiration) {
             super();
             this.token = token;
             this.tokenExpiration = tokenExpiration;
+            this.issuedAt = Instant.now();
+            this.lastAccess = issuedAt;
+        }
+
+        /**
+         * @param fraction, between 0 and 1
+         * @return true if more than {@code fraction} of the lifetime of the token has passed
+         */
+        public boolean isDueForRefresh(double fraction) {
+            long lifetime = tokenExpiration.toEpochMilli() - issuedAt.toEpochMilli();
+            return Instant.now().isAfter(issuedAt.plusMillis((long) (lifetime * fraction)));
         }
 
         public boolean isExpired() {
@@ -85,7 +127,26 @@ public class NuxeoAppAuthenticationJWT implements NuxeoAppAuthentication {
         }
     }
 
-    protected Map<String, TokenAndExpiration> usersAndTokens = new HashMap<String, TokenAndExpiration>();
+    // Bounded: with TAG_CURRENT_USER there is one token per user
+    protected ExpiringLruMap<String, TokenAndExpiration> usersAndTokens = new ExpiringLruMap<>(
+            Integer.parseInt(Framework.getProperty(TOKEN_CACHE_MAX_SIZE_PROPERTY,
+                    String.valueOf(DEFAULT_TOKEN_CACHE_MAX_SIZE))),
+            TokenAndExpiration::isExpired);
+
+    // Signed JWT assertions, per user, reused during their validity
+    protected ExpiringLruMap<String, TokenAndExpiration> signedAssertions = new ExpiringLruMap<>(
+            Integer.parseInt(Framework.getProperty(TOKEN_CACHE_MAX_SIZE_PROPERTY,
+                    String.valueOf(DEFAULT_TOKEN_CACHE_MAX_SIZE))),
+            TokenAndExpiration::isExpired);
+
+    // Created once, on first use (the secret may be missing in a misconfigured app that is never called)
+    protected volatile Algorithm algorithm;
+
+    // The form body without the assertion, which is the only part depending on the user
+    protected final String tokenPOSTDataPrefix;
+
+    // Token requests in progress, per user
+    protected Map<String, CompletableFuture<String>> tokenRequestsInFlight = new ConcurrentHashMap<>();
 
     public NuxeoAppAuthenticationJWT(String appUrl, String tokenUser, String tokenClientId, String tokenClientSecret,
             String jwtSecret) {
@@ -95,6 +156,13 @@ public class NuxeoAppAuthenticationJWT implements NuxeoAppAuthentication {
         this.tokenClientId = tokenClientId;
         this.tokenClientSecret = tokenClientSecret;
         this.jwtSecret = jwtSecret;
+
+        tokenPOSTDataPrefix = "grant_type="
+                + URLEncoder.encode("urn:ietf:params:oauth:grant-type:jwt-bearer", StandardCharsets.UTF_8)
+                + "&client_id=" + URLEncoder.encode(StringUtils.defaultString(tokenClientId), StandardCharsets.UTF_8)
+                + "&client_secret="
+                + URLEncoder.encode(StringUtils.defaultString(tokenClientSecret), StandardCharsets.UTF_8)
+                + "&assertion=";
     }
 
     @Override
@@ -115,36 +183,179 @@ public class NuxeoAppAuthenticationJWT implements NuxeoAppAuthentication {
                 && obj.has("jwtSecret");
     }
 
+    /**
+     * @param user, same as for {@code getAutorizationHeaderValue(String user)}
+     * @return the cached, non expired, token for {@code user}, or null
+     * @since 2023
+     */
     public String getToken(String user) {
+        return getCachedToken(getTokenUserId(user));
+    }
+
+    @Override
+    public String getAutorizationHeaderValue(String user) {
+
+        String tokenUserId = getTokenUserId(user);
+        String token = getCachedToken(tokenUserId);
+        if (StringUtils.isBlank(token)) {
+            token = requestTokenSingleFlight(tokenUserId);
+        }
+
+        return token == null ? null : "Bearer " + token;
+    }
+
+    @Override
+    public String getEffectiveUser(String user) {
+
+        if (StringUtils.isNotBlank(user)) {
+            return user;
+        }
+
+        if (TAG_CURRENT_USER.equals(tokenUser)) {
+            NuxeoPrincipal principal = NuxeoPrincipal.getCurrent();
+            return principal == null ? null : principal.getName();
+        }
+
+        return tokenUser;
+    }
+
+    @Override
+    public String getBlobUser(String currentUser) {
+        return TAG_CURRENT_USER.equals(tokenUser) ? StringUtils.defaultIfBlank(currentUser, null) : tokenUser;
+    }
 
-        String tokenUserId = getTokenUserId();
+    protected String getCachedToken(String tokenUserId) {
 
         TokenAndExpiration tokenAndExp = usersAndTokens.get(tokenUserId);
 
         if (tokenAndExp != null && !tokenAndExp.isExpired()) {
+            tokenAndExp.lastAccess = Instant.now();
             return tokenAndExp.token;
         }
 
+        // Maybe another node of the cluster already has one
+        SharedCache sharedCache = SharedCache.get();
+        if (sharedCache != null) {
+            SharedCache.Entry entry = sharedCache.get(SHARED_CACHE_TOKEN_NAMESPACE, getSharedCacheKey(tokenUserId));
+            if (entry != null) {
+                usersAndTokens.put(tokenUserId,
+                        new TokenAndExpiration(entry.value, Instant.now().plusMillis(entry.remainingMillis)));
+                return entry.value;
+            }
+        }
+
         return null;
     }
 
-    @Override
-    public String getAutorizationHeaderValue(String user) {
+    protected String getSharedCacheKey(String tokenUserId) {
+        return appUrl + "\u001F" + tokenClientId + "\u001F" + tokenUserId;
+    }
 
-        if (StringUtils.isNoneBlank(user)) {
-            tempTokenUser = user;
+    /**
+     * Called periodically: tokens not used for {@code idleMillis} are evicted, the others are requested again (on
+     * {@code executor}) once {@code refreshFraction} of their lifetime has passed. So, a user making searches
+     * regularly never waits for a token.
+     * 
+     * @param refreshFraction, between 0 and 1
+     * @param idleMillis
+     * @param executor
+     * @since 2025
+     */
+    public void refreshTokens(double refreshFraction, long idleMillis, Executor executor) {
+
+        Instant idleLimit = Instant.now().minusMillis(idleMillis);
+        for (Map.Entry<String, TokenAndExpiration> entry : usersAndTokens.entries()) {
+            String tokenUserId = entry.getKey();
+            TokenAndExpiration tokenAndExp = entry.getValue();
+
+            if (tokenAndExp.lastAccess.isBefore(idleLimit)) {
+                usersAndTokens.remove(tokenUserId, tokenAndExp);
+            } else if (tokenAndExp.isDueForRefresh(refreshFraction)
+                    && !tokenRequestsInFlight.containsKey(tokenUserId)) {
+                try {
+                    executor.execute(() -> {
+                        // Still due? (A previous task may have done it already)
+                        TokenAndExpiration current = usersAndTokens.get(tokenUserId);
+                        if (current != null && current.isDueForRefresh(refreshFraction)) {
+                            requestTokenSingleFlight(tokenUserId, true);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Queue full or stopping, the next check will try again
+                    return;
+                }
+            }
         }
+    }
+
+    protected String requestTokenSingleFlight(String tokenUserId) {
+        return requestTokenSingleFlight(tokenUserId, false);
+    }
 
-        String tokenUserId = getTokenUserId();
-        String token = getToken(tokenUserId);
-        if (StringUtils.isNotBlank(token)) {
-            return "Bearer " + token;
+    /**
+     * @return true if the app connects as the current user ({@link #TAG_CURRENT_USER}), so there is one token per user
+     * @since 2025
+     */
+    public boolean isPerUser() {
+        return TAG_CURRENT_USER.equals(tokenUser);
+    }
+
+    /**
+     * @return the statistics of the token cache: size, maxSize, expiredEvictions and lruEvictions
+     * @since 2025
+     */
+    public JSONObject getTokenCacheStatistics() {
+        return usersAndTokens.getStatistics();
+    }
+
+    /**
+     * Only one token request at a time per user: the first caller sends it, the others wait for its result.
+     * 
+     * @param tokenUserId
+     * @param forceRefresh, if false, a valid cached token is returned instead of requesting a new one
+     * @return the token, null if it could not be obtained
+     * @since 2025
+     */
+    protected String requestTokenSingleFlight(String tokenUserId, boolean forceRefresh) {
+
+        CompletableFuture<String> myRequest = new CompletableFuture<>();
+        CompletableFuture<String> inFlight = tokenRequestsInFlight.putIfAbsent(tokenUserId, myRequest);
+        if (inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException | CancellationException e) {
+                return null;
+            }
         }
 
-        String headerValue = null;
+        try {
+            // The previous request may have completed between our cache lookup and now
+            String token = forceRefresh ? null : getCachedToken(tokenUserId);
+            if (token == null) {
+                token = requestToken(tokenUserId);
+            }
+            myRequest.complete(token);
+            return token;
+        } catch (RuntimeException e) {
+            myRequest.completeExceptionally(e);
+            throw e;
+        } finally {
+            tokenRequestsInFlight.remove(tokenUserId, myRequest);
+        }
+    }
+
+    /**
+     * Calls the remote /oauth2/token endpoint and caches the token
+     * 
+     * @param tokenUserId
+     * @return the token, null if the remote app could not be reached
+     * @since 2025
+     */
+    protected String requestToken(String tokenUserId) {
+
         try {
             String tokenUrl = appUrl + "/oauth2/token";
-            String postData = createTokenPOSTData();
+            String postData = createTokenPOSTData(tokenUserId);
 
             HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(20)).build();
             HttpRequest request = HttpRequest.newBuilder(URI.create(tokenUrl))
@@ -156,44 +367,47 @@ public class NuxeoAppAuthenticationJWT implements NuxeoAppAuthentication {
             HttpResponse<String> resp = client.send(request, HttpResponse.BodyHandlers.ofString());
 
             JSONObject obj = new JSONObject(resp.body());
-            token = obj.getString("access_token");
+            String token = obj.getString("access_token");
             int expiresIn = obj.getInt("expires_in");
 
-            TokenAndExpiration tokenAndExp = usersAndTokens.get(tokenUserId);
             Instant tokenExpiration = Instant.now().plusSeconds(expiresIn - 15);
-            if (tokenAndExp == null) {
-                tokenAndExp = new TokenAndExpiration(token, tokenExpiration);
-                usersAndTokens.put(tokenUserId, tokenAndExp);
-            } else {
-                tokenAndExp.tokenExpiration = tokenExpiration;
+            usersAndTokens.put(tokenUserId, new TokenAndExpiration(token, tokenExpiration));
+
+            SharedCache sharedCache = SharedCache.get();
+            if (sharedCache != null) {
+                sharedCache.put(SHARED_CACHE_TOKEN_NAMESPACE, getSharedCacheKey(tokenUserId), token,
+                        (expiresIn - 15) * 1000L);
             }
 
-            headerValue = "Bearer " + token;
+            return token;
 
-        } catch (IOException | InterruptedException e) {
-            headerValue = null;
-        } finally {
-            // ================== VERY IMPORTANT
-            tempTokenUser = null;
-            // =================================
+        } catch (IOException e) {
+            log.debug("Failed to get a token from " + appUrl, e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
-
-        return headerValue;
-
     }
 
-    protected String getTokenUserId() {
+    /**
+     * @param user, explicit user. If blank, the configured tokenUser (or the current user if tokenUser is
+     *            {@link #TAG_CURRENT_USER})
+     * @return the user the token is requested for
+     * @since 2023
+     */
+    protected String getTokenUserId(String user) {
 
-        if (StringUtils.isNotBlank(tempTokenUser)) {
-            return tempTokenUser;
+        if (StringUtils.isNotBlank(user)) {
+            return user;
         }
 
-        String user = tokenUser;
+        String tokenUserId = tokenUser;
 
         if (TAG_CURRENT_USER.equals(tokenUser)) {
             NuxeoPrincipal principal = NuxeoPrincipal.getCurrent();
             if (principal != null) {
-                user = principal.getName();
+                tokenUserId = principal.getName();
                 /*
                  * String actingUser = principal.getActingUser();
                  * if(StringUtils.isNotBlank(actingUser)) {
@@ -208,25 +422,48 @@ public class NuxeoAppAuthenticationJWT implements NuxeoAppAuthentication {
             }
         }
 
-        return user;
+        return tokenUserId;
+    }
+
+    protected String createTokenPOSTData(String tokenUserId) throws UnsupportedEncodingException {
+
+        // Grant token
+        return tokenPOSTDataPrefix + getEncodedAssertion(tokenUserId);
     }
 
-    protected String createTokenPOSTData() throws UnsupportedEncodingException {
+    /**
+     * Returns the signed (and URL encoded) assertion for the user, signing a new one only if the cached one is close
+     * to its expiration.
+     * 
+     * @param tokenUserId
+     * @return the assertion, ready to be used in the form body
+     * @since 2025
+     */
+    protected String getEncodedAssertion(String tokenUserId) {
+
+        TokenAndExpiration cached = signedAssertions.get(tokenUserId);
+        if (cached != null && !cached.isExpired()) {
+            return cached.token;
+        }
+
+        if (algorithm == null) {
+            algorithm = Algorithm.HMAC512(jwtSecret);
+        }
 
         // Create signing key
+        Instant now = Instant.now();
+        Instant expiresAt = now.plusSeconds(ASSERTION_VALIDITY_SECONDS);
         String assertion = JWT.create()
                               .withIssuer(NUXEO_ISSUER)
-                              .withSubject(getTokenUserId())
-                              .sign(Algorithm.HMAC512(jwtSecret));
-
-        // Grant token
-        String postData = "grant_type="
-                + URLEncoder.encode("urn:ietf:params:oauth:grant-type:jwt-bearer", StandardCharsets.UTF_8);
-        postData += "&client_id=" + URLEncoder.encode(tokenClientId, StandardCharsets.UTF_8);
-        postData += "&client_secret=" + URLEncoder.encode(tokenClientSecret, StandardCharsets.UTF_8);
-        postData += "&assertion=" + URLEncoder.encode(assertion, StandardCharsets.UTF_8);
-
-        return postData;
+                              .withSubject(tokenUserId)
+                              .withIssuedAt(now)
+                              .withExpiresAt(expiresAt)
+                              .sign(algorithm);
+        String encoded = URLEncoder.encode(assertion, StandardCharsets.UTF_8);
+        signedAssertions.put(tokenUserId,
+                new TokenAndExpiration(encoded, expiresAt.minusSeconds(ASSERTION_REUSE_MARGIN_SECONDS)));
+
+        return encoded;
     }
 
 }
@@ -0,0 +1,283 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+
+/**
+ * A local disk cache for the blobs (files, thumbnails, ...) downloaded from remote Nuxeo apps.
+ * <br>
+ * Files are stored in a private directory, the index (key =&gt; file) is kept in memory in a {@link TinyLfuCache}
+ * weighted by the file sizes, so the total size of the directory stays under the maximum size. When an entry leaves
+ * the index, its file is deleted.
+ * <br>
+ * Keys are built by {@code buildKey}: the content is addressed by its remote path (which, for Nuxeo, includes the
+ * changeToken) and its digest when known. The digest comes from the client (query string) and is not checked against
+ * the content, so it never replaces the path.
+ * <br>
+ * The directory is emptied when the cache is created: the index is not persisted, so files from a previous run would
+ * never be used (nor deleted).
+ *
+ * @since 2025
+ */
+public class BlobDiskCache {
+
+    private static final Logger log = LogManager.getLogger(BlobDiskCache.class);
+
+    protected static final String KEY_SEPARATOR = "\u001F";
+
+    public static class CachedBlob {
+
+        public final File file;
+
+        public final String mimeType;
+
+        public final String filename;
+
+        public final long length;
+
+        protected CachedBlob(File file, String mimeType, String filename, long length) {
+            this.file = file;
+            this.mimeType = mimeType;
+            this.filename = filename;
+            this.length = length;
+        }
+
+        /**
+         * @return a Blob reading the cached file
+         * @throws IOException
+         * @since 2025
+         */
+        public Blob toBlob() throws IOException {
+            return Blobs.createBlob(file, mimeType, null, filename);
+        }
+    }
+
+    protected final Path directory;
+
+    protected final long maxEntrySize;
+
+    protected final long ttlMillis;
+
+    protected final TinyLfuCache<String, CachedBlob> index;
+
+    /**
+     * @param directory, created if needed, emptied if it already exists
+     * @param maxSize, maximum total size of the cached files, in bytes
+     * @param maxEntrySize, files bigger than this are not cached, in bytes
+     * @param ttlMillis, time to live of a cached file
+     * @throws IOException
+     * @since 2025
+     */
+    public BlobDiskCache(Path directory, long maxSize, long maxEntrySize, long ttlMillis) throws IOException {
+
+        this.directory = directory;
+        this.maxEntrySize = maxEntrySize;
+        this.ttlMillis = ttlMillis;
+
+        Files.createDirectories(directory);
+        deleteFiles();
+
+        index = new TinyLfuCache<>("blobs", maxSize, 8192, (key, cached) -> cached.length);
+        index.setRemovalListener((key, cached) -> deleteQuietly(cached.file.toPath()));
+    }
+
+    /**
+     * Builds the cache key. The user must be passed when the remote content depends on it, so a user never gets a
+     * blob downloaded by another user.
+     *
+     * @param appName
+     * @param user, can be null
+     * @param digest, can be null
+     * @param remotePath
+     * @return the key, a SHA-256 hex string also usable as a file name
+     * @since 2025
+     */
+    public static String buildKey(String appName, String user, String digest, String remotePath) {
+
+        // Always the path: a digest alone would let any URL (or a stale search result) fill the entry of a blob
+        String source = String.join(KEY_SEPARATOR, appName, StringUtils.defaultString(user), "path",
+                StringUtils.defaultString(remotePath), "digest", StringUtils.defaultString(digest));
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(md.digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available in the JDK
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param key
+     * @return the cached blob, or null
+     * @since 2025
+     */
+    public CachedBlob get(String key) {
+
+        CachedBlob cached = index.get(key);
+        if (cached != null && !cached.file.exists()) {
+            // Deleted behind our back (tmp cleaner, ...)
+            index.remove(key);
+            return null;
+        }
+
+        return cached;
+    }
+
+    /**
+     * Caches a copy of {@code source}. A hard link is used when possible, so nothing is copied and {@code source} can
+     * still be used (and deleted) by the caller. Does nothing if the file is bigger than the maximum entry size.
+     *
+     * @param key
+     * @param source
+     * @param mimeType
+     * @param filename
+     * @return true if the file was cached
+     * @since 2025
+     */
+    public boolean put(String key, File source, String mimeType, String filename) {
+
+        if (source == null || !source.isFile()) {
+            return false;
+        }
+
+        long length = source.length();
+        if (length > maxEntrySize) {
+            return false;
+        }
+
+        // Unique name, so replacing an entry never deletes the file of the new one
+        Path target = directory.resolve(key + "-" + UUID.randomUUID());
+        try {
+            try {
+                Files.createLink(target, source.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(source.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to cache blob <" + filename + ">", e);
+            deleteQuietly(target);
+            return false;
+        }
+
+        index.put(key, new CachedBlob(target.toFile(), mimeType, filename, length), ttlMillis);
+
+        return true;
+    }
+
+    /**
+     * Same as {@code put(String, File, String, String)}, for a blob that is not backed by a file (in memory, ...): its
+     * content is written to the cache.
+     *
+     * @param key
+     * @param source, closed by the caller
+     * @param length, -1 if unknown
+     * @param mimeType
+     * @param filename
+     * @return true if the blob was cached
+     * @since 2025
+     */
+    public boolean put(String key, InputStream source, long length, String mimeType, String filename) {
+
+        if (source == null || length > maxEntrySize) {
+            return false;
+        }
+
+        Path target = directory.resolve(key + "-" + UUID.randomUUID());
+        try {
+            length = Files.copy(source, target);
+        } catch (IOException e) {
+            log.warn("Failed to cache blob <" + filename + ">", e);
+            deleteQuietly(target);
+            return false;
+        }
+        if (length > maxEntrySize) {
+            deleteQuietly(target);
+            return false;
+        }
+
+        index.put(key, new CachedBlob(target.toFile(), mimeType, filename, length), ttlMillis);
+
+        return true;
+    }
+
+    public long getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    public void remove(String key) {
+        index.remove(key);
+    }
+
+    /**
+     * Removes all the entries and their files
+     *
+     * @since 2025
+     */
+    public void clear() {
+        index.clear();
+    }
+
+    public JSONObject getStatistics() {
+
+        JSONObject stats = index.getStatistics();
+        stats.put("directory", directory.toString());
+        stats.put("maxEntrySize", maxEntrySize);
+
+        return stats;
+    }
+
+    protected void deleteFiles() throws IOException {
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                deleteQuietly(file);
+            }
+        }
+    }
+
+    protected static void deleteQuietly(Path file) {
+
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete cached file " + file, e);
+        }
+    }
+
+}
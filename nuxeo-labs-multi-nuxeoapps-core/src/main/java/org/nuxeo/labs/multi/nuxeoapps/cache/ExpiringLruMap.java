@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.json.JSONObject;
+
+/**
+ * A map with a maximum size. When full, expired values (as told by {@code isExpired}) are removed first, then the least
+ * recently used ones.
+ * <br>
+ * Used for values that have their own expiration (tokens, ...), where the number of keys is not known in advance (one
+ * per user, ...). All methods are synchronized.
+ *
+ * @since 2025
+ */
+public class ExpiringLruMap<K, V> {
+
+    protected final int maxSize;
+
+    protected final Predicate<V> isExpired;
+
+    // Access-ordered: the first entry is the least recently used
+    protected final LinkedHashMap<K, V> map = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected long expiredEvictions = 0;
+
+    protected long lruEvictions = 0;
+
+    /**
+     * @param maxSize
+     * @param isExpired, tells if a value is expired and can be removed first
+     * @since 2025
+     */
+    public ExpiringLruMap(int maxSize, Predicate<V> isExpired) {
+        this.maxSize = Math.max(1, maxSize);
+        this.isExpired = isExpired;
+    }
+
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    public synchronized boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    public synchronized void put(K key, V value) {
+
+        map.put(key, value);
+        if (map.size() > maxSize) {
+            removeExpired();
+        }
+        Iterator<V> it = map.values().iterator();
+        while (map.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+            lruEvictions += 1;
+        }
+    }
+
+    /**
+     * Removes the entry only if it is still mapped to {@code value}
+     *
+     * @param key
+     * @param value
+     * @return true if removed
+     * @since 2025
+     */
+    public synchronized boolean remove(K key, V value) {
+        return map.remove(key, value);
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * @return a copy of the entries, safe to iterate while the map is modified
+     * @since 2025
+     */
+    public synchronized List<Map.Entry<K, V>> entries() {
+        return new ArrayList<>(Map.copyOf(map).entrySet());
+    }
+
+    /**
+     * @return a JSONObject with size, maxSize, expiredEvictions and lruEvictions
+     * @since 2025
+     */
+    public synchronized JSONObject getStatistics() {
+
+        JSONObject stats = new JSONObject();
+        stats.put("size", map.size());
+        stats.put("maxSize", maxSize);
+        stats.put("expiredEvictions", expiredEvictions);
+        stats.put("lruEvictions", lruEvictions);
+
+        return stats;
+    }
+
+    protected void removeExpired() {
+
+        Iterator<V> it = map.values().iterator();
+        while (it.hasNext()) {
+            if (isExpired.test(it.next())) {
+                it.remove();
+                expiredEvictions += 1;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.cache;
+
+/**
+ * A Count-Min sketch estimating how often a key was accessed recently, used by {@link TinyLfuCache} to decide which
+ * entry deserves to stay in the cache.
+ * <br>
+ * Counters are saturated at 15 (like 4-bit counters) and all of them are halved once enough increments were recorded,
+ * so that old popularity fades away.
+ * <br>
+ * Not thread safe, callers must synchronize.
+ *
+ * @since 2025
+ */
+public class FrequencySketch<K> {
+
+    protected static final int DEPTH = 4;
+
+    protected static final int MAX_COUNT = 15;
+
+    protected static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+
+    protected final byte[][] table;
+
+    protected final int mask;
+
+    protected final int sampleSize;
+
+    protected int additions = 0;
+
+    public FrequencySketch(int expectedEntries) {
+
+        int width = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+        table = new byte[DEPTH][width];
+        mask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    /**
+     * @param key
+     * @return the estimated number of recent accesses to {@code key}, 0 - 15
+     * @since 2025
+     */
+    public int frequency(K key) {
+
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, table[i][indexOf(hash, i)]);
+        }
+
+        return min;
+    }
+
+    /**
+     * Records one access to {@code key}. Only the smallest counters are incremented (conservative update), which
+     * reduces over-estimation for keys colliding with popular ones.
+     *
+     * @param key
+     * @since 2025
+     */
+    public void increment(K key) {
+
+        int hash = spread(key.hashCode());
+        int[] indexes = new int[DEPTH];
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            indexes[i] = indexOf(hash, i);
+            min = Math.min(min, table[i][indexes[i]]);
+        }
+
+        if (min < MAX_COUNT) {
+            for (int i = 0; i < DEPTH; i++) {
+                if (table[i][indexes[i]] == min) {
+                    table[i][indexes[i]]++;
+                }
+            }
+        }
+
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halves all the counters (aging)
+     *
+     * @since 2025
+     */
+    protected void reset() {
+
+        for (byte[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >>> 1);
+            }
+        }
+        additions /= 2;
+    }
+
+    protected int indexOf(int hash, int row) {
+
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+
+        return (int) h & mask;
+    }
+
+    protected static int spread(int x) {
+
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+
+        return (x >>> 16) ^ x;
+    }
+
+}
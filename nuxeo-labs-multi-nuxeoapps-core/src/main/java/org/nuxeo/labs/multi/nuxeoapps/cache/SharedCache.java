@@ -0,0 +1,191 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+/**
+ * Optional second-level cache, shared by all the nodes of a cluster, backed by a {@link KeyValueStore} (Redis or
+ * MongoDB in a cluster, in-memory for a single node or unit tests). The local in-memory caches stay in front of it.
+ * <br>
+ * Disabled by default, enabled with {@code nuxeo.multinuxeoapps.sharedCache.enabled=true}. The store is
+ * {@code nuxeo.multinuxeoapps.sharedCache.store} ("multinuxeoapps" by default). If no store of that name is configured,
+ * Nuxeo uses the configuration of the default store.
+ * <br>
+ * Values are saved with an expiration time, so they can be put back in a local cache with their remaining time to
+ * live. Keys are hashed, so their length does not depend on the NXQL or user names.
+ * <br>
+ * Warning: bearer tokens are stored there too, the store must be protected like the Nuxeo database is.
+ *
+ * @since 2025
+ */
+public class SharedCache {
+
+    private static final Logger log = LogManager.getLogger(SharedCache.class);
+
+    public static final String ENABLED_PROPERTY = "nuxeo.multinuxeoapps.sharedCache.enabled";
+
+    public static final String STORE_NAME_PROPERTY = "nuxeo.multinuxeoapps.sharedCache.store";
+
+    public static final String DEFAULT_STORE_NAME = "multinuxeoapps";
+
+    protected static final char EXPIRATION_SEPARATOR = '|';
+
+    // Set by the service when it starts, null if disabled
+    protected static volatile SharedCache instance;
+
+    protected final KeyValueStore store;
+
+    /**
+     * Returned by {@code get}
+     */
+    public static class Entry {
+
+        public final String value;
+
+        public final long remainingMillis;
+
+        protected Entry(String value, long remainingMillis) {
+            this.value = value;
+            this.remainingMillis = remainingMillis;
+        }
+    }
+
+    protected SharedCache(KeyValueStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @return the shared cache, or null if it is disabled or not started
+     * @since 2025
+     */
+    public static SharedCache get() {
+        return instance;
+    }
+
+    /**
+     * Called when the service starts. Reads the configuration and creates the instance if enabled.
+     *
+     * @since 2025
+     */
+    public static void start() {
+
+        if (!Framework.isBooleanPropertyTrue(ENABLED_PROPERTY)) {
+            instance = null;
+            return;
+        }
+
+        String storeName = Framework.getProperty(STORE_NAME_PROPERTY, DEFAULT_STORE_NAME);
+        KeyValueService kvService = Framework.getService(KeyValueService.class);
+        if (kvService == null) {
+            log.warn("No KeyValueService, the shared cache is disabled");
+            instance = null;
+            return;
+        }
+
+        instance = new SharedCache(kvService.getKeyValueStore(storeName));
+        log.info("Shared cache enabled, using the <" + storeName + "> key/value store");
+    }
+
+    public static void stop() {
+        instance = null;
+    }
+
+    /**
+     * @param namespace ("search", "token", ...)
+     * @param key
+     * @return the entry, or null if not found or expired
+     * @since 2025
+     */
+    public Entry get(String namespace, String key) {
+
+        String stored;
+        try {
+            stored = store.getString(hashKey(namespace, key));
+        } catch (RuntimeException e) {
+            // The shared tier is an optimization, never a reason to fail
+            log.warn("Failed to read from the shared cache", e);
+            return null;
+        }
+        if (stored == null) {
+            return null;
+        }
+
+        int idx = stored.indexOf(EXPIRATION_SEPARATOR);
+        if (idx < 0) {
+            return null;
+        }
+        long remaining;
+        try {
+            remaining = Long.parseLong(stored.substring(0, idx)) - System.currentTimeMillis();
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (remaining <= 0) {
+            return null;
+        }
+
+        return new Entry(stored.substring(idx + 1), remaining);
+    }
+
+    /**
+     * @param namespace
+     * @param key
+     * @param value
+     * @param ttlMillis, nothing is stored if <= 0
+     * @since 2025
+     */
+    public void put(String namespace, String key, String value, long ttlMillis) {
+
+        if (ttlMillis <= 0) {
+            return;
+        }
+
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        // The store has a TTL in seconds, round up (the value holds the exact expiration)
+        long ttlSeconds = (ttlMillis + 999) / 1000;
+        try {
+            store.put(hashKey(namespace, key), expiresAt + String.valueOf(EXPIRATION_SEPARATOR) + value, ttlSeconds);
+        } catch (RuntimeException e) {
+            log.warn("Failed to write to the shared cache", e);
+        }
+    }
+
+    protected static String hashKey(String namespace, String key) {
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return "multinxapps:" + namespace + ":"
+                    + HexFormat.of().formatHex(md.digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available in the JDK
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,325 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+
+/**
+ * Receives an HTTP response body in memory up to {@code threshold} bytes, and in a temporary file above: small blobs
+ * (thumbnails, ...) never touch the disk, big ones never fill the heap.
+ * <br>
+ * In memory, the body is stored in fixed-size direct buffers taken from a shared pool, so there is no allocation (and
+ * no array growth/copy) per download. When the {@code Content-Length} is known and above the threshold, the body goes
+ * to the file from the start.
+ * <br>
+ * Once received, {@code toBlob} returns a blob backed by a byte array or by the temporary file. The temporary file
+ * must be deleted by the caller once the blob is sent (see {@code deleteIfSpilled}).
+ *
+ * @since 2025
+ */
+public class SpillingBuffer implements HttpResponse.BodySubscriber<SpillingBuffer> {
+
+    private static final Logger log = LogManager.getLogger(SpillingBuffer.class);
+
+    public static final String SPILL_FILE_PREFIX = "multinxapps-spill-";
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    // 16MB of direct memory at most kept in the pool
+    public static final int MAX_POOLED_CHUNKS = 256;
+
+    protected static final Queue<ByteBuffer> CHUNK_POOL = new ConcurrentLinkedQueue<>();
+
+    protected static final AtomicInteger POOLED_CHUNKS = new AtomicInteger();
+
+    protected final long threshold;
+
+    protected final long expectedLength;
+
+    protected final CompletableFuture<SpillingBuffer> result = new CompletableFuture<>();
+
+    protected final List<ByteBuffer> chunks = new ArrayList<>();
+
+    protected Flow.Subscription subscription;
+
+    protected long length = 0;
+
+    protected Path file;
+
+    protected FileChannel channel;
+
+    /**
+     * @param threshold, in bytes
+     * @param expectedLength, the Content-Length, -1 if unknown
+     * @since 2025
+     */
+    public SpillingBuffer(long threshold, long expectedLength) {
+        this.threshold = threshold;
+        this.expectedLength = expectedLength;
+    }
+
+    /**
+     * @param threshold, in bytes
+     * @return a BodyHandler for {@code HttpClient#send}
+     * @since 2025
+     */
+    public static HttpResponse.BodyHandler<SpillingBuffer> bodyHandler(long threshold) {
+        return responseInfo -> new SpillingBuffer(threshold,
+                responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1));
+    }
+
+    // ==================== BodySubscriber
+    @Override
+    public CompletionStage<SpillingBuffer> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+
+        this.subscription = subscription;
+        if (expectedLength > threshold) {
+            try {
+                spill();
+            } catch (IOException e) {
+                subscription.cancel();
+                onError(e);
+                return;
+            }
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+
+        try {
+            for (ByteBuffer item : items) {
+                length += item.remaining();
+                if (channel != null) {
+                    while (item.hasRemaining()) {
+                        channel.write(item);
+                    }
+                } else {
+                    append(item);
+                    if (length > threshold) {
+                        spill();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            subscription.cancel();
+            onError(e);
+            return;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        release();
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                onError(e);
+                return;
+            }
+        }
+        result.complete(this);
+    }
+
+    // ==================== Received body
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the temporary file, null if the body is in memory
+     * @since 2025
+     */
+    public File getFile() {
+        return file == null ? null : file.toFile();
+    }
+
+    /**
+     * @return the body, if in memory. The pooled buffers are released
+     * @since 2025
+     */
+    public byte[] toByteArray() {
+
+        if (!isInMemory()) {
+            throw new IllegalStateException("The body was spilled to " + file);
+        }
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer data = chunk.duplicate();
+            data.flip();
+            int count = data.remaining();
+            data.get(bytes, offset, count);
+            offset += count;
+        }
+        releaseChunks();
+
+        return bytes;
+    }
+
+    /**
+     * @param mimeType
+     * @param filename
+     * @return a blob backed by a byte array, or by the temporary file if the body was spilled
+     * @throws IOException
+     * @since 2025
+     */
+    public Blob toBlob(String mimeType, String filename) throws IOException {
+
+        if (isInMemory()) {
+            return Blobs.createBlob(toByteArray(), mimeType, null, filename);
+        }
+        return Blobs.createBlob(file.toFile(), mimeType, null, filename);
+    }
+
+    /**
+     * Releases the memory or deletes the temporary file, when the body is not used
+     *
+     * @since 2025
+     */
+    public void release() {
+
+        releaseChunks();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        if (file != null) {
+            deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Deletes the temporary file of a blob returned by {@code toBlob}. Does nothing for other blobs (in memory, in the
+     * blob cache, ...)
+     *
+     * @param blob
+     * @since 2025
+     */
+    public static void deleteIfSpilled(Blob blob) {
+
+        File blobFile = blob == null ? null : blob.getFile();
+        if (blobFile != null && blobFile.getName().startsWith(SPILL_FILE_PREFIX)) {
+            deleteQuietly(blobFile.toPath());
+        }
+    }
+
+    protected void append(ByteBuffer item) {
+
+        while (item.hasRemaining()) {
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = acquireChunk();
+                chunks.add(chunk);
+            }
+            int count = Math.min(chunk.remaining(), item.remaining());
+            ByteBuffer slice = item.duplicate();
+            slice.limit(slice.position() + count);
+            chunk.put(slice);
+            item.position(item.position() + count);
+        }
+    }
+
+    protected void spill() throws IOException {
+
+        file = Files.createTempFile(SPILL_FILE_PREFIX, ".bin");
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer data = chunk.duplicate();
+            data.flip();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        releaseChunks();
+    }
+
+    protected void releaseChunks() {
+
+        for (ByteBuffer chunk : chunks) {
+            if (POOLED_CHUNKS.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                chunk.clear();
+                CHUNK_POOL.offer(chunk);
+            } else {
+                POOLED_CHUNKS.decrementAndGet();
+            }
+        }
+        chunks.clear();
+    }
+
+    protected static ByteBuffer acquireChunk() {
+
+        ByteBuffer chunk = CHUNK_POOL.poll();
+        if (chunk != null) {
+            POOLED_CHUNKS.decrementAndGet();
+            return chunk;
+        }
+        return ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    protected static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.debug("Cannot delete " + path, e);
+        }
+    }
+
+}
@@ -0,0 +1,609 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.cache;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongBiFunction;
+
+import org.json.JSONObject;
+
+/**
+ * A bounded, weighted, in-memory cache using a W-TinyLFU policy:
+ * <ul>
+ * <li>New entries land in a small LRU "window" (1% of the maximum weight)</li>
+ * <li>When leaving the window, an entry competes with the least recently used entry of the "main" space. The one with
+ * the highest estimated frequency (see {@link FrequencySketch}) wins, the other is evicted.</li>
+ * <li>The main space is a segmented LRU: entries are admitted in "probation" and are promoted to "protected" when
+ * accessed again</li>
+ * </ul>
+ * Each entry has its own time-to-live, expired entries are returned only by {@code getAllowStale}, and only during
+ * the stale period set when the entry was put.
+ * <br>
+ * Access frequencies are counted on reads only: a {@code put} usually follows the {@code get} that missed, counting it
+ * again would double the frequency of every new entry.
+ * <br>
+ * All methods are synchronized. The cache is expected to hold a few thousands entries at most, and the time spent
+ * inside it is negligible compared to what it saves (remote calls, etc.). The removal listener is called once the
+ * lock is released.
+ *
+ * @since 2025
+ */
+public class TinyLfuCache<K, V> {
+
+    protected static final double WINDOW_RATIO = 0.01;
+
+    protected static final double PROTECTED_RATIO = 0.80;
+
+    protected static final long CLEANUP_INTERVAL_MS = 60 * 1000;
+
+    protected enum Segment {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    protected static class Node<K, V> {
+
+        protected final K key;
+
+        protected V value;
+
+        protected long weight;
+
+        protected long expiresAt;
+
+        protected long staleUntil;
+
+        protected Segment segment;
+
+        protected Node(K key, V value, long weight, long expiresAt, long staleUntil) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+        }
+
+        protected boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        protected boolean isDead(long now) {
+            return now >= staleUntil;
+        }
+    }
+
+    /**
+     * Returned by {@code getAllowStale}
+     */
+    public static class Lookup<V> {
+
+        public final V value;
+
+        public final boolean stale;
+
+        protected Lookup(V value, boolean stale) {
+            this.value = value;
+            this.stale = stale;
+        }
+    }
+
+    protected final String name;
+
+    protected final long maximumWeight;
+
+    protected final long windowMaximum;
+
+    protected final long protectedMaximum;
+
+    protected final ToLongBiFunction<K, V> weigher;
+
+    protected final FrequencySketch<K> sketch;
+
+    protected BiConsumer<K, V> removalListener;
+
+    // Removed while holding the lock, notified after
+    protected List<Map.Entry<K, V>> removals = new ArrayList<>();
+
+    protected final Map<K, Node<K, V>> data = new HashMap<>();
+
+    // Access-ordered: the first entry is the least recently used
+    protected final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected final LinkedHashMap<K, Node<K, V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected final LinkedHashMap<K, Node<K, V>> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected long windowWeight = 0;
+
+    protected long probationWeight = 0;
+
+    protected long protectedWeight = 0;
+
+    protected long hitCount = 0;
+
+    protected long missCount = 0;
+
+    protected long evictionCount = 0;
+
+    protected long expirationCount = 0;
+
+    protected long staleHitCount = 0;
+
+    protected long lastCleanUp = System.currentTimeMillis();
+
+    /**
+     * @param name, used in statistics
+     * @param maximumWeight, the maximum total weight of the entries
+     * @param expectedEntries, used to size the frequency sketch
+     * @param weigher, returns the weight of an entry (typically its approximate size in bytes)
+     * @since 2025
+     */
+    public TinyLfuCache(String name, long maximumWeight, int expectedEntries, ToLongBiFunction<K, V> weigher) {
+
+        this.name = name;
+        this.maximumWeight = Math.max(1, maximumWeight);
+        this.windowMaximum = Math.max(1, (long) (this.maximumWeight * WINDOW_RATIO));
+        this.protectedMaximum = (long) ((this.maximumWeight - windowMaximum) * PROTECTED_RATIO);
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch<>(expectedEntries);
+    }
+
+    /**
+     * Set a listener called every time a value leaves the cache: eviction, expiration, replacement, explicit removal
+     * or clear. It is called after the cache lock is released, by the thread that removed the value.
+     *
+     * @param removalListener
+     * @since 2025
+     */
+    public void setRemovalListener(BiConsumer<K, V> removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * @param key
+     * @return the value, or null if not found or expired
+     * @since 2025
+     */
+    public V get(K key) {
+
+        V value = getInternal(key);
+        notifyRemovals();
+
+        return value;
+    }
+
+    protected synchronized V getInternal(K key) {
+
+        sketch.increment(key);
+
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            missCount += 1;
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (node.isExpired(now)) {
+            // Still kept during its stale period, for getAllowStale
+            if (node.isDead(now)) {
+                removeNode(node);
+                expirationCount += 1;
+            }
+            missCount += 1;
+            return null;
+        }
+
+        hitCount += 1;
+        onAccess(node);
+
+        return node.value;
+    }
+
+    /**
+     * Same as {@code get}, but also returns an expired value if it is still in its stale period. It is then up to the
+     * caller to refresh it.
+     *
+     * @param key
+     * @return the value and its state, or null if not found or beyond its stale period
+     * @since 2025
+     */
+    public Lookup<V> getAllowStale(K key) {
+
+        Lookup<V> lookup = getAllowStaleInternal(key);
+        notifyRemovals();
+
+        return lookup;
+    }
+
+    protected synchronized Lookup<V> getAllowStaleInternal(K key) {
+
+        sketch.increment(key);
+
+        Node<K, V> node = data.get(key);
+        long now = System.currentTimeMillis();
+        if (node == null || node.isDead(now)) {
+            if (node != null) {
+                removeNode(node);
+                expirationCount += 1;
+            }
+            missCount += 1;
+            return null;
+        }
+
+        boolean stale = node.isExpired(now);
+        if (stale) {
+            staleHitCount += 1;
+        } else {
+            hitCount += 1;
+        }
+        onAccess(node);
+
+        return new Lookup<>(node.value, stale);
+    }
+
+    /**
+     * Adds or replaces the value. The entry may be rejected immediately (or later) if it is less popular than the
+     * entries already cached.
+     *
+     * @param key
+     * @param value
+     * @param ttlMillis, time to live. Nothing is cached if <= 0
+     * @since 2025
+     */
+    public void put(K key, V value, long ttlMillis) {
+        put(key, value, ttlMillis, 0);
+    }
+
+    /**
+     * Same as {@code put(key, value, ttlMillis)}, the entry is kept {@code staleMillis} after its expiration, for
+     * {@code getAllowStale}.
+     *
+     * @param key
+     * @param value
+     * @param ttlMillis
+     * @param staleMillis
+     * @since 2025
+     */
+    public void put(K key, V value, long ttlMillis, long staleMillis) {
+
+        putInternal(key, value, ttlMillis, staleMillis);
+        notifyRemovals();
+    }
+
+    protected synchronized void putInternal(K key, V value, long ttlMillis, long staleMillis) {
+
+        long now = System.currentTimeMillis();
+        if (now - lastCleanUp > CLEANUP_INTERVAL_MS) {
+            cleanUp(now);
+        }
+
+        if (ttlMillis <= 0) {
+            return;
+        }
+
+        long weight = weigher.applyAsLong(key, value);
+        if (weight > maximumWeight) {
+            Node<K, V> existing = data.get(key);
+            if (existing != null) {
+                removeNode(existing);
+            }
+            return;
+        }
+
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            setWeight(node, weight);
+            if (node.value != value) {
+                notifyRemoval(node.key, node.value);
+            }
+            node.value = value;
+            node.expiresAt = now + ttlMillis;
+            node.staleUntil = node.expiresAt + Math.max(0, staleMillis);
+            onAccess(node);
+        } else {
+            node = new Node<>(key, value, weight, now + ttlMillis, now + ttlMillis + Math.max(0, staleMillis));
+            node.segment = Segment.WINDOW;
+            data.put(key, node);
+            window.put(key, node);
+            windowWeight += weight;
+        }
+
+        evict();
+    }
+
+    /**
+     * @param key
+     * @return the removed value, null if there was none
+     * @since 2025
+     */
+    public V remove(K key) {
+
+        V value = removeInternal(key);
+        notifyRemovals();
+
+        return value;
+    }
+
+    protected synchronized V removeInternal(K key) {
+
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        removeNode(node);
+
+        return node.value;
+    }
+
+    public void clear() {
+
+        clearInternal();
+        notifyRemovals();
+    }
+
+    protected synchronized void clearInternal() {
+
+        data.values().forEach(node -> notifyRemoval(node.key, node.value));
+        data.clear();
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        windowWeight = 0;
+        probationWeight = 0;
+        protectedWeight = 0;
+    }
+
+    public synchronized int size() {
+        return data.size();
+    }
+
+    public synchronized long weightedSize() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    /**
+     * @return a JSONObject with name, entries, weightedSize, maximumWeight, hits, staleHits, misses, hitRatio,
+     *         evictions and expirations
+     * @since 2025
+     */
+    public synchronized JSONObject getStatistics() {
+
+        JSONObject stats = new JSONObject();
+
+        long requests = hitCount + missCount;
+        stats.put("name", name);
+        stats.put("entries", data.size());
+        stats.put("weightedSize", weightedSize());
+        stats.put("maximumWeight", maximumWeight);
+        stats.put("hits", hitCount);
+        stats.put("staleHits", staleHitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRatio", requests == 0 ? 0.0 : (double) hitCount / requests);
+        stats.put("evictions", evictionCount);
+        stats.put("expirations", expirationCount);
+
+        return stats;
+    }
+
+    /**
+     * Removes all the expired entries that are beyond their stale period
+     *
+     * @param now
+     * @since 2025
+     */
+    protected void cleanUp(long now) {
+
+        lastCleanUp = now;
+
+        List<Node<K, V>> expired = new ArrayList<>();
+        for (Node<K, V> node : data.values()) {
+            if (node.isDead(now)) {
+                expired.add(node);
+            }
+        }
+        for (Node<K, V> node : expired) {
+            removeNode(node);
+            expirationCount += 1;
+        }
+    }
+
+    protected void onAccess(Node<K, V> node) {
+
+        switch (node.segment) {
+        case WINDOW:
+            window.get(node.key);
+            break;
+
+        case PROBATION:
+            // Accessed again => promote to protected
+            probation.remove(node.key);
+            probationWeight -= node.weight;
+            node.segment = Segment.PROTECTED;
+            protectedSegment.put(node.key, node);
+            protectedWeight += node.weight;
+
+            // Protected is full => demote its LRU to probation
+            while (protectedWeight > protectedMaximum && protectedSegment.size() > 1) {
+                Node<K, V> demoted = removeFirst(protectedSegment);
+                protectedWeight -= demoted.weight;
+                demoted.segment = Segment.PROBATION;
+                probation.put(demoted.key, demoted);
+                probationWeight += demoted.weight;
+            }
+            break;
+
+        case PROTECTED:
+            protectedSegment.get(node.key);
+            break;
+        }
+    }
+
+    protected void evict() {
+
+        // Entries overflowing the window become candidates for the main space
+        List<Node<K, V>> candidates = new ArrayList<>();
+        while (windowWeight > windowMaximum && !window.isEmpty()) {
+            Node<K, V> candidate = removeFirst(window);
+            windowWeight -= candidate.weight;
+            candidate.segment = null;
+            candidates.add(candidate);
+        }
+
+        long mainMaximum = maximumWeight - windowMaximum;
+        for (Node<K, V> candidate : candidates) {
+            boolean admitted = true;
+            while (probationWeight + protectedWeight + candidate.weight > mainMaximum) {
+                Node<K, V> victim = firstOf(probation);
+                if (victim == null) {
+                    victim = firstOf(protectedSegment);
+                }
+                if (victim == null) {
+                    admitted = false;
+                    break;
+                }
+                // TinyLFU admission: keep the one that is the most frequently used
+                if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                    removeNode(victim);
+                    evictionCount += 1;
+                } else {
+                    admitted = false;
+                    break;
+                }
+            }
+
+            if (admitted) {
+                candidate.segment = Segment.PROBATION;
+                probation.put(candidate.key, candidate);
+                probationWeight += candidate.weight;
+            } else {
+                data.remove(candidate.key);
+                notifyRemoval(candidate.key, candidate.value);
+                evictionCount += 1;
+            }
+        }
+
+        // Safety net, in case an entry was replaced by a heavier one
+        while (weightedSize() > maximumWeight) {
+            Node<K, V> victim = firstOf(probation);
+            if (victim == null) {
+                victim = firstOf(protectedSegment);
+            }
+            if (victim == null) {
+                victim = firstOf(window);
+            }
+            if (victim == null) {
+                break;
+            }
+            removeNode(victim);
+            evictionCount += 1;
+        }
+    }
+
+    protected void setWeight(Node<K, V> node, long weight) {
+
+        long delta = weight - node.weight;
+        node.weight = weight;
+        switch (node.segment) {
+        case WINDOW:
+            windowWeight += delta;
+            break;
+        case PROBATION:
+            probationWeight += delta;
+            break;
+        case PROTECTED:
+            protectedWeight += delta;
+            break;
+        }
+    }
+
+    protected void removeNode(Node<K, V> node) {
+
+        data.remove(node.key);
+        notifyRemoval(node.key, node.value);
+        if (node.segment == null) {
+            return;
+        }
+        switch (node.segment) {
+        case WINDOW:
+            window.remove(node.key);
+            windowWeight -= node.weight;
+            break;
+        case PROBATION:
+            probation.remove(node.key);
+            probationWeight -= node.weight;
+            break;
+        case PROTECTED:
+            protectedSegment.remove(node.key);
+            protectedWeight -= node.weight;
+            break;
+        }
+        node.segment = null;
+    }
+
+    /**
+     * Must be called while holding the lock, the listener is called by {@code notifyRemovals}
+     */
+    protected void notifyRemoval(K key, V value) {
+
+        if (removalListener != null) {
+            removals.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+        }
+    }
+
+    /**
+     * Calls the removal listener for the values removed so far. Must be called without holding the lock.
+     */
+    protected void notifyRemovals() {
+
+        List<Map.Entry<K, V>> removed;
+        synchronized (this) {
+            if (removals.isEmpty()) {
+                return;
+            }
+            removed = removals;
+            removals = new ArrayList<>();
+        }
+        for (Map.Entry<K, V> entry : removed) {
+            removalListener.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    protected static <K, V> Node<K, V> firstOf(LinkedHashMap<K, Node<K, V>> segment) {
+
+        Iterator<Node<K, V>> it = segment.values().iterator();
+
+        return it.hasNext() ? it.next() : null;
+    }
+
+    protected static <K, V> Node<K, V> removeFirst(LinkedHashMap<K, Node<K, V>> segment) {
+
+        Iterator<Node<K, V>> it = segment.values().iterator();
+        Node<K, V> first = it.next();
+        it.remove();
+
+        return first;
+    }
+
+}
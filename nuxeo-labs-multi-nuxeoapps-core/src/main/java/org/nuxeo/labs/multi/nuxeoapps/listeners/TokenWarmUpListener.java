@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.listeners;
+
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.labs.multi.nuxeoapps.service.MultiNuxeoAppService;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * On "loginSuccess", requests in the background the tokens of the user for the JWT apps configured with
+ * {@code MULTI_NUXEO_APPS_JWT_CURRENT_USER}, so the first search of the user does not wait for them.
+ * <br>
+ * Optional, enabled with {@code nuxeo.multinuxeoapps.tokenWarmup.onLogin=true}.
+ * 
+ * @since 2025
+ */
+public class TokenWarmUpListener implements EventListener {
+
+    public static final String ENABLED_PROPERTY = "nuxeo.multinuxeoapps.tokenWarmup.onLogin";
+
+    @Override
+    public void handleEvent(Event event) {
+
+        if (!Framework.isBooleanPropertyTrue(ENABLED_PROPERTY)) {
+            return;
+        }
+
+        NuxeoPrincipal principal = event.getContext().getPrincipal();
+        if (principal == null || principal.isAnonymous()) {
+            return;
+        }
+
+        MultiNuxeoAppService service = Framework.getService(MultiNuxeoAppService.class);
+        service.warmUpTokens(principal.getName());
+    }
+
+}
@@ -70,6 +70,9 @@ public class SearchByProviderOp {
     @Param(name = "pageSize", required = false, description = "Page size. Used if > 1, else a default value applies")
     protected int pageSize = 0;
 
+    @Param(name = "staleWhileRevalidate", required = false, description = "For apps with a search cache: return expired results immediately and refresh them in the background. Empty => use the app configuration")
+    protected Boolean staleWhileRevalidate;
+
     @OperationMethod
     public Blob run() {
 
@@ -84,7 +87,7 @@ public class SearchByProviderOp {
         List<NuxeoApp> nuxeoAppsList = service.appNamesToNuxeoAppList(nuxeoApps);
 
         JSONObject result = service.callPageProvider(nuxeoAppsList, provider, queryParams, namedParametersMap,
-                enrichers, properties, pageIndex, pageSize);
+                enrichers, properties, pageIndex, pageSize, staleWhileRevalidate);
 
         return Blobs.createJSONBlob(result.toString());
 
@@ -61,10 +61,14 @@ public class SearchOp {
     @Param(name = "pageSize", required = false, description = "Page size. Used if > 1, else a default  value applies")
     protected int pageSize = 0;
 
+    @Param(name = "staleWhileRevalidate", required = false, description = "For apps with a search cache: return expired results immediately and refresh them in the background. Empty => use the app configuration")
+    protected Boolean staleWhileRevalidate;
+
     @OperationMethod
     public Blob run() {
 
-        JSONObject result = service.call(nuxeoApps, nxql, fullTextKeywords, enrichers, properties, pageIndex, pageSize);
+        JSONObject result = service.call(nuxeoApps, nxql, fullTextKeywords, enrichers, properties, pageIndex, pageSize,
+                staleWhileRevalidate);
 
         return Blobs.createJSONBlob(result.toString());
 
@@ -18,11 +18,13 @@
  */
 package org.nuxeo.labs.multi.nuxeoapps.service;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.labs.multi.nuxeoapps.NuxeoApp;
 
 /**
@@ -88,6 +90,27 @@ public interface MultiNuxeoAppService {
     JSONObject call(String appsToUseStr, String nxql, String fulltextSearchValues, String enrichers, String properties,
             int pageIndex, int pageSize);
 
+    /**
+     * Same as
+     * {@code call(String appsToUseStr, String nxql, String fulltextSearchValues, String enrichers, String properties, int pageIndex, int pageSize)},
+     * with control on stale-while-revalidate for apps whose results are cached: if <code>true</code>, an expired cached
+     * result is returned immediately and refreshed in the background. If <code>false</code>, the caller waits for the
+     * fresh result. If null, the setting of each app applies.
+     * 
+     * @param appsToUseStr
+     * @param nxql
+     * @param fulltextSearchValues
+     * @param enrichers
+     * @param properties
+     * @param pageIndex
+     * @param pageSize
+     * @param staleWhileRevalidate
+     * @return
+     * @since 2025
+     */
+    JSONObject call(String appsToUseStr, String nxql, String fulltextSearchValues, String enrichers, String properties,
+            int pageIndex, int pageSize, Boolean staleWhileRevalidate);
+
     /**
      * Same as
      * {@code call(String appsToUseStr, String nxql, String fulltextSearchValues, String enrichers, String properties, int pageIndex)},
@@ -130,6 +153,17 @@ public interface MultiNuxeoAppService {
     JSONObject call(List<NuxeoApp> appsToUse, String nxql, String fulltextSearchValues, String enrichers,
             String properties, int pageIndex, int pageSize);
 
+    /**
+     * Same as
+     * {@code call(List<NuxeoApp> appsToUse, String nxql, String fulltextSearchValues, String enrichers, String properties, int pageIndex, int pageSize)},
+     * with control on stale-while-revalidate (see
+     * {@code call(String appsToUseStr, String nxql, String fulltextSearchValues, String enrichers, String properties, int pageIndex, int pageSize, Boolean staleWhileRevalidate)})
+     * 
+     * @since 2025
+     */
+    JSONObject call(List<NuxeoApp> appsToUse, String nxql, String fulltextSearchValues, String enrichers,
+            String properties, int pageIndex, int pageSize, Boolean staleWhileRevalidate);
+
     /**
      * Search using a page provider (that must be declared in all appsToUse)
      * 
@@ -147,6 +181,16 @@ public interface MultiNuxeoAppService {
     JSONObject callPageProvider(List<NuxeoApp> nuxeoApps, String pageProvider, String queryParams,
             Map<String, String> namedParams, String enrichers, String properties, int pageIndex, int pageSize);
 
+    /**
+     * Same as {@code callPageProvider(...)}, with control on stale-while-revalidate (see
+     * {@code call(String appsToUseStr, String nxql, String fulltextSearchValues, String enrichers, String properties, int pageIndex, int pageSize, Boolean staleWhileRevalidate)})
+     * 
+     * @since 2025
+     */
+    JSONObject callPageProvider(List<NuxeoApp> nuxeoApps, String pageProvider, String queryParams,
+            Map<String, String> namedParams, String enrichers, String properties, int pageIndex, int pageSize,
+            Boolean staleWhileRevalidate);
+
     /**
      * A utility method to convert "app1,app2,app3" to a list of corresponding NuxeoApp
      * @param nuxeoApps
@@ -160,6 +204,8 @@ public interface MultiNuxeoAppService {
      * <ul>
      * <li>doFullStackOnError: return the full stack if an error oiccurs in a distant NuxeoApp (default is false)
      * <li>alwaysSearchLocalNuxeo: also search the current Nuxeo App (default is true)
+     * <li>useSearchCache: use the search results cache for apps having a searchCacheTtl (default is true). Setting it to
+     * false also empties the cache.
      * </ul>
      * 
      * Returns the original values, before the changes.
@@ -169,4 +215,94 @@ public interface MultiNuxeoAppService {
      */
     JSONObject tuneNuxeoApps(JSONObject params);
 
+    /**
+     * Returns a JSONObject with the statistics of the caches used by the service: for each cache, its number of
+     * entries, its approximate size in bytes, hits, misses, hit ratio, evictions, etc.
+     * 
+     * @return the statistics
+     * @since 2025
+     */
+    JSONObject getCacheStatistics();
+
+    /**
+     * Returns the blob at {@code remotePath} on the remote {@code app}, served from the local disk cache when it was
+     * already downloaded. See {@link NuxeoApp#getBlob(String, boolean)} for {@code returnRedirectInfo} (redirect info
+     * is cached until shortly before the presigned URL expires).
+     * <br>
+     * When known, {@code digest} is part of the cache key, with {@code remotePath}: a new version of the blob at the
+     * same path is never served from an older entry.
+     * <br>
+     * Neither this method nor the other blob methods use the repository, they do not need a transaction (the
+     * {@code multiNxApps} servlet runs without one).
+     * 
+     * @param app
+     * @param remotePath
+     * @param digest, optional
+     * @param returnRedirectInfo
+     * @return the blob
+     * @throws IOException
+     * @throws InterruptedException
+     * @since 2025
+     */
+    Blob getRemoteBlob(NuxeoApp app, String remotePath, String digest, boolean returnRedirectInfo)
+            throws IOException, InterruptedException;
+
+    /**
+     * Same as {@code getRemoteBlob}, but never calls the remote app.
+     * <br>
+     * {@code currentUserName} is the user the blob is requested for, when the app connects as the current user. If
+     * null, the current user of the thread is used.
+     * 
+     * @param app
+     * @param currentUserName, optional
+     * @param remotePath
+     * @param digest, optional
+     * @param returnRedirectInfo
+     * @return the cached blob (or redirect info), null if not cached
+     * @throws IOException
+     * @since 2025
+     */
+    Blob getCachedRemoteBlob(NuxeoApp app, String currentUserName, String remotePath, String digest,
+            boolean returnRedirectInfo) throws IOException;
+
+    /**
+     * Puts a blob received from the remote {@code app} in the cache: a redirect info (JSONBlob), a blob backed by a
+     * file, that is linked or copied (the caller can delete its file once this returns), or an in-memory blob.
+     * <br>
+     * When {@code digest} is a known hex digest (see
+     * {@link org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServletUtils#isVerifiableDigest}), the blob is cached only
+     * if its content matches it.
+     * 
+     * @param app
+     * @param currentUserName, optional, see {@code getCachedRemoteBlob}
+     * @param remotePath
+     * @param digest, optional
+     * @param blob
+     * @return true if cached
+     * @throws IOException
+     * @since 2025
+     */
+    boolean cacheRemoteBlob(NuxeoApp app, String currentUserName, String remotePath, String digest, Blob blob)
+            throws IOException;
+
+    /**
+     * @param length
+     * @return true if the blob cache is enabled and accepts a blob of this size
+     * @since 2025
+     */
+    boolean canCacheBlob(long length);
+
+    /**
+     * Requests, in the background, the JWT tokens that will be needed by the next searches, so they don't wait for
+     * them.
+     * <br>
+     * If {@code userName} is null, gets the tokens of the apps using a fixed tokenUser (done when the service starts).
+     * Else gets the tokens of {@code userName} for the apps using the current user (done at login, see
+     * {@link org.nuxeo.labs.multi.nuxeoapps.listeners.TokenWarmUpListener}).
+     * 
+     * @param userName
+     * @since 2025
+     */
+    void warmUpTokens(String userName);
+
 }
@@ -18,15 +18,29 @@
  */
 package org.nuxeo.labs.multi.nuxeoapps.service;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
@@ -34,21 +48,95 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.nuxeo.common.Environment;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreInstance;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.core.api.impl.blob.JSONBlob;
 import org.nuxeo.labs.multi.nuxeoapps.AbstractNuxeoApp;
 import org.nuxeo.labs.multi.nuxeoapps.NuxeoApp;
 import org.nuxeo.labs.multi.nuxeoapps.NuxeoAppCurrent;
 import org.nuxeo.labs.multi.nuxeoapps.Utilities;
+import org.nuxeo.labs.multi.nuxeoapps.authentication.NuxeoAppAuthenticationJWT;
+import org.nuxeo.labs.multi.nuxeoapps.cache.BlobDiskCache;
+import org.nuxeo.labs.multi.nuxeoapps.cache.SharedCache;
+import org.nuxeo.labs.multi.nuxeoapps.cache.TinyLfuCache;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServletUtils;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.DefaultComponent;
 import org.nuxeo.runtime.model.Extension;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiNuxeoAppService {
 
     public static final String CALL_PARAMETERS_PROPERTY = "MultiNxApps_CallParameters";
 
+    public static final String SEARCH_CACHE_MAX_SIZE_PROPERTY = "nuxeo.multinuxeoapps.searchCache.maxSizeMB";
+
+    public static final long DEFAULT_SEARCH_CACHE_MAX_SIZE_MB = 64;
+
+    protected static final String SHARED_CACHE_SEARCH_NAMESPACE = "search";
+
+    // 0 disables the blob cache
+    public static final String BLOB_CACHE_MAX_SIZE_PROPERTY = "nuxeo.multinuxeoapps.blobCache.maxSizeMB";
+
+    public static final long DEFAULT_BLOB_CACHE_MAX_SIZE_MB = 512;
+
+    public static final String BLOB_CACHE_MAX_ENTRY_SIZE_PROPERTY = "nuxeo.multinuxeoapps.blobCache.maxEntrySizeMB";
+
+    public static final long DEFAULT_BLOB_CACHE_MAX_ENTRY_SIZE_MB = 20;
+
+    // In seconds
+    public static final String BLOB_CACHE_TTL_PROPERTY = "nuxeo.multinuxeoapps.blobCache.ttl";
+
+    public static final long DEFAULT_BLOB_CACHE_TTL = 24 * 3600;
+
+    // Fraction of their lifetime after which JWT tokens in use are refreshed in the background. 0 disables.
+    public static final String TOKEN_REFRESH_FRACTION_PROPERTY = "nuxeo.multinuxeoapps.tokenRefresh.fraction";
+
+    public static final double DEFAULT_TOKEN_REFRESH_FRACTION = 0.75;
+
+    // In seconds, tokens not used for this long are evicted instead of being refreshed
+    public static final String TOKEN_IDLE_EVICTION_PROPERTY = "nuxeo.multinuxeoapps.tokenRefresh.idleEviction";
+
+    public static final long DEFAULT_TOKEN_IDLE_EVICTION = 1800;
+
+    protected static final long TOKEN_REFRESH_CHECK_INTERVAL_SECONDS = 15;
+
+    // Tasks waiting for a thread of the background/token executors, more are dropped
+    protected static final int MAX_QUEUED_BACKGROUND_TASKS = 1000;
+
+    // Prefetch of the thumbnails of search results (when the "thumbnail" enricher is used). Needs the blob cache.
+    public static final String THUMBNAIL_PREFETCH_ENABLED_PROPERTY = "nuxeo.multinuxeoapps.thumbnailPrefetch.enabled";
+
+    public static final String THUMBNAIL_PREFETCH_MAX_QUEUED_PROPERTY = "nuxeo.multinuxeoapps.thumbnailPrefetch.maxQueued";
+
+    public static final int DEFAULT_THUMBNAIL_PREFETCH_MAX_QUEUED = 1000;
+
+    public static final String THUMBNAIL_PREFETCH_CONCURRENCY_PROPERTY = "nuxeo.multinuxeoapps.thumbnailPrefetch.concurrencyPerApp";
+
+    public static final int DEFAULT_THUMBNAIL_PREFETCH_CONCURRENCY = 4;
+
+    // In seconds. 0 disables the cache of deterministic errors (malformed NXQL, unknown page provider, ...)
+    public static final String NEGATIVE_CACHE_TTL_PROPERTY = "nuxeo.multinuxeoapps.negativeCache.ttl";
+
+    public static final long DEFAULT_NEGATIVE_CACHE_TTL = 30;
+
+    // In seconds, used when the expiration of a redirect location can't be found in the URL. 0 disables the cache.
+    public static final String REDIRECT_CACHE_TTL_PROPERTY = "nuxeo.multinuxeoapps.redirectCache.ttl";
+
+    public static final long DEFAULT_REDIRECT_CACHE_TTL = 300;
+
+    // A cached redirect location is dropped this long (at most) before its presigned URL expires, so the browser has
+    // time to use it
+    protected static final long REDIRECT_EXPIRY_MARGIN_MS = 60 * 1000;
+
+    // Separates the parts of a cache key. Not expected in a NXQL or a user name.
+    protected static final String CACHE_KEY_SEPARATOR = "\u001F";
+
     private static final Logger log = LogManager.getLogger(MultiNuxeoAppServiceImpl.class);
 
     protected static final String EXT_POINT = "nuxeoapp";
@@ -61,6 +149,40 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
 
     protected static boolean alwaysSearchLocalNuxeo = true;
 
+    protected static boolean useSearchCache = true;
+
+    // Key: app + effective user + query signature, value: the JSON result as String
+    protected TinyLfuCache<String, String> searchResultsCache;
+
+    // Same keys as searchResultsCache, for deterministic errors. Null if disabled
+    protected TinyLfuCache<String, String> negativeResultsCache;
+
+    protected long negativeCacheTtl = DEFAULT_NEGATIVE_CACHE_TTL;
+
+    // Blobs downloaded from the remote apps, null if disabled
+    protected BlobDiskCache blobCache;
+
+    // Redirect info (JSON string, {status, location}) returned by remote apps using direct download
+    protected TinyLfuCache<String, String> redirectsCache;
+
+    protected long redirectCacheTtl = DEFAULT_REDIRECT_CACHE_TTL;
+
+    // Keys of the search results being refreshed in the background
+    protected Set<String> refreshesInProgress = ConcurrentHashMap.newKeySet();
+
+    // Refreshes of stale search results. When its queue is full, refreshes are dropped: the stale result is returned
+    // again, and a later call refreshes it
+    protected ExecutorService backgroundExecutor;
+
+    // Token requests (proactive refresh, warm-up), so they never wait behind the refreshes of search results
+    protected ExecutorService tokenExecutor;
+
+    // Triggers the proactive refresh of JWT tokens, the refreshes themselves run on the tokenExecutor
+    protected ScheduledExecutorService tokenRefreshScheduler;
+
+    // null if disabled
+    protected ThumbnailPrefetcher thumbnailPrefetcher;
+
     @Override
     public JSONObject tuneNuxeoApps(JSONObject params) {
         
@@ -68,6 +190,7 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
         
         previousValues.put("doFullStackOnError", MultiNuxeoAppServiceImpl.doFullStackOnError);
         previousValues.put("alwaysSearchLocalNuxeo", MultiNuxeoAppServiceImpl.alwaysSearchLocalNuxeo);
+        previousValues.put("useSearchCache", MultiNuxeoAppServiceImpl.useSearchCache);
 
         if (params.has("doFullStackOnError")) {
             boolean doFullStackOnError = params.getBoolean("doFullStackOnError");
@@ -81,10 +204,55 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
             boolean alwaysSearchLocalNuxeo = params.getBoolean("alwaysSearchLocalNuxeo");
             MultiNuxeoAppServiceImpl.alwaysSearchLocalNuxeo = alwaysSearchLocalNuxeo;
         }
+
+        if (params.has("useSearchCache")) {
+            boolean useSearchCache = params.getBoolean("useSearchCache");
+            if (!useSearchCache && searchResultsCache != null) {
+                searchResultsCache.clear();
+            }
+            if (!useSearchCache && negativeResultsCache != null) {
+                negativeResultsCache.clear();
+            }
+            MultiNuxeoAppServiceImpl.useSearchCache = useSearchCache;
+        }
         
         return previousValues;
     }
 
+    @Override
+    public JSONObject getCacheStatistics() {
+
+        JSONObject stats = new JSONObject();
+        stats.put("useSearchCache", useSearchCache);
+        stats.put("sharedCacheEnabled", SharedCache.get() != null);
+        if (searchResultsCache != null) {
+            stats.put("searchResults", searchResultsCache.getStatistics());
+        }
+        if (negativeResultsCache != null) {
+            stats.put("negativeResults", negativeResultsCache.getStatistics());
+        }
+        if (blobCache != null) {
+            stats.put("blobs", blobCache.getStatistics());
+        }
+        if (redirectsCache != null) {
+            stats.put("redirects", redirectsCache.getStatistics());
+        }
+        if (thumbnailPrefetcher != null) {
+            stats.put("thumbnailPrefetch", thumbnailPrefetcher.getStatistics());
+        }
+        stats.put("localCompiled", NuxeoAppCurrent.getInstance().getCompiledCacheStatistics());
+
+        JSONObject tokens = new JSONObject();
+        for (NuxeoApp app : configuredNuxeoApps.values()) {
+            if (app.getNuxeoAppAuthentication() instanceof NuxeoAppAuthenticationJWT jwtAuth) {
+                tokens.put(app.getAppName(), jwtAuth.getTokenCacheStatistics());
+            }
+        }
+        stats.put("tokens", tokens);
+
+        return stats;
+    }
+
     @Override
     public NuxeoApp getNuxeoApp(String appName) {
         return configuredNuxeoApps.get(appName);
@@ -126,6 +294,465 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
 
     }
 
+    // ====================================================
+    // Search results cache
+    // ====================================================
+    /**
+     * Returns the cached result if any, else runs {@code search} and caches its result (unless it is an error).
+     * Results are cached for the TTL of the app, and are isolated per effective user (see
+     * {@link AbstractNuxeoApp#getEffectiveUser(String)}).
+     * <br>
+     * Deterministic errors (see {@link AbstractNuxeoApp#isDeterministicError(JSONObject)}) are cached separately, for
+     * a short time, whatever the TTL of the app, so a bad query repeated by a client does not hit the app every time.
+     * <br>
+     * When the {@link SharedCache} is enabled, results are also shared with the other nodes of the cluster: a local
+     * miss (or a stale local result) is looked up there before calling the app.
+     * <br>
+     * When stale-while-revalidate applies ({@code staleWhileRevalidate} if not null, else the app setting), an expired
+     * result is returned as is and {@code search} is run in the background to refresh it. So {@code search} must not
+     * depend on the current thread (current user, transaction, ...)
+     */
+    protected JSONObject cachedSearch(AbstractNuxeoApp app, String effectiveUser, String querySignature,
+            Boolean staleWhileRevalidate, Supplier<JSONObject> search) {
+
+        long ttl = app.getSearchCacheTtl();
+        boolean useResultsCache = useSearchCache && ttl > 0 && searchResultsCache != null;
+        boolean useNegativeCache = useSearchCache && negativeResultsCache != null;
+        if (!useResultsCache && !useNegativeCache) {
+            return search.get();
+        }
+
+        String key = String.join(CACHE_KEY_SEPARATOR, app.getAppName(), app.getAppUrl(),
+                StringUtils.defaultString(effectiveUser), querySignature);
+
+        if (useNegativeCache) {
+            String cachedError = negativeResultsCache.get(key);
+            if (cachedError != null) {
+                return fromCache(cachedError, false);
+            }
+        }
+
+        if (!useResultsCache) {
+            return cacheIfDeterministicError(key, search.get());
+        }
+        // Expired entries are kept for the stale period of the app, or for one more TTL, so that stale-while-revalidate
+        // can also be requested per call.
+        long staleMillis = (app.getStaleWhileRevalidate() > 0 ? app.getStaleWhileRevalidate() : ttl) * 1000;
+
+        boolean allowStale = staleWhileRevalidate != null ? staleWhileRevalidate : app.getStaleWhileRevalidate() > 0;
+        if (allowStale) {
+            TinyLfuCache.Lookup<String> lookup = searchResultsCache.getAllowStale(key);
+            if (lookup != null) {
+                if (lookup.stale) {
+                    // Maybe already refreshed by another node
+                    JSONObject shared = getFromSharedCache(key, staleMillis);
+                    if (shared != null) {
+                        return shared;
+                    }
+                    refreshInBackground(key, ttl * 1000, staleMillis, search);
+                }
+                return fromCache(lookup.value, lookup.stale);
+            }
+        } else {
+            String cached = searchResultsCache.get(key);
+            if (cached != null) {
+                return fromCache(cached, false);
+            }
+        }
+
+        JSONObject shared = getFromSharedCache(key, staleMillis);
+        if (shared != null) {
+            return shared;
+        }
+
+        JSONObject result = search.get();
+        if (!AbstractNuxeoApp.isErrorResult(result)) {
+            putSearchResult(key, result.toString(), ttl * 1000, staleMillis);
+        }
+
+        return cacheIfDeterministicError(key, result);
+    }
+
+    protected JSONObject cacheIfDeterministicError(String key, JSONObject result) {
+
+        if (negativeResultsCache != null && AbstractNuxeoApp.isDeterministicError(result)) {
+            negativeResultsCache.put(key, result.toString(), negativeCacheTtl * 1000);
+        }
+
+        return result;
+    }
+
+    /**
+     * Puts the result in the local cache, and in the shared one if enabled
+     */
+    protected void putSearchResult(String key, String result, long ttlMillis, long staleMillis) {
+
+        searchResultsCache.put(key, result, ttlMillis, staleMillis);
+
+        SharedCache sharedCache = SharedCache.get();
+        if (sharedCache != null) {
+            sharedCache.put(SHARED_CACHE_SEARCH_NAMESPACE, key, result, ttlMillis);
+        }
+    }
+
+    /**
+     * Returns the result from the shared cache (and puts it in the local cache for its remaining time to live), or
+     * null if not found or if the shared cache is disabled
+     */
+    protected JSONObject getFromSharedCache(String key, long staleMillis) {
+
+        SharedCache sharedCache = SharedCache.get();
+        if (sharedCache == null) {
+            return null;
+        }
+
+        SharedCache.Entry entry = sharedCache.get(SHARED_CACHE_SEARCH_NAMESPACE, key);
+        if (entry == null) {
+            return null;
+        }
+        searchResultsCache.put(key, entry.value, entry.remainingMillis, staleMillis);
+
+        return fromCache(entry.value, false);
+    }
+
+    protected JSONObject fromCache(String cached, boolean stale) {
+
+        JSONObject result = new JSONObject(cached);
+        JSONObject info = result.getJSONObject(AbstractNuxeoApp.MULTI_NUXEO_APPS_PROPERTY_NAME);
+        info.put("fromCache", true);
+        if (stale) {
+            info.put("stale", true);
+        }
+
+        return result;
+    }
+
+    /**
+     * Refreshes the cache entry on the background executor. Only one refresh at a time per key, concurrent callers just
+     * get the stale value.
+     */
+    protected void refreshInBackground(String key, long ttlMillis, long staleMillis, Supplier<JSONObject> search) {
+
+        if (backgroundExecutor == null || !refreshesInProgress.add(key)) {
+            return;
+        }
+
+        try {
+            backgroundExecutor.execute(() -> {
+                try {
+                    JSONObject result = search.get();
+                    if (!AbstractNuxeoApp.isErrorResult(result)) {
+                        putSearchResult(key, result.toString(), ttlMillis, staleMillis);
+                    }
+                } catch (Exception e) {
+                    log.warn("Failed to refresh a cached search result", e);
+                } finally {
+                    refreshesInProgress.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Queue full, or service stopping
+            refreshesInProgress.remove(key);
+        }
+    }
+
+    protected static String buildQuerySignature(String nxql, String enrichers, String properties, int pageIndex,
+            int pageSize) {
+
+        return String.join(CACHE_KEY_SEPARATOR, "nxql", nxql, enrichers, properties,
+                String.valueOf(Math.max(0, pageIndex)),
+                String.valueOf(pageSize < 1 ? NuxeoApp.DEFAULT_PAGE_SIZE : pageSize));
+    }
+
+    protected static String buildQuerySignature(String pageProvider, String queryParams,
+            Map<String, String> namedParams, String enrichers, String properties, int pageIndex, int pageSize) {
+
+        // Sorted, so the order of the map does not change the signature
+        String namedParamsStr = namedParams == null ? "" : new TreeMap<>(namedParams).toString();
+
+        return String.join(CACHE_KEY_SEPARATOR, "pp", pageProvider, StringUtils.defaultString(queryParams),
+                namedParamsStr, enrichers, properties, String.valueOf(Math.max(0, pageIndex)),
+                String.valueOf(pageSize < 1 ? NuxeoApp.DEFAULT_PAGE_SIZE : pageSize));
+    }
+
+    // The remote app is called with the effective user resolved now, so the call gives the same result when it runs
+    // in a background refresh, where there is no current user.
+    protected JSONObject searchApp(NuxeoApp app, String currentUser, String nxql, String enrichers,
+            String properties, int pageIndex, int pageSize, Boolean staleWhileRevalidate) {
+
+        String effectiveUser = app.getEffectiveUser(currentUser);
+        JSONObject result = cachedSearch(app, effectiveUser,
+                buildQuerySignature(nxql, enrichers, properties, pageIndex, pageSize), staleWhileRevalidate,
+                () -> app.call(effectiveUser, nxql, enrichers, properties, pageIndex, pageSize));
+        prefetchThumbnailsIfNeeded(app, currentUser, enrichers, result);
+
+        return result;
+    }
+
+    protected JSONObject searchApp(NuxeoApp app, String currentUser, String pageProvider, String queryParams,
+            Map<String, String> namedParams, String enrichers, String properties, int pageIndex, int pageSize,
+            Boolean staleWhileRevalidate) {
+
+        String effectiveUser = app.getEffectiveUser(currentUser);
+        JSONObject result = cachedSearch(app, effectiveUser,
+                buildQuerySignature(pageProvider, queryParams, namedParams, enrichers, properties, pageIndex,
+                        pageSize),
+                staleWhileRevalidate, () -> app.call(effectiveUser, pageProvider, queryParams, namedParams, enrichers,
+                        properties, pageIndex, pageSize));
+        prefetchThumbnailsIfNeeded(app, currentUser, enrichers, result);
+
+        return result;
+    }
+
+    /**
+     * The browser asks for the thumbnails as soon as it gets the results: start downloading them now. Not as the
+     * effective user of the search, see {@link ThumbnailPrefetcher}
+     */
+    protected void prefetchThumbnailsIfNeeded(NuxeoApp app, String currentUser, String enrichers,
+            JSONObject result) {
+
+        if (thumbnailPrefetcher == null || StringUtils.isBlank(enrichers)) {
+            return;
+        }
+        if (Arrays.stream(enrichers.split(",")).map(String::trim).anyMatch("thumbnail"::equals)) {
+            thumbnailPrefetcher.prefetch(app, currentUser, result);
+        }
+    }
+
+    protected JSONObject searchLocalNuxeo(String nxql, String enrichers, String properties, int pageIndex,
+            int pageSize, Boolean staleWhileRevalidate) {
+
+        NuxeoAppCurrent localApp = NuxeoAppCurrent.getInstance();
+        NuxeoPrincipal pcipal = NuxeoPrincipal.getCurrent();
+        return cachedSearch(localApp, getCurrentUserName(),
+                buildQuerySignature(nxql, enrichers, properties, pageIndex, pageSize), staleWhileRevalidate,
+                () -> runInTransactionIfNeeded(() -> {
+                    CoreSession session = CoreInstance.getCoreSession(null, pcipal);
+                    return localApp.search(session, nxql, enrichers, properties, pageIndex, pageSize);
+                }));
+    }
+
+    protected JSONObject searchLocalNuxeo(String pageProvider, String queryParams, Map<String, String> namedParams,
+            String enrichers, String properties, int pageIndex, int pageSize, Boolean staleWhileRevalidate) {
+
+        NuxeoAppCurrent localApp = NuxeoAppCurrent.getInstance();
+        NuxeoPrincipal pcipal = NuxeoPrincipal.getCurrent();
+        return cachedSearch(localApp, getCurrentUserName(),
+                buildQuerySignature(pageProvider, queryParams, namedParams, enrichers, properties, pageIndex,
+                        pageSize),
+                staleWhileRevalidate, () -> runInTransactionIfNeeded(() -> {
+                    CoreSession session = CoreInstance.getCoreSession(null, pcipal);
+                    return localApp.search(session, pageProvider, queryParams, namedParams, enrichers, properties,
+                            pageIndex, pageSize);
+                }));
+    }
+
+    protected static <T> T runInTransactionIfNeeded(Supplier<T> supplier) {
+
+        if (TransactionHelper.isTransactionActive()) {
+            return supplier.get();
+        }
+
+        return TransactionHelper.runInTransaction(supplier);
+    }
+
+    // ====================================================
+    // Blob cache
+    // ====================================================
+    @Override
+    public Blob getRemoteBlob(NuxeoApp app, String remotePath, String digest, boolean returnRedirectInfo)
+            throws IOException, InterruptedException {
+
+        Blob blob = getCachedRemoteBlob(app, null, remotePath, digest, returnRedirectInfo);
+        if (blob != null) {
+            return blob;
+        }
+
+        blob = app.getBlob(remotePath, returnRedirectInfo);
+        cacheRemoteBlob(app, null, remotePath, digest, blob);
+
+        return blob;
+    }
+
+    @Override
+    public Blob getCachedRemoteBlob(NuxeoApp app, String currentUserName, String remotePath, String digest,
+            boolean returnRedirectInfo) throws IOException {
+
+        boolean useRedirectsCache = returnRedirectInfo && redirectsCache != null;
+        if (blobCache == null && !useRedirectsCache) {
+            return null;
+        }
+
+        String key = buildBlobCacheKey(app, currentUserName, remotePath, digest);
+        if (useRedirectsCache) {
+            String redirectInfo = redirectsCache.get(key);
+            if (redirectInfo != null) {
+                return Blobs.createJSONBlob(redirectInfo);
+            }
+        }
+        if (blobCache != null) {
+            BlobDiskCache.CachedBlob cached = blobCache.get(key);
+            if (cached != null) {
+                return cached.toBlob();
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean cacheRemoteBlob(NuxeoApp app, String currentUserName, String remotePath, String digest, Blob blob)
+            throws IOException {
+
+        if (blob == null) {
+            return false;
+        }
+
+        String key = buildBlobCacheKey(app, currentUserName, remotePath, digest);
+        if (blob instanceof JSONBlob) {
+            if (redirectsCache != null) {
+                cacheRedirectInfo(key, blob.getString());
+                return true;
+            }
+        } else if (blobCache != null) {
+            // The digest comes from the client: an entry cached with a digest is verified, so it can be sent with an
+            // immutable ETag. Others (derived content, ...) are the caller's responsibility
+            if (NuxeoAppServletUtils.isVerifiableDigest(digest)) {
+                boolean matches;
+                try (InputStream in = blob.getStream()) {
+                    matches = NuxeoAppServletUtils.matchesDigest(in, digest);
+                }
+                if (!matches) {
+                    log.warn("Not caching " + remotePath + " from <" + app.getAppName()
+                            + ">: the content does not match the digest " + digest);
+                    return false;
+                }
+            }
+            if (blob.getFile() != null) {
+                return blobCache.put(key, blob.getFile(), blob.getMimeType(), blob.getFilename());
+            }
+            // In memory (see AbstractNuxeoApp#getBlob)
+            try (InputStream in = blob.getStream()) {
+                return blobCache.put(key, in, blob.getLength(), blob.getMimeType(), blob.getFilename());
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean canCacheBlob(long length) {
+        return blobCache != null && length >= 0 && length <= blobCache.getMaxEntrySize();
+    }
+
+    protected static String buildBlobCacheKey(NuxeoApp app, String currentUserName, String remotePath,
+            String digest) {
+        // The effective user is part of the key: when the app connects as the current user, permissions may differ
+        return BlobDiskCache.buildKey(app.getAppName(), app.getEffectiveUser(currentUserName), digest, remotePath);
+    }
+
+    /**
+     * Caches the redirect until shortly before its presigned URL expires, or for the configured TTL if the expiration
+     * can't be found in the URL
+     */
+    protected void cacheRedirectInfo(String key, String redirectInfo) {
+
+        String location = new JSONObject(redirectInfo).optString("location", null);
+        long ttlMillis = redirectCacheTtl * 1000;
+        long expiresAt = NuxeoAppServletUtils.getPresignedUrlExpiration(location);
+        if (expiresAt > 0) {
+            long remaining = expiresAt - System.currentTimeMillis();
+            // Keep at least 20% of the lifetime for the browser when the URL is short-lived
+            ttlMillis = remaining - Math.min(REDIRECT_EXPIRY_MARGIN_MS, remaining / 5);
+        }
+
+        redirectsCache.put(key, redirectInfo, ttlMillis);
+    }
+
+    protected void startBlobCache() {
+
+        long maxSizeMB = Long.parseLong(
+                Framework.getProperty(BLOB_CACHE_MAX_SIZE_PROPERTY, String.valueOf(DEFAULT_BLOB_CACHE_MAX_SIZE_MB)));
+        if (maxSizeMB <= 0) {
+            blobCache = null;
+            return;
+        }
+        long maxEntrySizeMB = Long.parseLong(Framework.getProperty(BLOB_CACHE_MAX_ENTRY_SIZE_PROPERTY,
+                String.valueOf(DEFAULT_BLOB_CACHE_MAX_ENTRY_SIZE_MB)));
+        long ttl = Long.parseLong(
+                Framework.getProperty(BLOB_CACHE_TTL_PROPERTY, String.valueOf(DEFAULT_BLOB_CACHE_TTL)));
+
+        File tmpDir = Environment.getDefault() != null ? Environment.getDefault().getTemp() : null;
+        if (tmpDir == null) {
+            tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        }
+        Path directory = tmpDir.toPath().resolve("multinuxeoapps-blobcache");
+
+        try {
+            blobCache = new BlobDiskCache(directory, maxSizeMB * 1024 * 1024, maxEntrySizeMB * 1024 * 1024,
+                    ttl * 1000);
+        } catch (IOException e) {
+            log.error("Cannot create the blob cache in " + directory + ", blobs will not be cached", e);
+            blobCache = null;
+        }
+    }
+
+    @Override
+    public void warmUpTokens(String userName) {
+
+        if (tokenExecutor == null) {
+            return;
+        }
+
+        for (NuxeoApp app : configuredNuxeoApps.values()) {
+            if (app.getNuxeoAppAuthentication() instanceof NuxeoAppAuthenticationJWT jwtAuth
+                    && jwtAuth.isPerUser() == (userName != null)) {
+                try {
+                    tokenExecutor.execute(() -> {
+                        try {
+                            jwtAuth.getAutorizationHeaderValue(userName);
+                        } catch (Exception e) {
+                            // The search will try again
+                            log.debug("Failed to warm up the token for " + app.getAppName(), e);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Queue full or stopping, the search will get the token
+                    return;
+                }
+            }
+        }
+    }
+
+    protected void startTokenRefresh() {
+
+        double fraction = Double.parseDouble(Framework.getProperty(TOKEN_REFRESH_FRACTION_PROPERTY,
+                String.valueOf(DEFAULT_TOKEN_REFRESH_FRACTION)));
+        if (fraction <= 0 || fraction >= 1) {
+            return;
+        }
+        long idleMillis = Long.parseLong(Framework.getProperty(TOKEN_IDLE_EVICTION_PROPERTY,
+                String.valueOf(DEFAULT_TOKEN_IDLE_EVICTION))) * 1000;
+
+        tokenRefreshScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "MultiNuxeoApps-token-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        tokenRefreshScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                for (NuxeoApp app : configuredNuxeoApps.values()) {
+                    if (app.getNuxeoAppAuthentication() instanceof NuxeoAppAuthenticationJWT jwtAuth) {
+                        jwtAuth.refreshTokens(fraction, idleMillis, tokenExecutor);
+                    }
+                }
+            } catch (Exception e) {
+                // Never let an exception cancel the next runs
+                log.warn("Failed to refresh the JWT tokens", e);
+            }
+        }, TOKEN_REFRESH_CHECK_INTERVAL_SECONDS, TOKEN_REFRESH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
     // ====================================================
     // Multi thread search, for speed.
     // ====================================================
@@ -139,7 +766,7 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
     }
 
     protected JSONArray fetchAllAsync(List<NuxeoApp> nuxeoApps, String currentUser, String nxql, String enrichers,
-            String properties, int pageIndex, int pageSize) {
+            String properties, int pageIndex, int pageSize, Boolean staleWhileRevalidate) {
 
         int maxProcessors = Math.max(1, Runtime.getRuntime().availableProcessors());
         int maxApps = Math.max(1, nuxeoApps.size());
@@ -152,7 +779,8 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
             for (NuxeoApp app : nuxeoApps) {
                 futures.add(CompletableFuture.supplyAsync(() -> {
                     try {
-                        return app.call(currentUser, nxql, enrichers, properties, pageIndex, pageSize);
+                        return searchApp(app, currentUser, nxql, enrichers, properties, pageIndex, pageSize,
+                                staleWhileRevalidate);
                     } catch (Exception e) {
                         JSONObject err = AbstractNuxeoApp.generateErrorObject(-1, e.getMessage(), app.getAppName(),
                                 true, e);
@@ -177,7 +805,7 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
 
     protected JSONArray fetchAllAsync(List<NuxeoApp> nuxeoApps, String currentUser, String pageProvider,
             String queryParams, Map<String, String> namedParams, String enrichers, String properties, int pageIndex,
-            int pageSize) {
+            int pageSize, Boolean staleWhileRevalidate) {
 
         int maxProcessors = Math.max(1, Runtime.getRuntime().availableProcessors());
         int maxApps = Math.max(1, nuxeoApps.size());
@@ -190,8 +818,8 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
             for (NuxeoApp app : nuxeoApps) {
                 futures.add(CompletableFuture.supplyAsync(() -> {
                     try {
-                        return app.call(currentUser, pageProvider, queryParams, namedParams, enrichers, properties,
-                                pageIndex, pageSize);
+                        return searchApp(app, currentUser, pageProvider, queryParams, namedParams, enrichers,
+                                properties, pageIndex, pageSize, staleWhileRevalidate);
                     } catch (Exception e) {
                         JSONObject err = AbstractNuxeoApp.generateErrorObject(-1, e.getMessage(), app.getAppName(),
                                 true, e);
@@ -222,6 +850,13 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
     public JSONObject call(List<NuxeoApp> nuxeoApps, String nxql, String fulltextSearchValues, String enrichers,
             String properties, int pageIndex, int pageSize) {
 
+        return call(nuxeoApps, nxql, fulltextSearchValues, enrichers, properties, pageIndex, pageSize, null);
+    }
+
+    @Override
+    public JSONObject call(List<NuxeoApp> nuxeoApps, String nxql, String fulltextSearchValues, String enrichers,
+            String properties, int pageIndex, int pageSize, Boolean staleWhileRevalidate) {
+
         if (StringUtils.isAllBlank(fulltextSearchValues, nxql)) {
             throw new IllegalArgumentException("Both fulltextSearchValues and nxql can't be empty.");
         }
@@ -259,21 +894,19 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
                     (Throwable) null);
             allresults.put(obj);
         } else if (nuxeoApps.size() == 1) {
-            JSONObject result = nuxeoApps.get(0).call(nxql, enrichers, properties, pageIndex, pageSize);
+            JSONObject result = searchApp(nuxeoApps.get(0), null, nxql, enrichers, properties, pageIndex, pageSize,
+                    staleWhileRevalidate);
             allresults = new JSONArray();
             allresults.put(result);
         } else {
             allresults = fetchAllAsync(nuxeoApps, getCurrentUserName(), nxql, enrichers, properties, pageIndex,
-                    pageSize);
+                    pageSize, staleWhileRevalidate);
         }
 
         // Now, search current Nuxeo?
         if (alwaysSearchLocalNuxeo) {
-            NuxeoPrincipal pcipal = NuxeoPrincipal.getCurrent();
-            CoreSession session = CoreInstance.getCoreSession(null, pcipal);
-            JSONObject localSearchObj = NuxeoAppCurrent.getInstance()
-                                                       .search(session, nxql, enrichers, properties, pageIndex,
-                                                               pageSize);
+            JSONObject localSearchObj = searchLocalNuxeo(nxql, enrichers, properties, pageIndex, pageSize,
+                    staleWhileRevalidate);
             allresults.put(localSearchObj);
         }
 
@@ -289,9 +922,17 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
     public JSONObject call(String appsToUseStr, String nxql, String fulltextSearchValues, String enrichers,
             String properties, int pageIndex, int pageSize) {
 
+        return call(appsToUseStr, nxql, fulltextSearchValues, enrichers, properties, pageIndex, pageSize, null);
+    }
+
+    @Override
+    public JSONObject call(String appsToUseStr, String nxql, String fulltextSearchValues, String enrichers,
+            String properties, int pageIndex, int pageSize, Boolean staleWhileRevalidate) {
+
         List<NuxeoApp> appsToUse = appNamesToNuxeoAppList(appsToUseStr);
 
-        return call(appsToUse, nxql, fulltextSearchValues, enrichers, properties, pageIndex, pageSize);
+        return call(appsToUse, nxql, fulltextSearchValues, enrichers, properties, pageIndex, pageSize,
+                staleWhileRevalidate);
     }
 
     @Override
@@ -313,6 +954,15 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
     public JSONObject callPageProvider(List<NuxeoApp> nuxeoApps, String pageProvider, String queryParams,
             Map<String, String> namedParams, String enrichers, String properties, int pageIndex, int pageSize) {
 
+        return callPageProvider(nuxeoApps, pageProvider, queryParams, namedParams, enrichers, properties, pageIndex,
+                pageSize, null);
+    }
+
+    @Override
+    public JSONObject callPageProvider(List<NuxeoApp> nuxeoApps, String pageProvider, String queryParams,
+            Map<String, String> namedParams, String enrichers, String properties, int pageIndex, int pageSize,
+            Boolean staleWhileRevalidate) {
+
         if (nuxeoApps == null) {
             throw new IllegalArgumentException("No appsToUse.");
         }
@@ -355,23 +1005,19 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
                     (Throwable) null);
             allresults.put(obj);
         } else if (nuxeoApps.size() == 1) {
-            JSONObject result = nuxeoApps.get(0)
-                                         .call(pageProvider, queryParams, namedParams, enrichers, properties, pageIndex,
-                                                 pageSize);
+            JSONObject result = searchApp(nuxeoApps.get(0), null, pageProvider, queryParams, namedParams,
+                    enrichers, properties, pageIndex, pageSize, staleWhileRevalidate);
             allresults = new JSONArray();
             allresults.put(result);
         } else {
             allresults = fetchAllAsync(nuxeoApps, getCurrentUserName(), pageProvider, queryParams, namedParams,
-                    enrichers, properties, pageIndex, pageSize);
+                    enrichers, properties, pageIndex, pageSize, staleWhileRevalidate);
         }
 
         // Now, search current Nuxeo?
         if (alwaysSearchLocalNuxeo) {
-            NuxeoPrincipal pcipal = NuxeoPrincipal.getCurrent();
-            CoreSession session = CoreInstance.getCoreSession(null, pcipal);
-            JSONObject localSearchObj = NuxeoAppCurrent.getInstance()
-                                                       .search(session, pageProvider, queryParams, namedParams,
-                                                               enrichers, properties, pageIndex, pageSize);
+            JSONObject localSearchObj = searchLocalNuxeo(pageProvider, queryParams, namedParams, enrichers,
+                    properties, pageIndex, pageSize, staleWhileRevalidate);
             allresults.put(localSearchObj);
         }
 
@@ -462,6 +1108,28 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
         }
     }
 
+    /**
+     * A fixed pool of daemon threads whose queue holds at most {@code MAX_QUEUED_BACKGROUND_TASKS} tasks. When it is
+     * full, {@code execute} throws a RejectedExecutionException, as when the pool is shut down.
+     */
+    protected static ExecutorService newBoundedExecutor(String threadNamePrefix, int poolSize) {
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            protected final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, threadNamePrefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_BACKGROUND_TASKS), threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
     /**
      * Start the component. This method is called after all the components were resolved and activated
      *
@@ -475,6 +1143,45 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
 
         allApps = new ArrayList<>(configuredNuxeoApps.values());
         allApps.add(NuxeoAppCurrent.getInstance());
+
+        long maxSizeMB = Long.parseLong(
+                Framework.getProperty(SEARCH_CACHE_MAX_SIZE_PROPERTY, String.valueOf(DEFAULT_SEARCH_CACHE_MAX_SIZE_MB)));
+        // Weight is the approximate size in bytes of the key and the JSON string
+        searchResultsCache = new TinyLfuCache<>("searchResults", maxSizeMB * 1024 * 1024, 4096,
+                (key, value) -> 64L + key.length() + value.length());
+
+        negativeCacheTtl = Long.parseLong(
+                Framework.getProperty(NEGATIVE_CACHE_TTL_PROPERTY, String.valueOf(DEFAULT_NEGATIVE_CACHE_TTL)));
+        negativeResultsCache = negativeCacheTtl > 0 ? new TinyLfuCache<>("negativeResults", 4 * 1024 * 1024, 1024,
+                (key, value) -> 64L + key.length() + value.length()) : null;
+
+        startBlobCache();
+
+        SharedCache.start();
+
+        redirectCacheTtl = Long.parseLong(
+                Framework.getProperty(REDIRECT_CACHE_TTL_PROPERTY, String.valueOf(DEFAULT_REDIRECT_CACHE_TTL)));
+        redirectsCache = redirectCacheTtl > 0 ? new TinyLfuCache<>("redirects", 8 * 1024 * 1024, 8192,
+                (key, value) -> 64L + key.length() + value.length()) : null;
+
+        backgroundExecutor = newBoundedExecutor("MultiNuxeoApps-background-",
+                Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+        tokenExecutor = newBoundedExecutor("MultiNuxeoApps-token-", 2);
+
+        startTokenRefresh();
+
+        thumbnailPrefetcher = null;
+        if (blobCache != null
+                && !"false".equals(Framework.getProperty(THUMBNAIL_PREFETCH_ENABLED_PROPERTY, "true"))) {
+            thumbnailPrefetcher = new ThumbnailPrefetcher(this,
+                    Integer.parseInt(Framework.getProperty(THUMBNAIL_PREFETCH_MAX_QUEUED_PROPERTY,
+                            String.valueOf(DEFAULT_THUMBNAIL_PREFETCH_MAX_QUEUED))),
+                    Integer.parseInt(Framework.getProperty(THUMBNAIL_PREFETCH_CONCURRENCY_PROPERTY,
+                            String.valueOf(DEFAULT_THUMBNAIL_PREFETCH_CONCURRENCY))));
+        }
+
+        // Tokens of the fixed-user apps, in parallel and without delaying the startup
+        warmUpTokens(null);
     }
 
     /**
@@ -486,7 +1193,47 @@ public class MultiNuxeoAppServiceImpl extends DefaultComponent implements MultiN
     @Override
     public void stop(ComponentContext context) throws InterruptedException {
 
-        // Nothing for now
+        if (tokenRefreshScheduler != null) {
+            tokenRefreshScheduler.shutdownNow();
+            tokenRefreshScheduler = null;
+        }
+
+        if (thumbnailPrefetcher != null) {
+            thumbnailPrefetcher.stop();
+            thumbnailPrefetcher = null;
+        }
+
+        if (backgroundExecutor != null) {
+            backgroundExecutor.shutdownNow();
+            backgroundExecutor = null;
+        }
+
+        if (tokenExecutor != null) {
+            tokenExecutor.shutdownNow();
+            tokenExecutor = null;
+        }
+        refreshesInProgress.clear();
+
+        SharedCache.stop();
+
+        if (searchResultsCache != null) {
+            searchResultsCache.clear();
+        }
+
+        if (negativeResultsCache != null) {
+            negativeResultsCache.clear();
+            negativeResultsCache = null;
+        }
+
+        if (blobCache != null) {
+            blobCache.clear();
+            blobCache = null;
+        }
+
+        if (redirectsCache != null) {
+            redirectsCache.clear();
+            redirectsCache = null;
+        }
 
     }
 }
@@ -23,6 +23,7 @@ import org.nuxeo.common.xmap.annotation.XNode;
 import org.nuxeo.common.xmap.annotation.XObject;
 import org.nuxeo.labs.multi.nuxeoapps.NuxeoApp;
 import org.nuxeo.labs.multi.nuxeoapps.authentication.NuxeoAppAuthenticationJWT;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.BandwidthLimiter;
 
 @XObject("nuxeoapp")
 public class NuxeoAppDescriptor {
@@ -50,6 +51,27 @@ public class NuxeoAppDescriptor {
 
     @XNode("jwtSecret")
     protected String jwtSecret;
+
+    // In seconds. 0 => search results are not cached
+    @XNode("searchCacheTtl")
+    protected long searchCacheTtl = 0;
+
+    // In seconds. > 0 => expired cached results are returned during this time, while refreshed in the background
+    @XNode("staleWhileRevalidate")
+    protected long staleWhileRevalidate = 0;
+
+    // Bandwidth limits of the blobs streamed by the servlet, in KB/s. 0 => no limit. See BandwidthLimiter
+    @XNode("downloadBandwidthPerApp")
+    protected long downloadBandwidthPerApp = 0;
+
+    @XNode("downloadBandwidthPerUser")
+    protected long downloadBandwidthPerUser = 0;
+
+    @XNode("thumbnailBandwidthPerApp")
+    protected long thumbnailBandwidthPerApp = 0;
+
+    @XNode("thumbnailBandwidthPerUser")
+    protected long thumbnailBandwidthPerUser = 0;
     
     public String getAppName() {
         return appName;
@@ -108,11 +130,18 @@ public class NuxeoAppDescriptor {
     
     public NuxeoApp createNuxeoApp() {
         
+        NuxeoApp nxApp;
         if(StringUtils.isNoneBlank(basicUser, basicPwd)) {
-            return new NuxeoApp(appName, appUrl, basicUser, basicPwd);
+            nxApp = new NuxeoApp(appName, appUrl, basicUser, basicPwd);
+        } else {
+            nxApp = new NuxeoApp(appName, appUrl, tokenUser, tokenClientId, tokenClientSecret, jwtSecret);
         }
+        nxApp.setSearchCacheTtl(searchCacheTtl);
+        nxApp.setStaleWhileRevalidate(staleWhileRevalidate);
+        nxApp.setBandwidthLimiter(new BandwidthLimiter(downloadBandwidthPerApp, downloadBandwidthPerUser,
+                thumbnailBandwidthPerApp, thumbnailBandwidthPerUser));
         
-        return new NuxeoApp(appName, appUrl, tokenUser, tokenClientId, tokenClientSecret, jwtSecret);
+        return nxApp;
     }
 
 }
@@ -0,0 +1,321 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.service;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.labs.multi.nuxeoapps.AbstractNuxeoApp;
+import org.nuxeo.labs.multi.nuxeoapps.NuxeoApp;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServletUtils;
+
+/**
+ * Warms up the blob cache with the thumbnails of search results, so they are (mostly) already cached when the browser
+ * asks the servlet for them, right after receiving the results.
+ * <br>
+ * The queue is bounded ({@code maxQueued}, thumbnails are dropped when full), and each app has at most
+ * {@code concurrencyPerApp} downloads running. Downloads are asynchronous (HttpClient), no thread waits for them.
+ * <br>
+ * The cache keys are the ones the servlet uses for the "nxAppsUrl" of the thumbnail (no digest, see
+ * {@link NuxeoAppServletUtils#updateBlobUrlsInProperties}), and the thumbnails are downloaded as the user of the blob
+ * requests ({@link AbstractNuxeoApp#getBlobUser}), not as the one of the search.
+ *
+ * @since 2025
+ */
+public class ThumbnailPrefetcher {
+
+    private static final Logger log = LogManager.getLogger(ThumbnailPrefetcher.class);
+
+    protected final MultiNuxeoAppService service;
+
+    protected final int maxQueued;
+
+    protected final int concurrencyPerApp;
+
+    // Guarded by this
+    protected final Map<String, AppQueue> appQueues = new HashMap<>();
+
+    // Queued or running, to not download the same thumbnail twice
+    protected final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    protected int queued = 0;
+
+    protected long prefetched = 0;
+
+    protected long dropped = 0;
+
+    protected long failed = 0;
+
+    protected volatile boolean stopped = false;
+
+    protected static class AppQueue {
+
+        protected final Deque<Prefetch> queue = new ArrayDeque<>();
+
+        // Shared by the downloads of the app
+        protected final HttpClient client;
+
+        protected int running = 0;
+
+        protected AppQueue(HttpClient client) {
+            this.client = client;
+        }
+    }
+
+    protected static class Prefetch {
+
+        protected final NuxeoApp app;
+
+        protected final String userName;
+
+        protected final String remotePath;
+
+        protected final String key;
+
+        protected final HttpRequest request;
+
+        protected Prefetch(NuxeoApp app, String userName, String remotePath, String key, HttpRequest request) {
+            this.app = app;
+            this.userName = userName;
+            this.remotePath = remotePath;
+            this.key = key;
+            this.request = request;
+        }
+    }
+
+    public ThumbnailPrefetcher(MultiNuxeoAppService service, int maxQueued, int concurrencyPerApp) {
+        this.service = service;
+        this.maxQueued = Math.max(1, maxQueued);
+        this.concurrencyPerApp = Math.max(1, concurrencyPerApp);
+    }
+
+    /**
+     * Queues the download of the thumbnails found in {@code searchResult} that are not cached yet. Returns
+     * immediately.
+     *
+     * @param app
+     * @param currentUser, the user who searched (can be null)
+     * @param searchResult, after {@link AbstractNuxeoApp#updateDocumentsEntityType} (so it has the "nxAppsUrl")
+     * @since 2025
+     */
+    public void prefetch(NuxeoApp app, String currentUser, JSONObject searchResult) {
+
+        if (stopped || searchResult == null || AbstractNuxeoApp.isErrorResult(searchResult)) {
+            return;
+        }
+        // Same as NuxeoAppServletUtils#getBlobUser in the requests of this user
+        String userName = app.getBlobUser(currentUser);
+
+        JSONArray entries = searchResult.optJSONArray("entries");
+        if (entries == null) {
+            return;
+        }
+
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject oneDoc = entries.optJSONObject(i);
+            JSONObject ctxParams = oneDoc == null ? null : oneDoc.optJSONObject("contextParameters");
+            JSONObject thumbnail = ctxParams == null ? null : ctxParams.optJSONObject("thumbnail");
+            if (thumbnail == null || !thumbnail.has("nxAppsUrl")) {
+                continue;
+            }
+            String url = thumbnail.optString("url", null);
+            if (StringUtils.isBlank(url)) {
+                continue;
+            }
+
+            // What the servlet gets from the nxAppsUrl
+            String remotePath = NuxeoAppServletUtils.removeUrlPrefix(url);
+            String key = app.getAppName() + "\u001F" + userName + "\u001F" + remotePath;
+            if (!pendingKeys.add(key)) {
+                continue;
+            }
+            try {
+                if (service.getCachedRemoteBlob(app, userName, remotePath, null, true) != null) {
+                    pendingKeys.remove(key);
+                    continue;
+                }
+                enqueue(new Prefetch(app, userName, remotePath, key,
+                        app.newBlobRequest(remotePath, null, userName)));
+            } catch (IOException | RuntimeException e) {
+                pendingKeys.remove(key);
+                log.debug("Cannot prefetch " + remotePath + " from remote Nuxeo App <" + app.getAppName() + ">", e);
+            }
+        }
+    }
+
+    public void stop() {
+
+        stopped = true;
+        synchronized (this) {
+            appQueues.values().forEach(appQueue -> appQueue.queue.clear());
+            appQueues.clear();
+            queued = 0;
+        }
+        pendingKeys.clear();
+    }
+
+    /**
+     * @return a JSONObject with queued, running, prefetched, dropped and failed
+     * @since 2025
+     */
+    public synchronized JSONObject getStatistics() {
+
+        JSONObject stats = new JSONObject();
+        stats.put("queued", queued);
+        stats.put("running", appQueues.values().stream().mapToInt(appQueue -> appQueue.running).sum());
+        stats.put("prefetched", prefetched);
+        stats.put("dropped", dropped);
+        stats.put("failed", failed);
+
+        return stats;
+    }
+
+    protected void enqueue(Prefetch prefetch) {
+
+        synchronized (this) {
+            if (stopped || queued >= maxQueued) {
+                dropped += 1;
+                pendingKeys.remove(prefetch.key);
+                return;
+            }
+            queued += 1;
+            appQueues.computeIfAbsent(prefetch.app.getAppName(),
+                    k -> new AppQueue(prefetch.app.getBlobHttpClient())).queue.add(prefetch);
+        }
+
+        startNext(prefetch.app.getAppName());
+    }
+
+    /**
+     * Starts the queued downloads of the app, up to {@code concurrencyPerApp} running
+     */
+    protected void startNext(String appName) {
+
+        AppQueue appQueue;
+        List<Prefetch> toStart = new ArrayList<>();
+        synchronized (this) {
+            appQueue = appQueues.get(appName);
+            if (appQueue == null) {
+                return;
+            }
+            while (appQueue.running < concurrencyPerApp && !appQueue.queue.isEmpty()) {
+                toStart.add(appQueue.queue.poll());
+                appQueue.running += 1;
+                queued -= 1;
+            }
+        }
+
+        for (Prefetch prefetch : toStart) {
+            download(appQueue, prefetch);
+        }
+    }
+
+    protected void download(AppQueue appQueue, Prefetch prefetch) {
+
+        Path file;
+        try {
+            file = Files.createTempFile("multinxapps-", ".bin");
+        } catch (IOException e) {
+            log.warn("Cannot create a temporary file, thumbnails are not prefetched", e);
+            done(appQueue, prefetch, false);
+            return;
+        }
+
+        appQueue.client.sendAsync(prefetch.request, HttpResponse.BodyHandlers.ofFile(file))
+                       .whenComplete((response, error) -> {
+                           boolean ok = false;
+                           try {
+                               ok = error == null && cache(prefetch, response, file);
+                           } catch (IOException | RuntimeException e) {
+                               log.debug("Failed to cache " + prefetch.remotePath, e);
+                           } finally {
+                               try {
+                                   // Linked or copied in the cache if cached
+                                   Files.deleteIfExists(file);
+                               } catch (IOException e) {
+                                   log.debug("Cannot delete " + file, e);
+                               }
+                               done(appQueue, prefetch, ok);
+                           }
+                       });
+    }
+
+    protected boolean cache(Prefetch prefetch, HttpResponse<Path> response, Path file) throws IOException {
+
+        int status = response.statusCode();
+        if (NuxeoAppServletUtils.isRedirect(status)) {
+            String location = response.headers().firstValue("Location").orElse(null);
+            if (location == null) {
+                return false;
+            }
+            JSONObject redirectInfoJson = new JSONObject();
+            redirectInfoJson.put("status", status);
+            redirectInfoJson.put("location", location);
+            return service.cacheRemoteBlob(prefetch.app, prefetch.userName, prefetch.remotePath, null,
+                    Blobs.createJSONBlob(redirectInfoJson.toString()));
+        }
+
+        if (status != 200 || !service.canCacheBlob(Files.size(file))) {
+            return false;
+        }
+
+        String mimeType = response.headers().firstValue("Content-Type").orElse(null);
+        String filename = NuxeoAppServletUtils.extractFileName(
+                response.headers().firstValue("Content-Disposition").orElse(null), prefetch.remotePath);
+
+        return service.cacheRemoteBlob(prefetch.app, prefetch.userName, prefetch.remotePath, null,
+                Blobs.createBlob(file.toFile(), mimeType, null, filename));
+    }
+
+    protected void done(AppQueue appQueue, Prefetch prefetch, boolean ok) {
+
+        pendingKeys.remove(prefetch.key);
+        synchronized (this) {
+            appQueue.running -= 1;
+            if (ok) {
+                prefetched += 1;
+            } else {
+                failed += 1;
+            }
+        }
+
+        if (!stopped) {
+            startNext(prefetch.app.getAppName());
+        }
+    }
+
+}
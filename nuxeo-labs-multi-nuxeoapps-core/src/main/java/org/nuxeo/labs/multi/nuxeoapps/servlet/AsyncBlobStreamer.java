@@ -0,0 +1,421 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServlet.RemoteBlobInfo;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServlet.RemoteBlobRequest;
+
+/**
+ * Streams a remote blob to an async servlet response, with no thread waiting on I/O:
+ * <ul>
+ * <li>The remote body is received as a {@link Flow.Publisher}, one chunk is requested only when the previous ones were
+ * written (backpressure: a slow browser slows down the remote download, nothing piles up in memory)</li>
+ * <li>The servlet output is non-blocking: chunks are written only while {@code isReady()}, and the writing resumes in
+ * {@code onWritePossible}</li>
+ * </ul>
+ * As in the synchronous mode, a cacheable blob is also written to a temporary file, put in the blob cache once
+ * complete. A shared download (see {@link InFlightDownload}) is not streamed here, see
+ * {@link InFlightDownloadWriter}.
+ * <br>
+ * When the stream is throttled (see {@link BandwidthLimiter}), the writing stops and is resumed later by the shared
+ * scheduler of the limiter: no chunk is requested meanwhile, so the remote download is slowed down too.
+ * <br>
+ * Callbacks come from the HttpClient threads and the container threads, they are serialized by synchronizing on this
+ * instance.
+ *
+ * @since 2025
+ */
+public class AsyncBlobStreamer implements Flow.Subscriber<List<ByteBuffer>>, WriteListener, AsyncListener {
+
+    private static final Logger log = LogManager.getLogger(AsyncBlobStreamer.class);
+
+    protected final AsyncContext asyncContext;
+
+    protected final HttpServletResponse response;
+
+    protected final RemoteBlobRequest remoteRequest;
+
+    protected final byte[] buffer = new byte[NuxeoAppServlet.STREAM_BUFFER_SIZE];
+
+    protected final Deque<ByteBuffer> pending = new ArrayDeque<>();
+
+    protected RemoteBlobInfo info;
+
+    protected ServletOutputStream out;
+
+    protected Flow.Subscription subscription;
+
+    protected Path cacheFile;
+
+    protected OutputStream cacheOut;
+
+    protected long written = 0;
+
+    protected boolean requested = false;
+
+    protected boolean remoteComplete = false;
+
+    protected boolean draining = false;
+
+    protected boolean finished = false;
+
+    // Waiting for the bandwidth limiter, see resumeAfterThrottle
+    protected boolean throttled = false;
+
+    public AsyncBlobStreamer(AsyncContext asyncContext, RemoteBlobRequest remoteRequest) {
+        this.asyncContext = asyncContext;
+        this.response = (HttpServletResponse) asyncContext.getResponse();
+        this.remoteRequest = remoteRequest;
+    }
+
+    /**
+     * Called when the remote headers are received (or the request failed)
+     *
+     * @param remoteResponse
+     * @param error
+     * @since 2025
+     */
+    public void onRemoteResponse(HttpResponse<Flow.Publisher<List<ByteBuffer>>> remoteResponse, Throwable error) {
+
+        if (error != null) {
+            fail(error);
+            return;
+        }
+
+        synchronized (this) {
+            if (finished) {
+                // Timed out meanwhile
+                discard(remoteResponse.body());
+                return;
+            }
+            try {
+                info = NuxeoAppServlet.relayRemoteResponseHeaders(remoteRequest, remoteResponse.statusCode(),
+                        remoteResponse.headers(), response);
+                if (info == null) {
+                    discard(remoteResponse.body());
+                    finish();
+                    return;
+                }
+                if (info.cacheable) {
+                    openCacheFile();
+                }
+                out = response.getOutputStream();
+            } catch (IOException e) {
+                discard(remoteResponse.body());
+                fail(e);
+                return;
+            }
+        }
+
+        remoteResponse.body().subscribe(this);
+        // The container calls onWritePossible as soon as it can write
+        out.setWriteListener(this);
+    }
+
+    // ==================== Flow.Subscriber (remote body)
+    @Override
+    public synchronized void onSubscribe(Flow.Subscription subscription) {
+
+        this.subscription = subscription;
+        if (finished) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public synchronized void onNext(List<ByteBuffer> items) {
+
+        pending.addAll(items);
+        requested = false;
+        if (!draining) {
+            drain();
+        }
+    }
+
+    @Override
+    public synchronized void onComplete() {
+
+        remoteComplete = true;
+        if (!draining) {
+            drain();
+        }
+    }
+
+    // Also WriteListener#onError
+    @Override
+    public void onError(Throwable t) {
+        fail(t);
+    }
+
+    // ==================== WriteListener (servlet output)
+    @Override
+    public synchronized void onWritePossible() {
+        drain();
+    }
+
+    // ==================== AsyncListener
+    @Override
+    public void onComplete(AsyncEvent event) {
+        // Normally already done, unless the container completed the request itself
+        synchronized (this) {
+            if (!finished) {
+                finished = true;
+                cancelSubscription();
+                deleteCacheFile();
+            }
+        }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        fail(new IOException("Timeout while streaming the blob from remote Nuxeo App <"
+                + remoteRequest.remoteApp.getAppName() + ">"));
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        fail(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // Nothing
+    }
+
+    // ==================== Streaming
+    /**
+     * Writes the pending chunks while the output is ready, requests the next chunk when they are all written
+     */
+    protected synchronized void drain() {
+
+        if (finished || throttled || out == null || subscription == null) {
+            return;
+        }
+
+        draining = true;
+        try {
+            while (out.isReady()) {
+                ByteBuffer chunk = pending.peek();
+                if (chunk == null) {
+                    if (remoteComplete) {
+                        finish();
+                        return;
+                    }
+                    if (requested) {
+                        // onNext will call again
+                        return;
+                    }
+                    requested = true;
+                    // Can call onNext in this thread, so loop to write it
+                    subscription.request(1);
+                    continue;
+                }
+
+                int length = Math.min(chunk.remaining(), buffer.length);
+                chunk.get(buffer, 0, length);
+                writeToCacheFile(length);
+                written += length;
+                out.write(buffer, 0, length);
+                if (!chunk.hasRemaining()) {
+                    pending.poll();
+                }
+                if (remoteRequest.throttle != null) {
+                    long delay = remoteRequest.throttle.reserve(length);
+                    if (delay > 0) {
+                        throttled = true;
+                        BandwidthLimiter.schedule(this::resumeAfterThrottle, delay);
+                        return;
+                    }
+                }
+            }
+            // Not ready: the container calls onWritePossible when it is
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            draining = false;
+        }
+    }
+
+    protected synchronized void resumeAfterThrottle() {
+
+        throttled = false;
+        drain();
+    }
+
+    protected synchronized void finish() {
+
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        try {
+            if (cacheOut != null) {
+                cacheOut.close();
+                cacheOut = null;
+                if (info.cacheable && written == info.length) {
+                    remoteRequest.cacheBlob(cacheFile, info);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to cache the blob from remote Nuxeo App <" + remoteRequest.remoteApp.getAppName() + ">",
+                    e);
+        } finally {
+            deleteCacheFile();
+            completeQuietly();
+        }
+    }
+
+    protected void fail(Throwable t) {
+
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            cancelSubscription();
+            deleteCacheFile();
+        }
+
+        try {
+            if (response.isCommitted()) {
+                // Headers already sent (client disconnected, remote stream broken, ...)
+                log.debug("Failed to stream the blob from remote Nuxeo App <" + remoteRequest.remoteApp.getAppName()
+                        + ">", t);
+            } else {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        "Failed to get the blob from remote Nuxeo App: " + (t == null ? "" : t.getMessage()));
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.debug("Failed to send the error", e);
+        } finally {
+            completeQuietly();
+        }
+    }
+
+    protected void completeQuietly() {
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            // Already completed (timeout, ...)
+        }
+    }
+
+    protected void cancelSubscription() {
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        pending.clear();
+    }
+
+    // ==================== Cache file
+    protected void openCacheFile() {
+        try {
+            cacheFile = Files.createTempFile("multinxapps-", ".bin");
+            cacheOut = Files.newOutputStream(cacheFile);
+        } catch (IOException e) {
+            // Not a reason to fail, the blob just won't be cached
+            log.warn("Cannot create a temporary file, the blob will not be cached", e);
+            deleteCacheFile();
+        }
+    }
+
+    protected void writeToCacheFile(int length) {
+        if (cacheOut == null) {
+            return;
+        }
+        try {
+            cacheOut.write(buffer, 0, length);
+        } catch (IOException e) {
+            log.warn("Cannot write the temporary file, the blob will not be cached", e);
+            deleteCacheFile();
+        }
+    }
+
+    protected void deleteCacheFile() {
+        if (cacheOut != null) {
+            try {
+                cacheOut.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            cacheOut = null;
+        }
+        if (cacheFile != null) {
+            try {
+                remoteRequest.deleteFile(cacheFile);
+            } catch (IOException e) {
+                log.debug("Cannot delete " + cacheFile, e);
+            }
+            cacheFile = null;
+        }
+    }
+
+    /**
+     * Releases the connection of a response whose body is not needed
+     */
+    protected static void discard(Flow.Publisher<List<ByteBuffer>> body) {
+
+        body.subscribe(new Flow.Subscriber<List<ByteBuffer>>() {
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.cancel();
+            }
+
+            @Override
+            public void onNext(List<ByteBuffer> item) {
+                // Nothing
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                // Nothing
+            }
+
+            @Override
+            public void onComplete() {
+                // Nothing
+            }
+        });
+    }
+
+}
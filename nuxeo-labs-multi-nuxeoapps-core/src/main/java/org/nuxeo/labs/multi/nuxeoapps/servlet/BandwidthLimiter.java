@@ -0,0 +1,226 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.labs.multi.nuxeoapps.cache.ExpiringLruMap;
+
+/**
+ * Token-bucket bandwidth limits of the blobs streamed from a remote app by {@link NuxeoAppServlet}, so one user
+ * bulk-downloading does not saturate the link used by the searches and thumbnails of everyone else.
+ * <br>
+ * There are two traffic classes, thumbnails and downloads (everything else), each with a limit for the whole app and
+ * a limit per effective user. A stream is slowed down to the lowest of the two. Limits are in KB/s, 0 means no limit.
+ * <br>
+ * A bucket holds one second of traffic (so short bursts are not slowed down) and can go in debt: {@code reserve}
+ * always succeeds and returns how long the caller must wait before sending more. Concurrent streams sharing a bucket
+ * wait in turn, each one getting its share.
+ *
+ * @since 2025
+ */
+public class BandwidthLimiter {
+
+    // Users whose bucket is full (no recent traffic) are removed first
+    public static final int MAX_USER_BUCKETS = 10000;
+
+    public enum TrafficClass {
+        THUMBNAIL, DOWNLOAD;
+
+        /**
+         * @param remotePath
+         * @return the class of the request
+         * @since 2025
+         */
+        public static TrafficClass of(String remotePath) {
+            return remotePath != null && remotePath.contains("/@rendition/thumbnail") ? THUMBNAIL : DOWNLOAD;
+        }
+    }
+
+    // Resumes the async streams (see AsyncBlobStreamer), no thread sleeps
+    protected static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "multinxapps-bandwidth");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    protected final long downloadPerApp;
+
+    protected final long downloadPerUser;
+
+    protected final long thumbnailPerApp;
+
+    protected final long thumbnailPerUser;
+
+    protected final TokenBucket downloadAppBucket;
+
+    protected final TokenBucket thumbnailAppBucket;
+
+    protected final ExpiringLruMap<String, TokenBucket> userBuckets = new ExpiringLruMap<>(MAX_USER_BUCKETS,
+            TokenBucket::isFull);
+
+    /**
+     * @param downloadPerApp, KB/s
+     * @param downloadPerUser, KB/s
+     * @param thumbnailPerApp, KB/s
+     * @param thumbnailPerUser, KB/s
+     * @since 2025
+     */
+    public BandwidthLimiter(long downloadPerApp, long downloadPerUser, long thumbnailPerApp, long thumbnailPerUser) {
+        this.downloadPerApp = Math.max(0, downloadPerApp);
+        this.downloadPerUser = Math.max(0, downloadPerUser);
+        this.thumbnailPerApp = Math.max(0, thumbnailPerApp);
+        this.thumbnailPerUser = Math.max(0, thumbnailPerUser);
+        downloadAppBucket = this.downloadPerApp > 0 ? new TokenBucket(this.downloadPerApp * 1024) : null;
+        thumbnailAppBucket = this.thumbnailPerApp > 0 ? new TokenBucket(this.thumbnailPerApp * 1024) : null;
+    }
+
+    /**
+     * @return true if at least one limit is set
+     * @since 2025
+     */
+    public boolean isEnabled() {
+        return downloadPerApp > 0 || downloadPerUser > 0 || thumbnailPerApp > 0 || thumbnailPerUser > 0;
+    }
+
+    /**
+     * @param trafficClass
+     * @param userName, the effective user
+     * @return the throttle of one stream, null if there is no limit for this class
+     * @since 2025
+     */
+    public Throttle getThrottle(TrafficClass trafficClass, String userName) {
+
+        boolean thumbnail = trafficClass == TrafficClass.THUMBNAIL;
+        long perUser = thumbnail ? thumbnailPerUser : downloadPerUser;
+        List<TokenBucket> buckets = new ArrayList<>(2);
+        TokenBucket appBucket = thumbnail ? thumbnailAppBucket : downloadAppBucket;
+        if (appBucket != null) {
+            buckets.add(appBucket);
+        }
+        if (perUser > 0) {
+            String key = trafficClass + "/" + userName;
+            synchronized (userBuckets) {
+                TokenBucket userBucket = userBuckets.get(key);
+                if (userBucket == null) {
+                    userBucket = new TokenBucket(perUser * 1024);
+                    userBuckets.put(key, userBucket);
+                }
+                buckets.add(userBucket);
+            }
+        }
+
+        return buckets.isEmpty() ? null : new Throttle(buckets);
+    }
+
+    /**
+     * Runs {@code task} after {@code delayNanos}, in a shared scheduler thread
+     *
+     * @since 2025
+     */
+    public static void schedule(Runnable task, long delayNanos) {
+        SCHEDULER.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The buckets (app and user) one stream draws from
+     */
+    public static class Throttle {
+
+        protected final List<TokenBucket> buckets;
+
+        protected Throttle(List<TokenBucket> buckets) {
+            this.buckets = buckets;
+        }
+
+        /**
+         * @param bytes, just sent
+         * @return how long (nanoseconds) to wait before sending more, 0 if no need to wait
+         * @since 2025
+         */
+        public long reserve(long bytes) {
+
+            long delay = 0;
+            for (TokenBucket bucket : buckets) {
+                delay = Math.max(delay, bucket.reserve(bytes));
+            }
+            return delay;
+        }
+
+        /**
+         * Same as {@code reserve}, but waits in the calling thread
+         *
+         * @since 2025
+         */
+        public void acquire(long bytes) throws InterruptedException {
+
+            long delay = reserve(bytes);
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * {@code rate} bytes per second, with a capacity of one second
+     */
+    protected static class TokenBucket {
+
+        protected final long rate;
+
+        protected final long capacity;
+
+        // Guarded by this. Negative: in debt
+        protected double tokens;
+
+        protected long lastRefill;
+
+        protected TokenBucket(long rate) {
+            this.rate = rate;
+            capacity = Math.max(rate, NuxeoAppServlet.STREAM_BUFFER_SIZE);
+            tokens = capacity;
+            lastRefill = System.nanoTime();
+        }
+
+        protected synchronized long reserve(long bytes) {
+
+            refill();
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1_000_000_000d / rate);
+        }
+
+        protected synchronized boolean isFull() {
+
+            refill();
+            return tokens >= capacity;
+        }
+
+        protected void refill() {
+
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1_000_000_000d);
+            lastRefill = now;
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.multi.nuxeoapps.NuxeoAppCurrent;
+
+/**
+ * Adds the URL to {@link NuxeoAppServlet} ("nxAppsUrl") to the blobs and thumbnails of the documents returned by one
+ * app. One instance per app, built once: the servlet prefix of the app and the matcher of its URL are computed at
+ * creation, not for each blob.
+ * <br>
+ * The properties are walked once: the blob fields (see {@link NuxeoAppServletUtils#BLOB_JSON_FIELDS}) are counted
+ * while iterating the keys of each object, which is needed anyway to find its children, so detecting a blob costs no
+ * extra lookup. Same result as {@link NuxeoAppServletUtils#updateBlobUrlsInProperties}.
+ *
+ * @since 2025
+ */
+public class BlobUrlRewriter {
+
+    protected static final Set<String> BLOB_FIELDS = Set.copyOf(NuxeoAppServletUtils.BLOB_JSON_FIELDS);
+
+    protected final boolean isLocalNuxeo;
+
+    // "/nuxeo/multiNxApps/appName"
+    protected final String servletPrefix;
+
+    // "https://host/nuxeo/" when the app URL has the shape NuxeoAppServletUtils#removeUrlPrefix strips, else null
+    protected final String appUrlPrefix;
+
+    /**
+     * @param appName
+     * @param appUrl, can be null: then all URLs are matched with the generic pattern
+     * @param isLocalNuxeo
+     * @since 2025
+     */
+    public BlobUrlRewriter(String appName, String appUrl, boolean isLocalNuxeo) {
+        this.isLocalNuxeo = isLocalNuxeo;
+        servletPrefix = NuxeoAppCurrent.CONTEXT_PATH + "/" + NuxeoAppServlet.MULTI_NUXEO_APPS_SERVLET_KEY + "/"
+                + appName;
+        appUrlPrefix = buildAppUrlPrefix(appUrl);
+    }
+
+    protected static String buildAppUrlPrefix(String appUrl) {
+
+        if (StringUtils.isBlank(appUrl)) {
+            return null;
+        }
+        String prefix = StringUtils.removeEnd(appUrl.trim(), "/") + "/";
+        // Only if the generic pattern would strip exactly this prefix (scheme, host, one path segment)
+        return "/x".equals(NuxeoAppServletUtils.removeUrlPrefix(prefix + "x")) ? prefix : null;
+    }
+
+    /**
+     * {@code oneDocObj} must be a "document" entity-type, see {@link NuxeoAppServletUtils#updateBlobUrlsInProperties}
+     *
+     * @param oneDocObj
+     * @since 2025
+     */
+    public void rewriteDocument(JSONObject oneDocObj) {
+
+        if (oneDocObj == null) {
+            return;
+        }
+
+        if (!"document".equals(oneDocObj.optString("entity-type", null))) {
+            throw new NuxeoException("Expecting a \"document\" entity-type");
+        }
+
+        // ====================> properties
+        JSONObject properties = oneDocObj.optJSONObject("properties", null);
+        if (properties != null) {
+            rewriteBlobs(properties);
+        }
+
+        // ====================> contextParameters and thumbnail
+        JSONObject ctxParams = oneDocObj.optJSONObject("contextParameters", null);
+        if (ctxParams != null) {
+            JSONObject thumbnailObj = ctxParams.optJSONObject("thumbnail", null);
+            if (thumbnailObj != null) {
+                String url = thumbnailObj.getString("url");
+                url = isLocalNuxeo ? NuxeoAppCurrent.updateUrlIfNeeded(url) : toServletUrl(url);
+                thumbnailObj.put(NuxeoAppServlet.MULTI_NUXEO_APPS_SERVLET_BLOB_URL_KEY, url);
+            }
+        }
+    }
+
+    protected void rewriteBlobs(JSONObject properties) {
+
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(properties);
+        while (!stack.isEmpty()) {
+            Object node = stack.pop();
+
+            if (node instanceof JSONObject obj) {
+                int blobFields = 0;
+                for (String key : obj.keySet()) {
+                    if (BLOB_FIELDS.contains(key)) {
+                        blobFields += 1;
+                    }
+                    Object child = obj.opt(key);
+                    if (child instanceof JSONObject || child instanceof JSONArray) {
+                        stack.push(child);
+                    }
+                }
+                // After the loop, put() changes the keys
+                if (blobFields == BLOB_FIELDS.size()) {
+                    rewriteBlob(obj);
+                }
+
+            } else if (node instanceof JSONArray arr) {
+                for (int i = 0; i < arr.length(); i++) {
+                    Object child = arr.opt(i);
+                    if (child instanceof JSONObject || child instanceof JSONArray) {
+                        stack.push(child);
+                    }
+                }
+            }
+        }
+    }
+
+    protected void rewriteBlob(JSONObject blob) {
+
+        String blobUrl = blob.optString("blobUrl", null);
+        if (blobUrl == null) {
+            return;
+        }
+        if (isLocalNuxeo) {
+            blobUrl = NuxeoAppCurrent.updateUrlIfNeeded(blobUrl);
+        } else {
+            blobUrl = NuxeoAppServletUtils.addDigestParameter(toServletUrl(blobUrl), blob.optString("digest", null));
+        }
+        blob.put(NuxeoAppServlet.MULTI_NUXEO_APPS_SERVLET_BLOB_URL_KEY, blobUrl);
+    }
+
+    /**
+     * Same as {@link NuxeoAppServletUtils#buildMultiNxAppUrl}, for this app
+     *
+     * @param url
+     * @return the url to the servlet
+     * @since 2025
+     */
+    public String toServletUrl(String url) {
+        return servletPrefix + removeUrlPrefix(url);
+    }
+
+    /**
+     * Same as {@link NuxeoAppServletUtils#removeUrlPrefix}, without the regex for the URLs of the app
+     *
+     * @param url
+     * @return the url without its scheme, host and first path segment
+     * @since 2025
+     */
+    public String removeUrlPrefix(String url) {
+
+        if (appUrlPrefix != null && url != null && url.startsWith(appUrlPrefix)) {
+            return url.substring(appUrlPrefix.length() - 1).trim();
+        }
+        return NuxeoAppServletUtils.removeUrlPrefix(url);
+    }
+
+}
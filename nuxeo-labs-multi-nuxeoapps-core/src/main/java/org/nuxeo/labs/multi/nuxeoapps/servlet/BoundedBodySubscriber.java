@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Receives an HTTP response body in memory, up to {@code maxSize} bytes. Above, the response is cancelled (nothing
+ * more is downloaded) and the body is null. When the {@code Content-Length} is known and above {@code maxSize}, nothing
+ * is read at all.
+ *
+ * @since 2025
+ */
+public class BoundedBodySubscriber implements HttpResponse.BodySubscriber<byte[]> {
+
+    protected final long maxSize;
+
+    protected final long expectedLength;
+
+    protected final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+    protected final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    protected Flow.Subscription subscription;
+
+    /**
+     * @param maxSize, in bytes
+     * @param expectedLength, the Content-Length, -1 if unknown
+     * @since 2025
+     */
+    public BoundedBodySubscriber(long maxSize, long expectedLength) {
+        this.maxSize = maxSize;
+        this.expectedLength = expectedLength;
+    }
+
+    /**
+     * @param maxSize, in bytes
+     * @return a BodyHandler for {@code HttpClient#sendAsync}, the body is null if bigger than {@code maxSize}
+     * @since 2025
+     */
+    public static HttpResponse.BodyHandler<byte[]> bodyHandler(long maxSize) {
+        return responseInfo -> new BoundedBodySubscriber(maxSize,
+                responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1));
+    }
+
+    @Override
+    public CompletionStage<byte[]> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+
+        this.subscription = subscription;
+        if (expectedLength > maxSize) {
+            tooBig();
+            return;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+
+        if (result.isDone()) {
+            return;
+        }
+        for (ByteBuffer item : items) {
+            if (out.size() + (long) item.remaining() > maxSize) {
+                tooBig();
+                return;
+            }
+            byte[] bytes = new byte[item.remaining()];
+            item.get(bytes);
+            out.writeBytes(bytes);
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        result.complete(out.toByteArray());
+    }
+
+    protected void tooBig() {
+        subscription.cancel();
+        result.complete(null);
+    }
+
+}
@@ -0,0 +1,369 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServlet.RemoteBlobInfo;
+
+/**
+ * A remote blob being downloaded by {@link NuxeoAppServlet}, that other requests for the same blob can share instead
+ * of downloading it again (single flight).
+ * <br>
+ * The first request ("leader", see {@code lead}) sends the remote request. The remote body is written to a temporary
+ * file by an {@link InFlightDownloadWriter}, at its own pace: it does not depend on any browser, a slow or
+ * disconnected browser (the leader's one included) never slows down nor fails the others. The leader's browser and
+ * the requests arriving meanwhile ("followers", see {@code join}) read that file while it grows, and wait for the
+ * writer when they reach its end: blocking ({@code awaitInfo}, {@code copyTo}) or not ({@code whenStarted},
+ * {@code pollData}). The file is deleted when the writer and all the readers are done.
+ * <br>
+ * Keys are the keys of the blob cache ({@link org.nuxeo.labs.multi.nuxeoapps.cache.BlobDiskCache#buildKey}), so a
+ * blob is shared only between requests of the same effective user.
+ *
+ * @since 2025
+ */
+public class InFlightDownload {
+
+    private static final Logger log = LogManager.getLogger(InFlightDownload.class);
+
+    // A follower gives up if the leader receives nothing for this long
+    public static final long MAX_WAIT_MS = 60 * 1000;
+
+    protected static final Map<String, InFlightDownload> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    protected final String key;
+
+    // Guarded by this
+    protected RemoteBlobInfo info;
+
+    protected Path file;
+
+    protected long available = 0;
+
+    protected boolean ended = false;
+
+    protected boolean complete = false;
+
+    // The writer and the readers still using the file
+    protected int holders = 1;
+
+    // Called once, at the next change, see whenStarted and pollData
+    protected List<Runnable> listeners = new ArrayList<>();
+
+    protected InFlightDownload(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @param key
+     * @return a new download, that the caller must run (then {@code end} and {@code release}), null if the same blob is
+     *         already being downloaded. Readers (the leader's browser included) must {@code hold} it
+     * @since 2025
+     */
+    public static InFlightDownload lead(String key) {
+
+        InFlightDownload download = new InFlightDownload(key);
+        return IN_FLIGHT.putIfAbsent(key, download) == null ? download : null;
+    }
+
+    /**
+     * @param key
+     * @return the download of the same blob that is running, null if none. The caller must {@code release} it
+     * @since 2025
+     */
+    public static InFlightDownload join(String key) {
+
+        InFlightDownload download = IN_FLIGHT.get(key);
+        return download != null && download.hold() ? download : null;
+    }
+
+    /**
+     * One more reader of the file. The caller must {@code release} it
+     *
+     * @return false if the download is over
+     * @since 2025
+     */
+    public synchronized boolean hold() {
+
+        if (ended) {
+            return false;
+        }
+        holders += 1;
+        return true;
+    }
+
+    public static int getInFlightCount() {
+        return IN_FLIGHT.size();
+    }
+
+    // ==================== Writer
+    /**
+     * The remote app is sending the blob, that is written to {@code file}
+     *
+     * @since 2025
+     */
+    public void start(RemoteBlobInfo info, Path file) {
+
+        List<Runnable> toCall;
+        synchronized (this) {
+            this.info = info;
+            this.file = file;
+            toCall = changed();
+        }
+        toCall.forEach(Runnable::run);
+    }
+
+    /**
+     * @param written, total bytes written to the file (and flushed)
+     * @since 2025
+     */
+    public void progress(long written) {
+
+        List<Runnable> toCall;
+        synchronized (this) {
+            available = written;
+            toCall = changed();
+        }
+        toCall.forEach(Runnable::run);
+    }
+
+    /**
+     * The download is over. Can be called several times, the first call wins.
+     *
+     * @param complete, true if the whole blob was received
+     * @since 2025
+     */
+    public void end(boolean complete) {
+
+        List<Runnable> toCall;
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            this.complete = complete && (info == null || info.length < 0 || available == info.length);
+            IN_FLIGHT.remove(key, this);
+            toCall = changed();
+        }
+        toCall.forEach(Runnable::run);
+    }
+
+    /**
+     * Ends the download (not complete) if nobody but the writer uses it anymore. No new reader can join it then.
+     *
+     * @return true if ended
+     * @since 2025
+     */
+    public boolean abandonIfUnused() {
+
+        synchronized (this) {
+            if (ended || holders > 1) {
+                return false;
+            }
+        }
+        end(false);
+        return true;
+    }
+
+    /**
+     * Wakes up the blocked readers, and returns the listeners to call (outside the lock)
+     */
+    protected List<Runnable> changed() {
+
+        notifyAll();
+        if (listeners.isEmpty()) {
+            return List.of();
+        }
+        List<Runnable> toCall = listeners;
+        listeners = new ArrayList<>();
+        return toCall;
+    }
+
+    /**
+     * Called once by the leader (after {@code end}) and by each follower. The file is deleted by the last one.
+     *
+     * @since 2025
+     */
+    public void release() {
+
+        Path toDelete = null;
+        synchronized (this) {
+            holders -= 1;
+            if (holders == 0) {
+                toDelete = file;
+            }
+        }
+        if (toDelete != null) {
+            try {
+                Files.deleteIfExists(toDelete);
+            } catch (IOException e) {
+                log.debug("Cannot delete " + toDelete, e);
+            }
+        }
+    }
+
+    // ==================== Reader
+    /**
+     * Waits until the leader received the headers of the remote response.
+     *
+     * @return the info of the blob, null if there is nothing to share (redirect, error, failure, ...)
+     * @throws InterruptedException
+     * @since 2025
+     */
+    public synchronized RemoteBlobInfo awaitInfo() throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + MAX_WAIT_MS;
+        while (file == null && !ended) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+
+        return file == null ? null : info;
+    }
+
+    /**
+     * Copies the blob to {@code out}, as it is received by the leader. Call {@code awaitInfo} first.
+     *
+     * @param out
+     * @return the number of bytes copied
+     * @throws IOException if the download fails or stalls
+     * @throws InterruptedException
+     * @since 2025
+     */
+    public long copyTo(OutputStream out) throws IOException, InterruptedException {
+
+        byte[] buffer = new byte[NuxeoAppServlet.STREAM_BUFFER_SIZE];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long position = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (true) {
+                long limit = awaitData(position);
+                if (limit == position) {
+                    // Ended, all read
+                    return position;
+                }
+                while (position < limit) {
+                    byteBuffer.clear();
+                    byteBuffer.limit((int) Math.min(buffer.length, limit - position));
+                    int read = channel.read(byteBuffer, position);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of the shared download");
+                    }
+                    out.write(buffer, 0, read);
+                    position += read;
+                }
+            }
+        }
+    }
+
+    /**
+     * Non-blocking version of {@code awaitInfo}
+     *
+     * @param listener, called once when the leader received the headers of the remote response (or failed)
+     * @return false if it is already the case (then {@code listener} is not kept): call {@code getInfo}
+     * @since 2025
+     */
+    public synchronized boolean whenStarted(Runnable listener) {
+
+        if (file != null || ended) {
+            return false;
+        }
+        listeners.add(listener);
+        return true;
+    }
+
+    /**
+     * @return the info of the blob, null if there is nothing to share, or not yet
+     * @since 2025
+     */
+    public synchronized RemoteBlobInfo getInfo() {
+        return file == null ? null : info;
+    }
+
+    /**
+     * @return the file being written, null if not started
+     * @since 2025
+     */
+    public synchronized Path getFile() {
+        return file;
+    }
+
+    /**
+     * Non-blocking version of {@code awaitData}
+     *
+     * @param position, bytes already read
+     * @param listener, called once when more bytes are available or the download ended, if there is nothing to read
+     *            now
+     * @return the number of bytes available, equal to {@code position} when the download is complete, -1 if nothing
+     *         to read now (then {@code listener} will be called)
+     * @throws IOException if the download failed
+     * @since 2025
+     */
+    public synchronized long pollData(long position, Runnable listener) throws IOException {
+
+        if (available > position) {
+            return available;
+        }
+        if (!ended) {
+            listeners.add(listener);
+            return -1;
+        }
+        if (!complete) {
+            throw new IOException("The shared download failed");
+        }
+
+        return available;
+    }
+
+    /**
+     * @return the number of bytes available, equal to {@code position} when the download is complete
+     */
+    protected synchronized long awaitData(long position) throws IOException, InterruptedException {
+
+        long deadline = System.currentTimeMillis() + MAX_WAIT_MS;
+        while (available <= position && !ended) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IOException("Timeout waiting for the shared download");
+            }
+            wait(remaining);
+        }
+        if (available <= position && !complete) {
+            throw new IOException("The shared download failed");
+        }
+
+        return available;
+    }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServlet.RemoteBlobInfo;
+
+/**
+ * Sends the file of an {@link InFlightDownload} to an async servlet response, as it grows, with no thread waiting:
+ * the output is non-blocking (see {@link AsyncBlobStreamer}), and when the whole file was sent, the writing resumes
+ * when the download progresses (see {@link InFlightDownload#pollData}).
+ * <br>
+ * Used for the leader's browser (the headers were relayed already) and for the followers. A follower whose leader
+ * had nothing to share (redirect, error, ...) is dispatched again, and handled as if there was no shared download.
+ * <br>
+ * Callbacks come from the container threads and the threads writing the download, they are serialized by
+ * synchronizing on this instance.
+ *
+ * @since 2025
+ */
+public class InFlightDownloadStreamer implements WriteListener, AsyncListener {
+
+    private static final Logger log = LogManager.getLogger(InFlightDownloadStreamer.class);
+
+    protected final AsyncContext asyncContext;
+
+    protected final HttpServletResponse response;
+
+    protected final InFlightDownload flight;
+
+    protected final byte[] buffer = new byte[NuxeoAppServlet.STREAM_BUFFER_SIZE];
+
+    protected ServletOutputStream out;
+
+    protected FileChannel channel;
+
+    protected long position = 0;
+
+    protected long available = 0;
+
+    protected boolean finished = false;
+
+    /**
+     * The caller must have {@code hold} the download, it is released when the response is complete
+     */
+    public InFlightDownloadStreamer(AsyncContext asyncContext, InFlightDownload flight) {
+        this.asyncContext = asyncContext;
+        this.response = (HttpServletResponse) asyncContext.getResponse();
+        this.flight = flight;
+    }
+
+    /**
+     * For a follower: sends the headers once the leader received them, then the blob
+     *
+     * @since 2025
+     */
+    public void startFollower() {
+
+        if (!flight.whenStarted(this::onFlightStarted)) {
+            onFlightStarted();
+        }
+    }
+
+    /**
+     * For the leader: the headers were relayed already, sends the blob
+     *
+     * @since 2025
+     */
+    public synchronized void startLeader() {
+        startStreaming();
+    }
+
+    protected synchronized void onFlightStarted() {
+
+        if (finished) {
+            return;
+        }
+        RemoteBlobInfo info = flight.getInfo();
+        if (info == null) {
+            // Nothing to share
+            finished = true;
+            flight.release();
+            try {
+                asyncContext.dispatch();
+            } catch (IllegalStateException e) {
+                // Timed out meanwhile
+                log.debug("Cannot dispatch the request again", e);
+            }
+            return;
+        }
+
+        NuxeoAppServlet.setBlobHeaders(response, info.mimeType, info.length, info.filename);
+        response.setHeader("Accept-Ranges", "bytes");
+        startStreaming();
+    }
+
+    protected void startStreaming() {
+
+        if (finished) {
+            return;
+        }
+        try {
+            channel = FileChannel.open(flight.getFile(), StandardOpenOption.READ);
+            out = response.getOutputStream();
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        // The container calls onWritePossible as soon as it can write
+        out.setWriteListener(this);
+    }
+
+    // ==================== WriteListener (servlet output)
+    @Override
+    public synchronized void onWritePossible() {
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        fail(t);
+    }
+
+    // ==================== AsyncListener
+    @Override
+    public void onComplete(AsyncEvent event) {
+        // Normally already done, unless the container completed the request itself
+        synchronized (this) {
+            if (!finished) {
+                finished = true;
+                close();
+            }
+        }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        fail(new IOException("Timeout while sending the shared download"));
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        fail(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // Nothing
+    }
+
+    // ==================== Streaming
+    /**
+     * Writes the file while the output is ready, up to what was downloaded so far
+     */
+    protected synchronized void drain() {
+
+        if (finished || out == null) {
+            return;
+        }
+
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            while (out.isReady()) {
+                if (position == available) {
+                    available = flight.pollData(position, this::drain);
+                    if (available < 0) {
+                        // Called again when the download progresses
+                        available = position;
+                        return;
+                    }
+                    if (available == position) {
+                        // Complete, all sent
+                        finish();
+                        return;
+                    }
+                }
+
+                byteBuffer.clear();
+                byteBuffer.limit((int) Math.min(buffer.length, available - position));
+                int read = channel.read(byteBuffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of the shared download");
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+            // Not ready: the container calls onWritePossible when it is
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    protected synchronized void finish() {
+
+        if (finished) {
+            return;
+        }
+        finished = true;
+        close();
+        completeQuietly();
+    }
+
+    protected void fail(Throwable t) {
+
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            // Only this browser: the download goes on for the others
+            close();
+        }
+
+        try {
+            if (response.isCommitted()) {
+                log.debug("Failed to send the shared download", t);
+            } else {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        "Failed to get the blob from remote Nuxeo App: " + (t == null ? "" : t.getMessage()));
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.debug("Failed to send the error", e);
+        } finally {
+            completeQuietly();
+        }
+    }
+
+    protected void close() {
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            channel = null;
+        }
+        flight.release();
+    }
+
+    protected void completeQuietly() {
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            // Already completed (timeout, ...)
+        }
+    }
+
+}
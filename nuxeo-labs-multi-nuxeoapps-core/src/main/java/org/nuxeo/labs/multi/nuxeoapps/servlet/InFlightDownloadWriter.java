@@ -0,0 +1,224 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServlet.RemoteBlobInfo;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServlet.RemoteBlobRequest;
+
+/**
+ * Writes the remote body of an {@link InFlightDownload} to its file, as fast as the remote app (and the
+ * {@link BandwidthLimiter}) allows, whatever the readers do. Runs in the HttpClient threads, the throttling waits are
+ * scheduled, no thread sleeps.
+ * <br>
+ * Once complete, the blob is put in the cache if it can be. If every reader is gone and the blob can't be cached, the
+ * download is cancelled.
+ *
+ * @since 2025
+ */
+public class InFlightDownloadWriter implements Flow.Subscriber<List<ByteBuffer>> {
+
+    private static final Logger log = LogManager.getLogger(InFlightDownloadWriter.class);
+
+    protected final RemoteBlobRequest remoteRequest;
+
+    protected final InFlightDownload flight;
+
+    protected final RemoteBlobInfo info;
+
+    protected final Path file;
+
+    protected FileChannel channel;
+
+    protected Flow.Subscription subscription;
+
+    protected long written = 0;
+
+    protected boolean finished = false;
+
+    protected InFlightDownloadWriter(RemoteBlobRequest remoteRequest, InFlightDownload flight, RemoteBlobInfo info,
+            Path file) throws IOException {
+        this.remoteRequest = remoteRequest;
+        this.flight = flight;
+        this.info = info;
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Relays the headers of the remote response to the leader's {@code resp} and, if there is a blob, starts writing it
+     * to the shared file. {@code flight} is ended and released by the writer (or here, if there is nothing to share).
+     *
+     * @return the info of the blob, null if there is no body to send (redirect, error, ...)
+     * @since 2025
+     */
+    public static RemoteBlobInfo start(RemoteBlobRequest remoteRequest, InFlightDownload flight,
+            HttpResponse<Flow.Publisher<List<ByteBuffer>>> remoteResponse, HttpServletResponse resp)
+            throws IOException {
+
+        boolean started = false;
+        Path file = null;
+        RemoteBlobInfo info;
+        InFlightDownloadWriter writer;
+        try {
+            info = NuxeoAppServlet.relayRemoteResponseHeaders(remoteRequest, remoteResponse.statusCode(),
+                    remoteResponse.headers(), resp);
+            if (info == null) {
+                return null;
+            }
+            file = Files.createTempFile("multinxapps-", ".bin");
+            writer = new InFlightDownloadWriter(remoteRequest, flight, info, file);
+            started = true;
+        } finally {
+            if (!started) {
+                AsyncBlobStreamer.discard(remoteResponse.body());
+                deleteQuietly(file);
+                flight.end(false);
+                flight.release();
+            }
+        }
+
+        flight.start(info, file);
+        remoteResponse.body().subscribe(writer);
+        return info;
+    }
+
+    protected static void deleteQuietly(Path file) {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.debug("Cannot delete " + file, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onSubscribe(Flow.Subscription subscription) {
+
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public synchronized void onNext(List<ByteBuffer> items) {
+
+        if (finished) {
+            return;
+        }
+
+        long length = 0;
+        try {
+            for (ByteBuffer item : items) {
+                while (item.hasRemaining()) {
+                    length += channel.write(item);
+                }
+            }
+        } catch (IOException e) {
+            onError(e);
+            return;
+        }
+        written += length;
+        flight.progress(written);
+
+        // Nobody to send it to, nothing to cache
+        if (!info.cacheable && flight.abandonIfUnused()) {
+            log.debug("Shared download of <" + remoteRequest.remotePath + "> cancelled, no more readers");
+            subscription.cancel();
+            close(false);
+            return;
+        }
+
+        long delay = remoteRequest.throttle == null ? 0 : remoteRequest.throttle.reserve(length);
+        if (delay > 0) {
+            BandwidthLimiter.schedule(this::requestNext, delay);
+        } else {
+            subscription.request(1);
+        }
+    }
+
+    protected synchronized void requestNext() {
+        if (!finished) {
+            subscription.request(1);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+
+        log.debug("Failed to download the blob from remote Nuxeo App <" + remoteRequest.remoteApp.getAppName() + ">",
+                t);
+        synchronized (this) {
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            close(false);
+        }
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        close(true);
+    }
+
+    /**
+     * Ends the shared download, caches the blob if complete, then releases the file
+     */
+    protected void close(boolean received) {
+
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        boolean complete = false;
+        try {
+            channel.close();
+            complete = received && (info.length < 0 || written == info.length);
+        } catch (IOException e) {
+            log.warn("Cannot write the temporary file of the shared download", e);
+        }
+        // The readers can finish while the blob is being cached
+        flight.end(complete);
+        try {
+            if (complete && info.cacheable) {
+                remoteRequest.cacheBlob(file, info);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to cache the blob from remote Nuxeo App <" + remoteRequest.remoteApp.getAppName() + ">",
+                    e);
+        } finally {
+            flight.release();
+        }
+    }
+
+}
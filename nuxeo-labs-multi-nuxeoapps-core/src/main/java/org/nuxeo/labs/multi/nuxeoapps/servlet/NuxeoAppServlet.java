@@ -20,10 +20,24 @@ package org.nuxeo.labs.multi.nuxeoapps.servlet;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URLEncoder;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.DispatcherType;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -32,16 +46,56 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.impl.blob.JSONBlob;
 import org.nuxeo.labs.multi.nuxeoapps.NuxeoApp;
+import org.nuxeo.labs.multi.nuxeoapps.cache.BlobDiskCache;
+import org.nuxeo.labs.multi.nuxeoapps.cache.SpillingBuffer;
 import org.nuxeo.labs.multi.nuxeoapps.service.MultiNuxeoAppService;
 import org.nuxeo.runtime.api.Framework;
 
 /**
+ * Proxies the blobs of the remote apps.
+ * <br>
+ * By default, a blob that is not in the local cache is streamed: the remote response is piped to the browser with a
+ * fixed-size buffer, no temporary file is needed, and the browser receives the first bytes as soon as the remote server
+ * sends them. Small blobs (that fit in the blob cache) are also written to a file while streamed, to populate the
+ * cache. Set {@code nuxeo.multinuxeoapps.servlet.streaming=false} to download the blob first, as it was done before.
+ * <br>
+ * {@code Range} and {@code If-Range} are forwarded to the remote app, and its {@code 206 Partial Content} response is
+ * relayed, so a video can be seeked without downloading it all. Range requests are always streamed and never served
+ * from, nor stored in, the blob cache. {@code HEAD} is supported: the headers of the remote response are returned, the
+ * remote download is aborted before its body is read.
+ * <br>
+ * Blob URLs built by the plugin carry the digest of the blob (see {@link NuxeoAppServletUtils#DIGEST_PARAMETER}), so
+ * their content never changes: a matching {@code If-None-Match} gets a 304 without calling the remote app. The strong
+ * ETag (the digest) and the long-lived {@code Cache-Control: private, immutable} are sent only with content verified
+ * against the digest (see {@link NuxeoAppServletUtils#matchesDigest}), never with the digest the browser sent.
+ * <br>
+ * When the container and all the filters of the request support it, the streaming is asynchronous (see
+ * {@link AsyncBlobStreamer}): the container thread is released as soon as the remote request is sent, and no thread
+ * waits for the remote app or the browser. Set {@code nuxeo.multinuxeoapps.servlet.async=false} to disable.
+ * <br>
+ * Concurrent requests for the same blob (same effective user) share one remote download, see
+ * {@link InFlightDownload}. Set {@code nuxeo.multinuxeoapps.servlet.singleFlight=false} to disable.
+ * <br>
+ * The bandwidth of the streamed blobs can be limited per app and per user, see {@link BandwidthLimiter}.
+ * <br>
+ * {@code POST /multiNxApps/@thumbnails}, with {@code {"urls": ["/nuxeo/multiNxApps/...", ...]}}, returns several
+ * thumbnails in one call, see {@link ThumbnailBatchFetcher}.
+ * <br>
+ * Images can be resized and re-encoded locally, with {@code nxAppsSize} (max. width/height), {@code nxAppsFormat} and
+ * {@code nxAppsQuality} in the query string, see {@link ThumbnailResizer}.
+ * <br>
+ * The servlet never uses the repository: it runs without a transaction (see request-controller-contrib.xml), so a
+ * long transfer does not hold a transaction nor a database connection. The service and the caches it uses do not need
+ * one.
  * 
  * @since 2023
  */
@@ -53,11 +107,104 @@ public class NuxeoAppServlet extends HttpServlet  {
     public static final String MULTI_NUXEO_APPS_SERVLET_KEY = "multiNxApps";
 
     public static final String MULTI_NUXEO_APPS_SERVLET_BLOB_URL_KEY = "nxAppsUrl";
+
+    public static final String THUMBNAILS_BATCH_PATH = "/@thumbnails";
+
+    // Maximum size of the JSON body of a thumbnails batch request
+    protected static final int MAX_BATCH_REQUEST_SIZE = 1024 * 1024;
+
+    public static final String STREAMING_PROPERTY = "nuxeo.multinuxeoapps.servlet.streaming";
+
+    public static final String ASYNC_PROPERTY = "nuxeo.multinuxeoapps.servlet.async";
+
+    public static final String SINGLE_FLIGHT_PROPERTY = "nuxeo.multinuxeoapps.servlet.singleFlight";
+
+    // In seconds. The whole transfer must be done within this time (big videos, slow clients...)
+    public static final String ASYNC_TIMEOUT_PROPERTY = "nuxeo.multinuxeoapps.servlet.asyncTimeout";
+
+    public static final long DEFAULT_ASYNC_TIMEOUT = 3600;
+
+    protected static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // One year, the maximum recommended by RFC 9111
+    protected static final String IMMUTABLE_CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+    // Query parameters handled by the servlet, not sent to the remote app
+    protected static final List<String> LOCAL_QUERY_PARAMETERS = List.of(NuxeoAppServletUtils.DIGEST_PARAMETER,
+            ThumbnailResizer.SIZE_PARAMETER, ThumbnailResizer.FORMAT_PARAMETER, ThumbnailResizer.QUALITY_PARAMETER);
+
+    // Request headers sent to the remote app
+    protected static final List<String> FORWARDED_REQUEST_HEADERS = List.of("Range", "If-Range");
+
+    // Response headers sent back to the browser, in addition to the content type/length/disposition
+    protected static final List<String> FORWARDED_RESPONSE_HEADERS = List.of("Accept-Ranges", "Content-Range", "ETag",
+            "Last-Modified");
     
     private static final Logger log = LogManager.getLogger(NuxeoAppServlet.class);
-    
+
     @Override
     public void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        handleBlobRequest(req, resp, true);
+    }
+
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        handleBlobRequest(req, resp, false);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+
+        if (!THUMBNAILS_BATCH_PATH.equals(req.getPathInfo())) {
+            resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+
+        byte[] bodyBytes = req.getContentLengthLong() > MAX_BATCH_REQUEST_SIZE ? null
+                : req.getInputStream().readNBytes(MAX_BATCH_REQUEST_SIZE + 1);
+        if (bodyBytes == null || bodyBytes.length > MAX_BATCH_REQUEST_SIZE) {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        List<String> urls = new ArrayList<>();
+        try {
+            String body = new String(bodyBytes, StandardCharsets.UTF_8);
+            JSONArray urlsArray = new JSONObject(body).getJSONArray("urls");
+            for (int i = 0; i < urlsArray.length(); i++) {
+                String url = urlsArray.optString(i, null);
+                if (StringUtils.isNotBlank(url)) {
+                    urls.add(url);
+                }
+            }
+        } catch (JSONException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expecting {\"urls\": [...]}");
+            return;
+        }
+
+        MultiNuxeoAppService service = Framework.getService(MultiNuxeoAppService.class);
+        ThumbnailBatchFetcher fetcher = new ThumbnailBatchFetcher(service);
+        JSONObject entries;
+        try {
+            entries = fetcher.fetch(urls);
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("entries", entries);
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getOutputStream().write(result.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected void handleBlobRequest(HttpServletRequest req, HttpServletResponse resp, boolean sendBody)
+            throws ServletException, IOException {
         
         // My reminder: the path that comes after /multiNxApps/ is available directly via request.getPathInfo()
         // So if the full url is https://myserver.com/nuxeo/multiNxApps/myApp/distant/url/with/slashes,
@@ -87,38 +234,606 @@ public class NuxeoAppServlet extends HttpServlet  {
             throw new NuxeoException("Application <" + appName + "> not found.");
         }
         
+        // The digest and the image variant are for us (blob cache, resizing), not for the remote server
         String queryString = req.getQueryString();
+        String digest = NuxeoAppServletUtils.getDigestParameter(queryString);
+        ThumbnailResizer.Variant variant = ThumbnailResizer.Variant.fromQueryString(queryString);
+        queryString = NuxeoAppServletUtils.removeParameters(queryString, LOCAL_QUERY_PARAMETERS);
         if(StringUtils.isNotBlank(queryString)) {
             remotePath += "?" + queryString;
         }
+
+        // Same digest => same content, the browser already has it. It got this ETag only with content verified
+        // against the digest (see sendBlob calls), never with content streamed from the remote app
+        String etag = NuxeoAppServletUtils.buildETag(digest, variant == null ? null : variant.getId());
+        if (NuxeoAppServletUtils.matchesETag(req.getHeader("If-None-Match"), etag)) {
+            setImmutableCacheHeaders(resp, etag);
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (variant != null) {
+            // Built locally, a Range request just gets the whole image
+            sendImageVariant(service, remoteApp, remotePath, digest, etag, variant, resp, sendBody);
+            return;
+        }
               
-        // Call distant server
+        // Call distant server (or get it from the local cache)
+        Map<String, String> requestHeaders = getForwardedRequestHeaders(req);
+        if (etag != null && etag.equals(requestHeaders.get("If-Range"))) {
+            // Our ETag, unknown to the remote app. The content can't have changed, the range always applies
+            requestHeaders.remove("If-Range");
+        }
+        boolean isRangeRequest = requestHeaders.containsKey("Range");
+        boolean streaming = isRangeRequest || !"false".equals(Framework.getProperty(STREAMING_PROPERTY, "true"));
+        boolean async = req.isAsyncSupported() && !"false".equals(Framework.getProperty(ASYNC_PROPERTY, "true"));
+        // Resolved now, the async processing runs in other threads. Same user the thumbnails are prefetched for
+        // after a search (see ThumbnailPrefetcher), so they are found in the cache
+        String userName = NuxeoAppServletUtils.getBlobUser(remoteApp);
         Blob blob;
+        // Cached entries with a digest were verified when cached
+        boolean verified = true;
         try {
-            blob = remoteApp.getBlob(remotePath, true);
+            if (streaming) {
+                blob = service.getCachedRemoteBlob(remoteApp, userName, remotePath, digest, true);
+                // Same blob already being downloaded for the same user: share it. Not when dispatched again by
+                // InFlightDownloadStreamer, the download had nothing to share
+                InFlightDownload flight = null;
+                if (blob == null && sendBody && !isRangeRequest && req.getDispatcherType() != DispatcherType.ASYNC
+                        && !"false".equals(Framework.getProperty(SINGLE_FLIGHT_PROPERTY, "true"))) {
+                    String flightKey = BlobDiskCache.buildKey(appName, userName, digest, remotePath);
+                    InFlightDownload running = InFlightDownload.join(flightKey);
+                    if (running == null) {
+                        flight = InFlightDownload.lead(flightKey);
+                    } else if (async) {
+                        sendInFlightDownloadAsync(running, req, resp);
+                        return;
+                    } else if (sendInFlightDownload(running, resp)) {
+                        return;
+                    } else {
+                        // Nothing to share (redirect, error...), the redirect may be cached now
+                        blob = service.getCachedRemoteBlob(remoteApp, userName, remotePath, digest, true);
+                    }
+                }
+                // A cached file is a full blob, a range request needs the remote app (unless it's a redirect)
+                if (blob == null || (isRangeRequest && !(blob instanceof JSONBlob))) {
+                    BandwidthLimiter limiter = remoteApp.getBandwidthLimiter();
+                    BandwidthLimiter.Throttle throttle = limiter == null ? null
+                            : limiter.getThrottle(BandwidthLimiter.TrafficClass.of(remotePath), userName);
+                    RemoteBlobRequest remoteRequest = new RemoteBlobRequest(service, remoteApp, userName,
+                            remotePath, digest, requestHeaders, throttle);
+                    if (flight != null) {
+                        leadInFlightDownload(remoteRequest, flight, req, resp, async);
+                    } else if (sendBody && async) {
+                        // HEAD does not transfer anything, no need for async
+                        streamRemoteBlobAsync(remoteRequest, req, resp);
+                    } else {
+                        streamRemoteBlob(remoteRequest, resp, sendBody);
+                    }
+                    return;
+                }
+            } else {
+                blob = service.getCachedRemoteBlob(remoteApp, userName, remotePath, digest, true);
+                if (blob == null) {
+                    blob = service.getRemoteBlob(remoteApp, remotePath, digest, true);
+                    verified = matchesDigest(blob, digest);
+                }
+            }
         } catch (IOException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (resp.isCommitted()) {
+                // Headers already sent (client disconnected, remote stream broken, ...)
+                log.debug("Failed to stream the blob from remote Nuxeo App <" + appName + ">", e);
+                return;
+            }
             resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to get the blob from remote Nuxeo App: " + e.getMessage());
             return;
         }
         
         if(blob instanceof JSONBlob) {
             // We do have a redirect
-            JSONObject redirectInfoJson = new JSONObject(blob.getString());
-            resp.setStatus(redirectInfoJson.getInt("status"));
-            resp.setHeader("Location", redirectInfoJson.getString("location"));
+            sendRedirectInfo(new JSONObject(blob.getString()), resp);
+            return;
+        }
+
+        try {
+            // Range requests are forwarded to the remote app
+            sendBlob(blob, verified ? etag : null, true, resp, sendBody);
+        } finally {
+            SpillingBuffer.deleteIfSpilled(blob);
+        }
+    }
+
+    /**
+     * Sends the image resized as asked by {@code variant} (see {@link ThumbnailResizer}). The resized image is cached
+     * with its own key. The original is sent when it can't be resized (not an image, already small enough, ...).
+     */
+    protected void sendImageVariant(MultiNuxeoAppService service, NuxeoApp remoteApp, String remotePath, String digest,
+            String etag, ThumbnailResizer.Variant variant, HttpServletResponse resp, boolean sendBody)
+            throws IOException {
+
+        String userName = NuxeoAppServletUtils.getBlobUser(remoteApp);
+        String variantPath = variant.getCachePath(remotePath);
+        String variantDigest = variant.getCacheDigest(digest);
+
+        Path file = null;
+        Blob original = null;
+        try {
+            Blob blob = service.getCachedRemoteBlob(remoteApp, userName, variantPath, variantDigest, false);
+            // A variant of a verifiable digest is cached only when its original was verified
+            boolean verified = blob != null;
+            if (blob == null) {
+                // Downloaded (and cached) in full, redirects are followed: the pixels are needed
+                original = service.getCachedRemoteBlob(remoteApp, userName, remotePath, digest, false);
+                verified = original != null;
+                if (original == null) {
+                    original = service.getRemoteBlob(remoteApp, remotePath, digest, false);
+                    verified = matchesDigest(original, digest);
+                }
+                blob = original;
+                if (StringUtils.startsWith(blob.getMimeType(), "image/")) {
+                    file = Files.createTempFile("multinxapps-", ".bin");
+                    String mimeType = null;
+                    try (InputStream in = blob.getStream(); OutputStream out = Files.newOutputStream(file)) {
+                        mimeType = ThumbnailResizer.resize(in, variant, out);
+                    } catch (IOException | RuntimeException e) {
+                        log.debug("Cannot resize " + remotePath + ", sending the original", e);
+                    }
+                    if (mimeType != null) {
+                        blob = Blobs.createBlob(file.toFile(), mimeType, null,
+                                variant.renameFile(blob.getFilename()));
+                        if (service.canCacheBlob(blob.getLength())
+                                && (verified || !NuxeoAppServletUtils.isVerifiableDigest(digest))) {
+                            service.cacheRemoteBlob(remoteApp, userName, variantPath, variantDigest, blob);
+                        }
+                    }
+                }
+            }
+
+            sendBlob(blob, verified ? etag : null, false, resp, sendBody);
+
+        } catch (IOException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (resp.isCommitted()) {
+                log.debug("Failed to send the image from remote Nuxeo App <" + remoteApp.getAppName() + ">", e);
+                return;
+            }
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Failed to get the blob from remote Nuxeo App: " + e.getMessage());
+        } finally {
+            if (file != null) {
+                // Linked or copied in the cache if cached
+                Files.deleteIfExists(file);
+            }
+            SpillingBuffer.deleteIfSpilled(original);
+        }
+    }
+
+    /**
+     * @return true if the content of {@code blob} matches {@code digest}
+     */
+    protected static boolean matchesDigest(Blob blob, String digest) throws IOException {
+
+        if (blob == null || blob instanceof JSONBlob || !NuxeoAppServletUtils.isVerifiableDigest(digest)) {
+            return false;
+        }
+        try (InputStream in = blob.getStream()) {
+            return NuxeoAppServletUtils.matchesDigest(in, digest);
+        }
+    }
+
+    /**
+     * @param etag, the digest ETag, only if the content of {@code blob} was verified against the digest
+     */
+    protected static void sendBlob(Blob blob, String etag, boolean acceptRanges, HttpServletResponse resp,
+            boolean sendBody) throws IOException {
+
+        setBlobHeaders(resp, blob.getMimeType(), blob.getLength(), blob.getFilename());
+        if (acceptRanges) {
+            resp.setHeader("Accept-Ranges", "bytes");
+        }
+        if (etag != null) {
+            setImmutableCacheHeaders(resp, etag);
+        }
+        if (!sendBody) {
+            return;
+        }
+
+        // Stream out
+        try (InputStream in = blob.getStream();
+             var out = resp.getOutputStream()) {
+            in.transferTo(out);
+        }
+    }
+
+    /**
+     * What is needed to stream a remote blob, resolved in the container thread
+     */
+    protected static class RemoteBlobRequest {
+
+        protected final MultiNuxeoAppService service;
+
+        protected final NuxeoApp remoteApp;
+
+        // The effective user on the remote app
+        protected final String userName;
+
+        protected final String remotePath;
+
+        protected final String digest;
+
+        protected final Map<String, String> requestHeaders;
+
+        // If not null, the stream is slowed down, see BandwidthLimiter
+        protected final BandwidthLimiter.Throttle throttle;
+
+        protected RemoteBlobRequest(MultiNuxeoAppService service, NuxeoApp remoteApp, String userName,
+                String remotePath, String digest, Map<String, String> requestHeaders,
+                BandwidthLimiter.Throttle throttle) {
+            this.service = service;
+            this.remoteApp = remoteApp;
+            this.userName = userName;
+            this.remotePath = remotePath;
+            this.digest = digest;
+            this.requestHeaders = requestHeaders;
+            this.throttle = throttle;
+        }
+
+        /**
+         * Deletes the temporary file, if any
+         */
+        protected void deleteFile(Path file) throws IOException {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        /**
+         * Puts the file in the cache (it is linked or copied, the caller deletes it)
+         */
+        protected void cacheBlob(Path file, RemoteBlobInfo info) throws IOException {
+            service.cacheRemoteBlob(remoteApp, userName, remotePath, digest,
+                    Blobs.createBlob(file.toFile(), info.mimeType, null, info.filename));
+        }
+    }
+
+    /**
+     * The blob sent by the remote app, as found in its response headers
+     */
+    protected static class RemoteBlobInfo {
+
+        protected final String mimeType;
+
+        protected final long length;
+
+        protected final String filename;
+
+        // Whole blob of known length, small enough for the blob cache
+        protected final boolean cacheable;
+
+        protected RemoteBlobInfo(String mimeType, long length, String filename, boolean cacheable) {
+            this.mimeType = mimeType;
+            this.length = length;
+            this.filename = filename;
+            this.cacheable = cacheable;
+        }
+    }
+
+    /**
+     * Pipes the remote response to {@code resp}. Redirects are relayed (and cached), errors are relayed with their
+     * status. If the blob can be cached, it is also written to a temporary file, that is put in the cache once the
+     * whole blob was received.
+     * <br>
+     * If {@code sendBody} is false (HEAD), only the headers are relayed, and the remote body is not read.
+     */
+    protected void streamRemoteBlob(RemoteBlobRequest remoteRequest, HttpServletResponse resp, boolean sendBody)
+            throws IOException, InterruptedException {
+
+        // Closing the body before reading it aborts the remote download (HEAD, errors)
+        HttpResponse<InputStream> remoteResponse = remoteRequest.remoteApp.getBlobStream(remoteRequest.remotePath,
+                remoteRequest.requestHeaders);
+
+        try (InputStream in = remoteResponse.body()) {
+            RemoteBlobInfo info = relayRemoteResponseHeaders(remoteRequest, remoteResponse.statusCode(),
+                    remoteResponse.headers(), resp);
+            if (info == null || !sendBody) {
+                return;
+            }
+
+            Path cacheFile = info.cacheable ? Files.createTempFile("multinxapps-", ".bin") : null;
+            try {
+                long copied;
+                try (OutputStream out = resp.getOutputStream();
+                        OutputStream fileOut = cacheFile == null ? null : Files.newOutputStream(cacheFile)) {
+                    copied = copy(in, out, fileOut, remoteRequest.throttle);
+                }
+                if (info.cacheable && copied == info.length) {
+                    remoteRequest.cacheBlob(cacheFile, info);
+                }
+            } finally {
+                // Linked or copied in the cache if cached
+                remoteRequest.deleteFile(cacheFile);
+            }
+        }
+    }
+
+    /**
+     * Sends the remote request of a download other requests can share (see {@link InFlightDownload}). The remote body
+     * is written to a file by an {@link InFlightDownloadWriter}, that this request sends to its browser as the others
+     * do: if this browser is slow or goes away, the download goes on for the others.
+     */
+    protected void leadInFlightDownload(RemoteBlobRequest remoteRequest, InFlightDownload flight,
+            HttpServletRequest req, HttpServletResponse resp, boolean async) throws IOException, InterruptedException {
+
+        // The browser of the leader is one of the readers, the download itself is released by the writer
+        flight.hold();
+        if (async) {
+            leadInFlightDownloadAsync(remoteRequest, flight, req, resp);
             return;
         }
 
-        // 4) Write blob to HttpServletResponse with correct headers
-        String mimeType = blob.getMimeType();
+        boolean writerStarted = false;
+        try {
+            HttpResponse<Flow.Publisher<List<ByteBuffer>>> remoteResponse;
+            try {
+                remoteResponse = remoteRequest.remoteApp.getBlobAsync(remoteRequest.remotePath,
+                        remoteRequest.requestHeaders).get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            writerStarted = true;
+            RemoteBlobInfo info = InFlightDownloadWriter.start(remoteRequest, flight, remoteResponse, resp);
+            if (info != null) {
+                try (OutputStream out = resp.getOutputStream()) {
+                    flight.copyTo(out);
+                }
+            }
+        } finally {
+            if (!writerStarted) {
+                flight.end(false);
+                flight.release();
+            }
+            flight.release();
+        }
+    }
+
+    /**
+     * Same as {@code leadInFlightDownload}, but asynchronous, see {@link InFlightDownloadStreamer}
+     */
+    protected void leadInFlightDownloadAsync(RemoteBlobRequest remoteRequest, InFlightDownload flight,
+            HttpServletRequest req, HttpServletResponse resp) {
+
+        AsyncContext asyncContext;
+        try {
+            asyncContext = startAsync(req, resp);
+        } catch (RuntimeException e) {
+            flight.end(false);
+            flight.release();
+            flight.release();
+            throw e;
+        }
+        // From now on, the streamer releases the reader, the writer releases the download
+        InFlightDownloadStreamer streamer = new InFlightDownloadStreamer(asyncContext, flight);
+        asyncContext.addListener(streamer);
+
+        // The authorization header is obtained here, in the container thread
+        try {
+            remoteRequest.remoteApp.getBlobAsync(remoteRequest.remotePath, remoteRequest.requestHeaders)
+                                   .whenComplete((remoteResponse, error) -> {
+                                       if (error != null) {
+                                           flight.end(false);
+                                           flight.release();
+                                           streamer.fail(error);
+                                           return;
+                                       }
+                                       try {
+                                           if (InFlightDownloadWriter.start(remoteRequest, flight, remoteResponse,
+                                                   resp) == null) {
+                                               // Redirect, error... already relayed
+                                               streamer.finish();
+                                           } else {
+                                               streamer.startLeader();
+                                           }
+                                       } catch (IOException | RuntimeException e) {
+                                           streamer.fail(e);
+                                       }
+                                   });
+        } catch (RuntimeException e) {
+            flight.end(false);
+            flight.release();
+            streamer.fail(e);
+        }
+    }
+
+    /**
+     * Sends a blob downloaded by another request (see {@link InFlightDownload}), as it is received. Blocks the calling
+     * thread, see {@code sendInFlightDownloadAsync} for the async mode.
+     *
+     * @return false if the other request had no blob to share, nothing was sent
+     */
+    protected boolean sendInFlightDownload(InFlightDownload flight, HttpServletResponse resp)
+            throws IOException, InterruptedException {
+
+        try {
+            RemoteBlobInfo info = flight.awaitInfo();
+            if (info == null) {
+                return false;
+            }
+
+            setBlobHeaders(resp, info.mimeType, info.length, info.filename);
+            resp.setHeader("Accept-Ranges", "bytes");
+            try (OutputStream out = resp.getOutputStream()) {
+                flight.copyTo(out);
+            }
+            return true;
+        } finally {
+            flight.release();
+        }
+    }
+
+    /**
+     * Same as {@code sendInFlightDownload}, but asynchronous: no thread waits for the download, see
+     * {@link InFlightDownloadStreamer}. If there is nothing to share, the request is dispatched again.
+     */
+    protected void sendInFlightDownloadAsync(InFlightDownload flight, HttpServletRequest req,
+            HttpServletResponse resp) {
+
+        AsyncContext asyncContext;
+        try {
+            asyncContext = startAsync(req, resp);
+        } catch (RuntimeException e) {
+            flight.release();
+            throw e;
+        }
+        InFlightDownloadStreamer streamer = new InFlightDownloadStreamer(asyncContext, flight);
+        asyncContext.addListener(streamer);
+        streamer.startFollower();
+    }
+
+    /**
+     * Same as {@code streamRemoteBlob}, but asynchronous: returns once the remote request is sent, the response is
+     * completed by an {@link AsyncBlobStreamer}.
+     */
+    protected void streamRemoteBlobAsync(RemoteBlobRequest remoteRequest, HttpServletRequest req,
+            HttpServletResponse resp) {
+
+        AsyncContext asyncContext = startAsync(req, resp);
+        AsyncBlobStreamer streamer = new AsyncBlobStreamer(asyncContext, remoteRequest);
+        asyncContext.addListener(streamer);
+
+        // The authorization header is obtained here, in the container thread
+        try {
+            remoteRequest.remoteApp.getBlobAsync(remoteRequest.remotePath, remoteRequest.requestHeaders)
+                                   .whenComplete(streamer::onRemoteResponse);
+        } catch (RuntimeException e) {
+            streamer.onError(e);
+        }
+    }
+
+    protected static AsyncContext startAsync(HttpServletRequest req, HttpServletResponse resp) {
+
+        long timeout = Long.parseLong(
+                Framework.getProperty(ASYNC_TIMEOUT_PROPERTY, String.valueOf(DEFAULT_ASYNC_TIMEOUT)));
+        AsyncContext asyncContext = req.startAsync(req, resp);
+        asyncContext.setTimeout(timeout * 1000);
+        return asyncContext;
+    }
+
+    /**
+     * Relays the status and headers of the remote response to {@code resp}. Redirects are relayed (and cached), errors
+     * are relayed with their status.
+     * 
+     * @return the info of the blob to send, null if there is no body to send
+     */
+    protected static RemoteBlobInfo relayRemoteResponseHeaders(RemoteBlobRequest remoteRequest, int status,
+            HttpHeaders headers, HttpServletResponse resp) throws IOException {
+
+        if (NuxeoAppServletUtils.isRedirect(status)) {
+            String location = headers.firstValue("Location").orElse(null);
+            if (location == null) {
+                resp.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Redirect without Location header");
+                return null;
+            }
+            JSONObject redirectInfoJson = new JSONObject();
+            redirectInfoJson.put("status", status);
+            redirectInfoJson.put("location", location);
+            remoteRequest.service.cacheRemoteBlob(remoteRequest.remoteApp, remoteRequest.userName,
+                    remoteRequest.remotePath, remoteRequest.digest,
+                    Blobs.createJSONBlob(redirectInfoJson.toString()));
+            sendRedirectInfo(redirectInfoJson, resp);
+            return null;
+        }
+
+        if (status == HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+            // Content-Range tells the browser the actual size
+            headers.firstValue("Content-Range").ifPresent(value -> resp.setHeader("Content-Range", value));
+            resp.setStatus(status);
+            return null;
+        }
+
+        boolean partial = status == HttpServletResponse.SC_PARTIAL_CONTENT;
+        if (status != HttpServletResponse.SC_OK && !partial) {
+            resp.sendError(status, "Failed to get the blob from remote Nuxeo App: HTTP " + status);
+            return null;
+        }
+
+        String mimeType = headers.firstValue("Content-Type").orElse(null);
+        long length = headers.firstValueAsLong("Content-Length").orElse(-1);
+        String filename = NuxeoAppServletUtils.extractFileName(headers.firstValue("Content-Disposition").orElse(null),
+                remoteRequest.remotePath);
+        resp.setStatus(status);
+        setBlobHeaders(resp, mimeType, length, filename);
+        for (String name : FORWARDED_RESPONSE_HEADERS) {
+            if (!resp.containsHeader(name)) {
+                headers.firstValue(name).ifPresent(value -> resp.setHeader(name, value));
+            }
+        }
+
+        // Only full blobs whose length is known, a chunked response could be of any size
+        boolean cacheable = !partial && remoteRequest.service.canCacheBlob(length);
+
+        return new RemoteBlobInfo(mimeType, length, filename, cacheable);
+    }
+
+    /**
+     * Copies {@code in} to {@code out} with a fixed-size buffer, and to {@code copyOut} if not null. Waits after each
+     * buffer if {@code throttle} asks so.
+     * 
+     * @return the number of bytes copied
+     */
+    protected static long copy(InputStream in, OutputStream out, OutputStream copyOut,
+            BandwidthLimiter.Throttle throttle) throws IOException, InterruptedException {
+
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (copyOut != null) {
+                copyOut.write(buffer, 0, read);
+            }
+            total += read;
+            out.write(buffer, 0, read);
+            if (throttle != null) {
+                throttle.acquire(read);
+            }
+        }
+
+        return total;
+    }
+
+    protected static Map<String, String> getForwardedRequestHeaders(HttpServletRequest req) {
+
+        Map<String, String> headers = new HashMap<>();
+        for (String name : FORWARDED_REQUEST_HEADERS) {
+            String value = req.getHeader(name);
+            if (StringUtils.isNotBlank(value)) {
+                headers.put(name, value);
+            }
+        }
+
+        return headers;
+    }
+
+    protected static void sendRedirectInfo(JSONObject redirectInfoJson, HttpServletResponse resp) {
+        resp.setStatus(redirectInfoJson.getInt("status"));
+        resp.setHeader("Location", redirectInfoJson.getString("location"));
+    }
+
+    protected static void setBlobHeaders(HttpServletResponse resp, String mimeType, long length, String filename) {
+
         if (mimeType == null || mimeType.isBlank()) {
             mimeType = "application/octet-stream";
         }
         resp.setContentType(mimeType);
 
-        resp.setHeader("Content-Length", Long.toString(blob.getLength()));
+        if (length >= 0) {
+            resp.setHeader("Content-Length", Long.toString(length));
+        }
 
-        String filename = blob.getFilename();
         if (StringUtils.isNotBlank(filename)) {
             // Content-Disposition (RFC 5987 for UTF-8 filename*)
             String ascii = filename.replace("\"", "");
@@ -129,15 +844,15 @@ public class NuxeoAppServlet extends HttpServlet  {
             );
         }
 
-        // Optional: weak caching hint (tune as needed)
-        //resp.setHeader("Cache-Control", "no-cache, no-store, must-revalidate");
-        //resp.setHeader("Pragma", "no-cache");
+    }
 
-        // Stream out
-        try (InputStream in = blob.getStream();
-             var out = resp.getOutputStream()) {
-            in.transferTo(out);
-        }
+    /**
+     * Only for successful responses of digest-addressed URLs: errors and redirects (presigned URLs expire) must not be
+     * cached for a year.
+     */
+    protected static void setImmutableCacheHeaders(HttpServletResponse resp, String etag) {
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Cache-Control", IMMUTABLE_CACHE_CONTROL);
     }
 
 }
@@ -18,18 +18,29 @@
  */
 package org.nuxeo.labs.multi.nuxeoapps.servlet;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Strings;
-import org.json.JSONArray;
 import org.json.JSONObject;
-import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.labs.multi.nuxeoapps.AbstractNuxeoApp;
 import org.nuxeo.labs.multi.nuxeoapps.NuxeoAppCurrent;
 
 /**
@@ -44,6 +55,31 @@ public class NuxeoAppServletUtils {
 
     public static String SERVLET_BLOB_URL_PROPERTY = "blobUrl";
 
+    /**
+     * Query parameter added to the servlet URL of a blob, holding its digest. Used by the blob cache, removed before
+     * calling the remote server.
+     */
+    public static final String DIGEST_PARAMETER = "nxAppsDigest";
+
+    // ^https?:// → http:// or https://, [^/]+ → host (and optional port), /[^/]+ → first path segment (like /nuxeo or
+    // /other), (.*) → everything after that
+    protected static final Pattern URL_PREFIX_PATTERN = Pattern.compile("^https?://[^/]+/[^/]+(.*)$",
+            Pattern.CASE_INSENSITIVE);
+
+    protected static final Pattern FILENAME_UTF8_PATTERN = Pattern.compile("filename\\*=['\"]?UTF-8''([^'\"]+)");
+
+    protected static final Pattern FILENAME_PATTERN = Pattern.compile("filename=['\"]?([^'\"]+)");
+
+    protected static final Pattern HEX_DIGEST_PATTERN = Pattern.compile("[0-9a-fA-F]+");
+
+    // Hex digest length => algorithm. MD5 is the Nuxeo default
+    protected static final Map<Integer, String> DIGEST_ALGORITHMS = Map.of(32, "MD5", 40, "SHA-1", 64, "SHA-256", 128,
+            "SHA-512");
+
+    // X-Amz-Date/X-Goog-Date of a presigned URL, see getPresignedUrlExpiration
+    protected static final DateTimeFormatter SIGNED_URL_DATE_FORMAT = DateTimeFormatter.ofPattern(
+            "yyyyMMdd'T'HHmmss'Z'");
+
     /**
      * Check if the object has the regular Blob fields
      * 
@@ -72,6 +108,8 @@ public class NuxeoAppServletUtils {
      * <br>
      * If {@code isLocalNuxeo} is <code>true</code>, the method looks for for possible "http://fake-url.nuxeo.com" set
      * by the RenderingContext, but does not set the url to the servlet
+     * <br>
+     * Apps rewrite their results with their own {@link BlobUrlRewriter}, built once.
      * 
      * @param oneDocObj
      * @param appName
@@ -79,73 +117,7 @@ public class NuxeoAppServletUtils {
      * @since 2023
      */
     public static void updateBlobUrlsInProperties(JSONObject oneDocObj, String appName, boolean isLocalNuxeo) {
-
-        if (oneDocObj == null) {
-            return;
-        }
-
-        String type = oneDocObj.optString("entity-type", null);
-        if (!StringUtils.equals("document", type)) {
-            throw new NuxeoException("Expecting a \"document\" entity-type");
-        }
-
-        // ====================> properties
-        JSONObject properties = oneDocObj.optJSONObject("properties", null);
-        if (properties != null) {
-
-            Deque<Object> stack = new ArrayDeque<>();
-            stack.push(properties);
-
-            while (!stack.isEmpty()) {
-                Object node = stack.pop();
-
-                if (node instanceof JSONObject obj) {
-                    // If this object has a non-null "blobUrl", process it now
-                    if (NuxeoAppServletUtils.looksLikeABlob(obj)) {
-                        String blobUrl = obj.optString("blobUrl", null);
-                        if (blobUrl != null) {
-                            if (isLocalNuxeo) {
-                                blobUrl = NuxeoAppCurrent.updateUrlIfNeeded(blobUrl);
-                            } else {
-                                blobUrl = NuxeoAppServletUtils.buildMultiNxAppUrl(blobUrl, appName);
-                            }
-                            obj.put(NuxeoAppServlet.MULTI_NUXEO_APPS_SERVLET_BLOB_URL_KEY, blobUrl);
-                        }
-                    }
-                    // Traverse children
-                    for (String key : obj.keySet()) {
-                        Object child = obj.opt(key);
-                        if (child instanceof JSONObject || child instanceof JSONArray) {
-                            stack.push(child);
-                        }
-                    }
-
-                } else if (node instanceof JSONArray arr) {
-                    for (int i = 0; i < arr.length(); i++) {
-                        Object child = arr.opt(i);
-                        if (child instanceof JSONObject || child instanceof JSONArray) {
-                            stack.push(child);
-                        }
-                    }
-                }
-            }
-        }
-
-        // ====================> contextParameters and thumbnail
-        JSONObject ctxParams = oneDocObj.optJSONObject("contextParameters", null);
-        if (ctxParams != null) {
-            JSONObject thumbnailObj = ctxParams.optJSONObject("thumbnail", null);
-            if (thumbnailObj != null) {
-                String url = thumbnailObj.getString("url");
-                if (isLocalNuxeo) {
-                    url = NuxeoAppCurrent.updateUrlIfNeeded(url);
-                } else {
-                    url = NuxeoAppServletUtils.buildMultiNxAppUrl(url, appName);
-                }
-                thumbnailObj.put(NuxeoAppServlet.MULTI_NUXEO_APPS_SERVLET_BLOB_URL_KEY, url);
-            }
-        }
-
+        new BlobUrlRewriter(appName, null, isLocalNuxeo).rewriteDocument(oneDocObj);
     }
 
     /**
@@ -163,13 +135,7 @@ public class NuxeoAppServletUtils {
             return "";
         }
 
-        // Regex:
-        // ^https?:// → match http:// or https://
-        // [^/]+ → host (and optional port)
-        // /[^/]+ → first path segment (like /nuxeo or /other)
-        // (.*) → capture everything after that
-        Pattern pattern = Pattern.compile("^https?://[^/]+/[^/]+(.*)$", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(url.trim());
+        Matcher matcher = URL_PREFIX_PATTERN.matcher(url.trim());
 
         if (matcher.find()) {
             return matcher.group(1);
@@ -220,6 +186,196 @@ public class NuxeoAppServletUtils {
         return url;
     }
 
+    /**
+     * Adds the {@link #DIGEST_PARAMETER} query parameter to {@code url}. Returns {@code url} unchanged if
+     * {@code digest} is blank.
+     * 
+     * @param url
+     * @param digest
+     * @return the url
+     * @since 2025
+     */
+    public static String addDigestParameter(String url, String digest) {
+
+        if (StringUtils.isBlank(digest)) {
+            return url;
+        }
+
+        return url + (url.indexOf('?') < 0 ? "?" : "&") + DIGEST_PARAMETER + "="
+                + URLEncoder.encode(digest, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param queryString
+     * @return the value of the {@link #DIGEST_PARAMETER} parameter, null if not found
+     * @since 2025
+     */
+    public static String getDigestParameter(String queryString) {
+        return getParameter(queryString, DIGEST_PARAMETER);
+    }
+
+    /**
+     * @param queryString
+     * @param name
+     * @return the (decoded) value of the first {@code name} parameter, null if not found
+     * @since 2025
+     */
+    public static String getParameter(String queryString, String name) {
+
+        if (StringUtils.isBlank(queryString)) {
+            return null;
+        }
+
+        for (String param : queryString.split("&")) {
+            if (param.startsWith(name + "=")) {
+                return URLDecoder.decode(param.substring(name.length() + 1), StandardCharsets.UTF_8);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Decodes the path of a URL as {@code HttpServletRequest#getPathInfo} does: only the "%xx" sequences, a "+" is not
+     * a space in a path
+     *
+     * @param path
+     * @return the decoded path
+     * @since 2025
+     */
+    public static String decodePath(String path) {
+        return path == null ? null : URLDecoder.decode(path.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The ETag must be sent only with content verified against the digest (see {@code matchesDigest}): the digest
+     * comes from the client.
+     *
+     * @param digest
+     * @return the strong ETag (quoted) for a blob of this digest, null if the digest can't be verified
+     * @since 2025
+     */
+    public static String buildETag(String digest) {
+        return buildETag(digest, null);
+    }
+
+    /**
+     * @param digest
+     * @param suffix, identifies content derived from the blob (resized image, ...), can be null
+     * @return the strong ETag (quoted), null if the digest can't be verified
+     * @since 2025
+     */
+    public static String buildETag(String digest, String suffix) {
+
+        if (!isVerifiableDigest(digest)) {
+            return null;
+        }
+
+        return "\"" + digest + (suffix == null ? "" : "-" + suffix) + "\"";
+    }
+
+    /**
+     * @param digest
+     * @return true if the algorithm of {@code digest} is known (hex MD5, SHA-1, SHA-256 or SHA-512), so the content
+     *         can be checked with {@code matchesDigest}
+     * @since 2025
+     */
+    public static boolean isVerifiableDigest(String digest) {
+        return digest != null && DIGEST_ALGORITHMS.containsKey(digest.length())
+                && HEX_DIGEST_PATTERN.matcher(digest).matches();
+    }
+
+    /**
+     * @param in, read until the end, not closed
+     * @param digest
+     * @return true if the content of {@code in} has this digest, false if not or if the digest can't be verified
+     * @throws IOException
+     * @since 2025
+     */
+    public static boolean matchesDigest(InputStream in, String digest) throws IOException {
+
+        if (in == null || !isVerifiableDigest(digest)) {
+            return false;
+        }
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHMS.get(digest.length()));
+        } catch (NoSuchAlgorithmException e) {
+            // All of them are always available in the JDK
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[NuxeoAppServlet.STREAM_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            md.update(buffer, 0, read);
+        }
+
+        return HexFormat.of().formatHex(md.digest()).equalsIgnoreCase(digest);
+    }
+
+    /**
+     * Weak comparison, as required for If-None-Match (RFC 9110): "W/" prefixes are ignored. "*" is not a match, it is
+     * meaningless for a GET of a proxied blob
+     * 
+     * @param ifNoneMatch, the header value, can list several ETags
+     * @param etag
+     * @return true if {@code etag} is listed in {@code ifNoneMatch}
+     * @since 2025
+     */
+    public static boolean matchesETag(String ifNoneMatch, String etag) {
+
+        if (StringUtils.isBlank(ifNoneMatch) || etag == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param queryString
+     * @return {@code queryString} without the {@link #DIGEST_PARAMETER} parameter
+     * @since 2025
+     */
+    public static String removeDigestParameter(String queryString) {
+        return removeParameters(queryString, List.of(DIGEST_PARAMETER));
+    }
+
+    /**
+     * @param queryString
+     * @param names
+     * @return {@code queryString} without the parameters in {@code names}
+     * @since 2025
+     */
+    public static String removeParameters(String queryString, List<String> names) {
+
+        if (StringUtils.isBlank(queryString) || names.stream().noneMatch(queryString::contains)) {
+            return queryString;
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (String param : queryString.split("&")) {
+            if (!param.isEmpty() && names.stream().noneMatch(name -> param.startsWith(name + "="))) {
+                if (result.length() > 0) {
+                    result.append('&');
+                }
+                result.append(param);
+            }
+        }
+
+        return result.toString();
+    }
+
     /**
      * Not strictly speaking a BlobUrlUtils, but strangely enough, I did not find
      * a Nuxeo or Java API doing this in a single call
@@ -233,12 +389,12 @@ public class NuxeoAppServletUtils {
 
         if (StringUtils.isNotBlank(contentDisposition)) {
             // Try filename*= (RFC 5987) first
-            Matcher m = Pattern.compile("filename\\*=['\"]?UTF-8''([^'\"]+)").matcher(contentDisposition);
+            Matcher m = FILENAME_UTF8_PATTERN.matcher(contentDisposition);
             if (m.find()) {
-                return java.net.URLDecoder.decode(m.group(1), StandardCharsets.UTF_8);
+                return URLDecoder.decode(m.group(1), StandardCharsets.UTF_8);
             }
             // Fallback to plain filename=
-            m = Pattern.compile("filename=['\"]?([^'\"]+)").matcher(contentDisposition);
+            m = FILENAME_PATTERN.matcher(contentDisposition);
             if (m.find()) {
                 return m.group(1);
             }
@@ -254,6 +410,65 @@ public class NuxeoAppServletUtils {
         return "downloaded-file";
     }
 
+    /**
+     * Returns the expiration of a presigned URL, as returned by a remote Nuxeo using direct download. Handles:
+     * <ul>
+     * <li>AWS S3 SigV4 (X-Amz-Date + X-Amz-Expires) and Google Cloud Storage (X-Goog-Date + X-Goog-Expires)</li>
+     * <li>AWS S3 SigV2 and CloudFront (Expires, epoch seconds)</li>
+     * <li>Azure SAS (se, ISO date)</li>
+     * </ul>
+     * 
+     * @param url
+     * @return the expiration in epoch milliseconds, -1 if not found in the URL
+     * @since 2025
+     */
+    public static long getPresignedUrlExpiration(String url) {
+
+        if (StringUtils.isBlank(url)) {
+            return -1;
+        }
+        int idx = url.indexOf('?');
+        if (idx < 0) {
+            return -1;
+        }
+
+        String date = null;
+        String expires = null;
+        String epochExpires = null;
+        String azureExpiry = null;
+        for (String param : url.substring(idx + 1).split("&")) {
+            int eq = param.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String name = param.substring(0, eq);
+            String value = URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8);
+            switch (name) {
+            case "X-Amz-Date", "X-Goog-Date" -> date = value;
+            case "X-Amz-Expires", "X-Goog-Expires" -> expires = value;
+            case "Expires" -> epochExpires = value;
+            case "se" -> azureExpiry = value;
+            }
+        }
+
+        try {
+            if (date != null && expires != null) {
+                Instant signedAt = LocalDateTime.parse(date, SIGNED_URL_DATE_FORMAT).toInstant(ZoneOffset.UTC);
+                return signedAt.plusSeconds(Long.parseLong(expires)).toEpochMilli();
+            }
+            if (epochExpires != null) {
+                return Long.parseLong(epochExpires) * 1000;
+            }
+            if (azureExpiry != null) {
+                return Instant.parse(azureExpiry).toEpochMilli();
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            // Not the format we expect, let the caller decide
+        }
+
+        return -1;
+    }
+
     /**
      * Yet another utility
      * 
@@ -265,4 +480,18 @@ public class NuxeoAppServletUtils {
         return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
     }
 
+    /**
+     * The effective user of the blob requests of the current user, also used for the thumbnails prefetched after a
+     * search (see {@link org.nuxeo.labs.multi.nuxeoapps.service.ThumbnailPrefetcher})
+     *
+     * @param app
+     * @return the user to download the blobs of {@code app} as, and to cache them for
+     * @since 2025
+     */
+    public static String getBlobUser(AbstractNuxeoApp app) {
+
+        NuxeoPrincipal principal = NuxeoPrincipal.getCurrent();
+        return app.getBlobUser(principal == null ? null : principal.getName());
+    }
+
 }
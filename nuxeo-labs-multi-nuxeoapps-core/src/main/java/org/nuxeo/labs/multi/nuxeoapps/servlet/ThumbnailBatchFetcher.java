@@ -0,0 +1,527 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.impl.blob.JSONBlob;
+import org.nuxeo.labs.multi.nuxeoapps.NuxeoApp;
+import org.nuxeo.labs.multi.nuxeoapps.service.MultiNuxeoAppService;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Gets a list of thumbnails (or any small blob) proxied by {@link NuxeoAppServlet} in one call, so a page of results
+ * does not trigger one proxy request per thumbnail.
+ * <br>
+ * The URLs are the ones set by {@link NuxeoAppServletUtils#updateBlobUrlsInProperties} ("nxAppsUrl"). Cached blobs are
+ * returned immediately, the others are grouped per remote app: the apps are called in parallel, with at most
+ * {@code nuxeo.multinuxeoapps.thumbnailBatch.concurrencyPerApp} requests at a time per app, using the blob
+ * HttpClient of the app (see {@link NuxeoApp#getBlobHttpClient}). Fetched blobs are put in the blob cache.
+ * <br>
+ * The result is a JSONObject with one entry per URL:
+ * <ul>
+ * <li>{@code {"status": 200, "mimeType": "image/png", "length": 1234, "dataUri": "data:image/png;base64,..."}}</li>
+ * <li>{@code {"status": 302, "location": "https://..."}} for a redirect (blob stored in S3, ...)</li>
+ * <li>{@code {"status": 404, "message": "..."}} for an error. 413 means the blob is too big to be inlined, the browser
+ * should use the URL</li>
+ * </ul>
+ * URLs with a size ({@link ThumbnailResizer#SIZE_PARAMETER}) get the resized image, also cached. Their original is
+ * downloaded only up to {@code nuxeo.multinuxeoapps.thumbnailBatch.maxOriginalSizeKB}, the others only up to the
+ * inlined size: bigger blobs are not read (413).
+ *
+ * @since 2025
+ */
+public class ThumbnailBatchFetcher {
+
+    private static final Logger log = LogManager.getLogger(ThumbnailBatchFetcher.class);
+
+    public static final String MAX_URLS_PROPERTY = "nuxeo.multinuxeoapps.thumbnailBatch.maxUrls";
+
+    public static final int DEFAULT_MAX_URLS = 200;
+
+    public static final String MAX_ITEM_SIZE_PROPERTY = "nuxeo.multinuxeoapps.thumbnailBatch.maxItemSizeKB";
+
+    public static final int DEFAULT_MAX_ITEM_SIZE_KB = 256;
+
+    // Originals downloaded to be resized (nxAppsSize) can be bigger than an inlined item, up to this size
+    public static final String MAX_ORIGINAL_SIZE_PROPERTY = "nuxeo.multinuxeoapps.thumbnailBatch.maxOriginalSizeKB";
+
+    public static final int DEFAULT_MAX_ORIGINAL_SIZE_KB = 10 * 1024;
+
+    public static final String CONCURRENCY_PER_APP_PROPERTY = "nuxeo.multinuxeoapps.thumbnailBatch.concurrencyPerApp";
+
+    // As browsers do, per host
+    public static final int DEFAULT_CONCURRENCY_PER_APP = 6;
+
+    public static final String TIMEOUT_PROPERTY = "nuxeo.multinuxeoapps.thumbnailBatch.timeout";
+
+    public static final int DEFAULT_TIMEOUT = 60;
+
+    protected static final String SERVLET_PATH = "/" + NuxeoAppServlet.MULTI_NUXEO_APPS_SERVLET_KEY + "/";
+
+    protected final MultiNuxeoAppService service;
+
+    protected final int maxUrls;
+
+    protected final long maxItemSize;
+
+    protected final long maxOriginalSize;
+
+    protected final int concurrencyPerApp;
+
+    protected final long timeoutSeconds;
+
+    /**
+     * A blob to get from a remote app, the request is built in the calling thread
+     */
+    protected static class PendingFetch {
+
+        protected final String url;
+
+        protected final NuxeoApp app;
+
+        // The effective user on the remote app
+        protected final String userName;
+
+        protected final String remotePath;
+
+        protected final String digest;
+
+        // Null if the original is returned
+        protected final ThumbnailResizer.Variant variant;
+
+        protected final HttpRequest request;
+
+        protected PendingFetch(String url, NuxeoApp app, String userName, String remotePath, String digest,
+                ThumbnailResizer.Variant variant, HttpRequest request) {
+            this.url = url;
+            this.app = app;
+            this.userName = userName;
+            this.remotePath = remotePath;
+            this.digest = digest;
+            this.variant = variant;
+            this.request = request;
+        }
+    }
+
+    public ThumbnailBatchFetcher(MultiNuxeoAppService service) {
+        this(service, Integer.parseInt(Framework.getProperty(MAX_URLS_PROPERTY, String.valueOf(DEFAULT_MAX_URLS))),
+                Long.parseLong(Framework.getProperty(MAX_ITEM_SIZE_PROPERTY, String.valueOf(DEFAULT_MAX_ITEM_SIZE_KB)))
+                        * 1024,
+                Long.parseLong(
+                        Framework.getProperty(MAX_ORIGINAL_SIZE_PROPERTY, String.valueOf(DEFAULT_MAX_ORIGINAL_SIZE_KB)))
+                        * 1024,
+                Integer.parseInt(
+                        Framework.getProperty(CONCURRENCY_PER_APP_PROPERTY, String.valueOf(DEFAULT_CONCURRENCY_PER_APP))),
+                Long.parseLong(Framework.getProperty(TIMEOUT_PROPERTY, String.valueOf(DEFAULT_TIMEOUT))));
+    }
+
+    /**
+     * @param service
+     * @param maxUrls
+     * @param maxItemSize, in bytes
+     * @param maxOriginalSize, in bytes
+     * @param concurrencyPerApp
+     * @param timeoutSeconds
+     * @since 2025
+     */
+    public ThumbnailBatchFetcher(MultiNuxeoAppService service, int maxUrls, long maxItemSize, long maxOriginalSize,
+            int concurrencyPerApp, long timeoutSeconds) {
+
+        this.service = service;
+        this.maxUrls = maxUrls;
+        this.maxItemSize = maxItemSize;
+        this.maxOriginalSize = Math.max(maxItemSize, maxOriginalSize);
+        this.concurrencyPerApp = Math.max(1, concurrencyPerApp);
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * Must be called in the request thread (the current user is needed to build the remote requests)
+     *
+     * @param urls
+     * @return a JSONObject, with one entry per URL (see class doc)
+     * @throws InterruptedException
+     * @since 2025
+     */
+    public JSONObject fetch(List<String> urls) throws InterruptedException {
+
+        if (urls.size() > maxUrls) {
+            throw new IllegalArgumentException("Too many URLs: " + urls.size() + ", max is " + maxUrls);
+        }
+
+        Map<String, JSONObject> results = new ConcurrentHashMap<>();
+        Map<String, List<PendingFetch>> toFetchPerApp = new LinkedHashMap<>();
+
+        for (String url : new LinkedHashSet<>(urls)) {
+            try {
+                PendingFetch fetch = resolve(url, results);
+                if (fetch != null) {
+                    toFetchPerApp.computeIfAbsent(fetch.app.getAppName(), k -> new ArrayList<>()).add(fetch);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.debug("Failed to resolve " + url, e);
+                results.put(url, errorResult(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage()));
+            }
+        }
+
+        Lanes lanes = new Lanes(results);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (List<PendingFetch> fetches : toFetchPerApp.values()) {
+            futures.add(fetchFromApp(fetches, lanes));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            // Not expected, each fetch handles its own errors
+            log.warn("Failed to fetch thumbnails", e);
+        } catch (TimeoutException e) {
+            lanes.cancel();
+        }
+
+        JSONObject result = new JSONObject();
+        for (String url : urls) {
+            JSONObject oneResult = results.get(url);
+            result.put(url, oneResult != null ? oneResult
+                    : errorResult(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Timeout"));
+        }
+
+        return result;
+    }
+
+    /**
+     * Puts the result of {@code url} in {@code results} if it is an error or is cached
+     *
+     * @return the fetch to do, null if nothing to fetch
+     */
+    protected PendingFetch resolve(String url, Map<String, JSONObject> results) throws IOException {
+
+        int idx = url == null ? -1 : url.indexOf(SERVLET_PATH);
+        if (idx < 0) {
+            results.put(url, errorResult(HttpServletResponse.SC_BAD_REQUEST, "Not a Multi Nuxeo Apps URL"));
+            return null;
+        }
+
+        // Same parsing as NuxeoAppServlet, from "/appName/remote/path?query". The path is decoded as getPathInfo()
+        // is, so the remote path (and the cache key) is the one the servlet gets for the same URL
+        String path = url.substring(idx + SERVLET_PATH.length() - 1);
+        String queryString = null;
+        int queryIdx = path.indexOf('?');
+        if (queryIdx >= 0) {
+            queryString = path.substring(queryIdx + 1);
+            path = path.substring(0, queryIdx);
+        }
+        path = NuxeoAppServletUtils.decodePath(path);
+        FileUtils.checkPathTraversal(path);
+
+        path = path.substring(1);
+        int slashIdx = path.indexOf('/');
+        if (slashIdx < 0) {
+            results.put(url, errorResult(HttpServletResponse.SC_BAD_REQUEST, "No remote path in the url."));
+            return null;
+        }
+        String appName = path.substring(0, slashIdx);
+        String remotePath = path.substring(slashIdx);
+
+        NuxeoApp app = service.getNuxeoApp(appName);
+        if (app == null) {
+            results.put(url,
+                    errorResult(HttpServletResponse.SC_NOT_FOUND, "Application <" + appName + "> not found."));
+            return null;
+        }
+
+        String digest = NuxeoAppServletUtils.getDigestParameter(queryString);
+        ThumbnailResizer.Variant variant = ThumbnailResizer.Variant.fromQueryString(queryString);
+        queryString = NuxeoAppServletUtils.removeParameters(queryString, NuxeoAppServlet.LOCAL_QUERY_PARAMETERS);
+        if (StringUtils.isNotBlank(queryString)) {
+            remotePath += "?" + queryString;
+        }
+
+        // Same user as NuxeoAppServlet, and as the prefetch after a search (see ThumbnailPrefetcher)
+        String userName = NuxeoAppServletUtils.getBlobUser(app);
+        if (variant != null) {
+            Blob cachedVariant = service.getCachedRemoteBlob(app, userName, variant.getCachePath(remotePath),
+                    variant.getCacheDigest(digest), false);
+            if (cachedVariant != null) {
+                results.put(url, cachedResult(cachedVariant));
+                return null;
+            }
+        }
+        Blob cached = service.getCachedRemoteBlob(app, userName, remotePath, digest, true);
+        if (cached instanceof JSONBlob) {
+            // The browser gets the original from the redirect
+            results.put(url, redirectResult(new JSONObject(cached.getString())));
+            return null;
+        }
+        if (cached != null) {
+            if (variant == null) {
+                results.put(url, cachedResult(cached));
+            } else if (cached.getLength() > maxOriginalSize) {
+                results.put(url, tooBigResult());
+            } else {
+                try (InputStream in = cached.getStream()) {
+                    results.put(url, blobResult(app, userName, remotePath, digest, variant, in.readAllBytes(),
+                            cached.getMimeType(), cached.getFilename()));
+                }
+            }
+            return null;
+        }
+
+        return new PendingFetch(url, app, userName, remotePath, digest, variant,
+                app.newBlobRequest(remotePath, null, userName));
+    }
+
+    /**
+     * The state shared by the lanes of one {@code fetch}: once cancelled (timeout), the running requests are aborted and
+     * no lane sends another one
+     */
+    protected static class Lanes {
+
+        protected final Map<String, JSONObject> results;
+
+        protected final AtomicBoolean cancelled = new AtomicBoolean();
+
+        protected final Set<CompletableFuture<?>> requests = ConcurrentHashMap.newKeySet();
+
+        protected Lanes(Map<String, JSONObject> results) {
+            this.results = results;
+        }
+
+        protected void cancel() {
+            cancelled.set(true);
+            requests.forEach(request -> request.cancel(true));
+        }
+    }
+
+    /**
+     * Runs {@code concurrencyPerApp} "lanes", each one sending the next pending request when its previous one is done
+     */
+    protected CompletableFuture<Void> fetchFromApp(List<PendingFetch> fetches, Lanes lanes) {
+
+        HttpClient client = fetches.get(0).app.getBlobHttpClient();
+        Queue<PendingFetch> queue = new ConcurrentLinkedQueue<>(fetches);
+
+        int count = Math.min(concurrencyPerApp, fetches.size());
+        List<CompletableFuture<Void>> laneFutures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            laneFutures.add(runLane(client, queue, lanes));
+        }
+
+        return CompletableFuture.allOf(laneFutures.toArray(new CompletableFuture[0]));
+    }
+
+    protected CompletableFuture<Void> runLane(HttpClient client, Queue<PendingFetch> queue, Lanes lanes) {
+
+        PendingFetch fetch = lanes.cancelled.get() ? null : queue.poll();
+        if (fetch == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Bounded: the batch accepts any blob URL, a big file must not be read in memory
+        CompletableFuture<HttpResponse<byte[]>> request = client.sendAsync(fetch.request,
+                BoundedBodySubscriber.bodyHandler(getMaxDownloadSize(fetch)));
+        lanes.requests.add(request);
+        if (lanes.cancelled.get()) {
+            // Cancelled meanwhile
+            request.cancel(true);
+        }
+
+        return request.handle((response, error) -> {
+            lanes.requests.remove(request);
+            if (!lanes.cancelled.get()) {
+                // Else aborted by the timeout, reported as such
+                lanes.results.put(fetch.url, handleResponse(fetch, response, error));
+            }
+            return (Void) null;
+        }).thenCompose(v -> runLane(client, queue, lanes));
+    }
+
+    /**
+     * @return the maximum size of the blob downloaded for {@code fetch}: the inlined size, or more if it is resized
+     */
+    protected long getMaxDownloadSize(PendingFetch fetch) {
+        return fetch.variant == null ? maxItemSize : maxOriginalSize;
+    }
+
+    protected JSONObject handleResponse(PendingFetch fetch, HttpResponse<byte[]> response, Throwable error) {
+
+        if (error != null) {
+            return errorResult(HttpServletResponse.SC_BAD_GATEWAY, error.getMessage());
+        }
+
+        try {
+            int status = response.statusCode();
+            if (NuxeoAppServletUtils.isRedirect(status)) {
+                String location = response.headers().firstValue("Location").orElse(null);
+                if (location == null) {
+                    return errorResult(HttpServletResponse.SC_BAD_GATEWAY, "Redirect without Location header");
+                }
+                JSONObject redirectInfoJson = new JSONObject();
+                redirectInfoJson.put("status", status);
+                redirectInfoJson.put("location", location);
+                service.cacheRemoteBlob(fetch.app, fetch.userName, fetch.remotePath, fetch.digest,
+                        Blobs.createJSONBlob(redirectInfoJson.toString()));
+                return redirectResult(redirectInfoJson);
+            }
+
+            if (status != HttpServletResponse.SC_OK) {
+                return errorResult(status, "HTTP " + status);
+            }
+
+            byte[] bytes = response.body();
+            if (bytes == null) {
+                // Not read, see BoundedBodySubscriber
+                return tooBigResult();
+            }
+            String mimeType = response.headers().firstValue("Content-Type").orElse(null);
+            String filename = NuxeoAppServletUtils.extractFileName(
+                    response.headers().firstValue("Content-Disposition").orElse(null), fetch.remotePath);
+            cacheBlob(fetch.app, fetch.userName, fetch.remotePath, fetch.digest, bytes, mimeType, filename);
+
+            return blobResult(fetch.app, fetch.userName, fetch.remotePath, fetch.digest, fetch.variant, bytes,
+                    mimeType, filename);
+
+        } catch (IOException | RuntimeException e) {
+            return errorResult(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Resizes the image if a variant is asked (and caches the result), then builds the result
+     */
+    protected JSONObject blobResult(NuxeoApp app, String userName, String remotePath, String digest,
+            ThumbnailResizer.Variant variant, byte[] bytes, String mimeType, String filename) throws IOException {
+
+        if (variant != null && StringUtils.startsWith(mimeType, "image/")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            String variantMimeType = null;
+            try {
+                variantMimeType = ThumbnailResizer.resize(new ByteArrayInputStream(bytes), variant, out);
+            } catch (IOException | RuntimeException e) {
+                log.debug("Cannot resize " + remotePath + ", returning the original", e);
+            }
+            if (variantMimeType != null) {
+                bytes = out.toByteArray();
+                mimeType = variantMimeType;
+                cacheBlob(app, userName, variant.getCachePath(remotePath), variant.getCacheDigest(digest), bytes,
+                        mimeType, variant.renameFile(filename));
+            }
+        }
+
+        return bytes.length > maxItemSize ? tooBigResult() : blobResult(bytes, mimeType);
+    }
+
+    protected JSONObject cachedResult(Blob cached) throws IOException {
+
+        if (cached.getLength() > maxItemSize) {
+            return tooBigResult();
+        }
+        try (InputStream in = cached.getStream()) {
+            return blobResult(in.readAllBytes(), cached.getMimeType());
+        }
+    }
+
+    protected void cacheBlob(NuxeoApp app, String userName, String remotePath, String digest, byte[] bytes,
+            String mimeType, String filename) throws IOException {
+
+        if (!service.canCacheBlob(bytes.length)) {
+            return;
+        }
+
+        Path file = Files.createTempFile("multinxapps-", ".bin");
+        try {
+            Files.write(file, bytes);
+            service.cacheRemoteBlob(app, userName, remotePath, digest,
+                    Blobs.createBlob(file.toFile(), mimeType, null, filename));
+        } finally {
+            // Linked or copied in the cache if cached
+            Files.deleteIfExists(file);
+        }
+    }
+
+    protected static JSONObject blobResult(byte[] bytes, String mimeType) {
+
+        if (StringUtils.isBlank(mimeType)) {
+            mimeType = "application/octet-stream";
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("status", HttpServletResponse.SC_OK);
+        result.put("mimeType", mimeType);
+        result.put("length", bytes.length);
+        result.put("dataUri", "data:" + mimeType + ";base64," + Base64.getEncoder().encodeToString(bytes));
+
+        return result;
+    }
+
+    protected static JSONObject redirectResult(JSONObject redirectInfoJson) {
+
+        JSONObject result = new JSONObject();
+        result.put("status", redirectInfoJson.getInt("status"));
+        result.put("location", redirectInfoJson.getString("location"));
+
+        return result;
+    }
+
+    protected static JSONObject tooBigResult() {
+        return errorResult(413, "Too big to be inlined, use the URL");
+    }
+
+    protected static JSONObject errorResult(int status, String message) {
+
+        JSONObject result = new JSONObject();
+        result.put("status", status);
+        result.put("message", message == null ? "" : message);
+
+        return result;
+    }
+
+}
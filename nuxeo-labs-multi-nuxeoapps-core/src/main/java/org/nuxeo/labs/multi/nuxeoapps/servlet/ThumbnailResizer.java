@@ -0,0 +1,313 @@
+/*
+ * (C) Copyright 2025 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+/**
+ * Downscales and re-encodes images with ImageIO (pure Java, no external tool), so the browser does not receive a
+ * 1000px thumbnail to display it in a 150px tile.
+ * <br>
+ * The output format is any format ImageIO can write: "jpeg" (default) and "png" out of the box. WebP is used only if
+ * a WebP ImageIO plugin is deployed, it falls back to JPEG otherwise.
+ *
+ * @since 2025
+ */
+public class ThumbnailResizer {
+
+    /** Query parameter: the maximum width/height, in pixels. Required to get a resized image */
+    public static final String SIZE_PARAMETER = "nxAppsSize";
+
+    /** Query parameter: the output format ("jpeg", "png", ...), "jpeg" by default */
+    public static final String FORMAT_PARAMETER = "nxAppsFormat";
+
+    /** Query parameter: the quality (1-100) of lossy formats, 80 by default */
+    public static final String QUALITY_PARAMETER = "nxAppsQuality";
+
+    public static final String DEFAULT_FORMAT = "jpeg";
+
+    public static final int DEFAULT_QUALITY = 80;
+
+    public static final int MAX_SIZE = 2048;
+
+    // Above, the image is not decoded (memory), it is sent as is
+    public static final long MAX_SOURCE_PIXELS = 50_000_000L;
+
+    /**
+     * The size, format and quality asked for an image
+     */
+    public static class Variant {
+
+        protected final int size;
+
+        protected final String format;
+
+        protected final int quality;
+
+        public Variant(int size, String format, int quality) {
+            this.size = Math.min(Math.max(1, size), MAX_SIZE);
+            this.format = format;
+            this.quality = Math.min(Math.max(1, quality), 100);
+        }
+
+        /**
+         * @param queryString
+         * @return the variant, null if there is no valid {@link #SIZE_PARAMETER}
+         * @since 2025
+         */
+        public static Variant fromQueryString(String queryString) {
+
+            int size = NumberUtils.toInt(NuxeoAppServletUtils.getParameter(queryString, SIZE_PARAMETER), 0);
+            if (size <= 0) {
+                return null;
+            }
+            String format = normalizeFormat(NuxeoAppServletUtils.getParameter(queryString, FORMAT_PARAMETER));
+            if (format == null || !ImageIO.getImageWritersByFormatName(format).hasNext()) {
+                format = DEFAULT_FORMAT;
+            }
+            int quality = NumberUtils.toInt(NuxeoAppServletUtils.getParameter(queryString, QUALITY_PARAMETER),
+                    DEFAULT_QUALITY);
+
+            return new Variant(size, format, quality);
+        }
+
+        /**
+         * @return a unique id for the variant, usable in a cache key and an ETag ("200-jpeg-80")
+         * @since 2025
+         */
+        public String getId() {
+            return size + "-" + format + "-" + quality;
+        }
+
+        /**
+         * @param remotePath
+         * @return the path used in the cache key of the resized image
+         * @since 2025
+         */
+        public String getCachePath(String remotePath) {
+            return remotePath + "#" + getId();
+        }
+
+        /**
+         * @param digest, of the original blob
+         * @return the digest used in the cache key of the resized image, null if {@code digest} is null
+         * @since 2025
+         */
+        public String getCacheDigest(String digest) {
+            return digest == null ? null : digest + "#" + getId();
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public int getQuality() {
+            return quality;
+        }
+
+        /**
+         * @param filename
+         * @return {@code filename} with the extension of the format
+         * @since 2025
+         */
+        public String renameFile(String filename) {
+
+            if (StringUtils.isBlank(filename)) {
+                return null;
+            }
+            int idx = filename.lastIndexOf('.');
+            return (idx > 0 ? filename.substring(0, idx) : filename) + "."
+                    + (DEFAULT_FORMAT.equals(format) ? "jpg" : format);
+        }
+
+        protected boolean hasAlpha() {
+            return !"jpeg".equals(format) && !"bmp".equals(format);
+        }
+    }
+
+    private ThumbnailResizer() {
+        // Static methods only
+    }
+
+    /**
+     * Writes the image read from {@code in}, resized to fit in {@code variant.getSize()} and encoded in
+     * {@code variant.getFormat()}, to {@code out}.
+     * <br>
+     * Nothing is written when the input is not an image ImageIO can read, when it is too big to be decoded, or when it
+     * already fits and has the same format (the original is better then).
+     *
+     * @param in
+     * @param variant
+     * @param out
+     * @return the mime type of the image written, null if nothing was written
+     * @throws IOException
+     * @since 2025
+     */
+    public static String resize(InputStream in, Variant variant, OutputStream out) throws IOException {
+
+        BufferedImage image;
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            if (iis == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > MAX_SOURCE_PIXELS) {
+                    return null;
+                }
+                int max = Math.max(width, height);
+                if (max <= variant.size && variant.format.equals(normalizeFormat(reader.getFormatName()))) {
+                    return null;
+                }
+
+                // No need to decode all the pixels: subsample while staying at twice the target size at least, the
+                // scaling does the rest with a better quality
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = max / (variant.size * 2);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        return write(scale(image, variant), variant, out);
+    }
+
+    /**
+     * Scales down by halves (bilinear) until the last step, which is a lot better than a single bilinear step and a
+     * lot faster than bicubic/area averaging.
+     */
+    protected static BufferedImage scale(BufferedImage image, Variant variant) {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double ratio = Math.min(1.0, (double) variant.size / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(height * ratio));
+
+        // Drawn at least once, to get an image type the writer supports
+        BufferedImage current = image;
+        do {
+            width = current.getWidth() / 2;
+            height = current.getHeight() / 2;
+            if (width < targetWidth || height < targetHeight) {
+                width = targetWidth;
+                height = targetHeight;
+            }
+            current = draw(current, width, height, variant.hasAlpha());
+        } while (width != targetWidth || height != targetHeight);
+
+        return current;
+    }
+
+    protected static BufferedImage draw(BufferedImage source, int width, int height, boolean hasAlpha) {
+
+        BufferedImage target = new BufferedImage(width, height,
+                hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        try {
+            if (!hasAlpha) {
+                // Transparent pixels would be black
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, width, height);
+            }
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+
+        return target;
+    }
+
+    protected static String write(BufferedImage image, Variant variant, OutputStream out) throws IOException {
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(variant.format);
+        if (!writers.hasNext()) {
+            return null;
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (param.getCompressionType() == null && param.getCompressionTypes() != null) {
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                }
+                // For lossless formats (PNG), the "quality" is the compression level: keep the default
+                if (!param.isCompressionLossless()) {
+                    param.setCompressionQuality(variant.quality / 100f);
+                }
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+
+        String[] mimeTypes = writer.getOriginatingProvider() == null ? null
+                : writer.getOriginatingProvider().getMIMETypes();
+        return mimeTypes != null && mimeTypes.length > 0 ? mimeTypes[0] : "image/" + variant.format;
+    }
+
+    protected static String normalizeFormat(String format) {
+
+        if (StringUtils.isBlank(format)) {
+            return null;
+        }
+        format = format.trim().toLowerCase(Locale.ROOT);
+        return "jpg".equals(format) ? "jpeg" : format;
+    }
+
+}
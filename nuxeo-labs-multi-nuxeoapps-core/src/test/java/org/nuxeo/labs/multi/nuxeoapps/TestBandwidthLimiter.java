@@ -0,0 +1,46 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.BandwidthLimiter;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.BandwidthLimiter.Throttle;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.BandwidthLimiter.TrafficClass;
+
+public class TestBandwidthLimiter {
+
+    @Test
+    public void shouldClassifyRequests() {
+        assertEquals(TrafficClass.THUMBNAIL,
+                TrafficClass.of("/api/v1/repo/default/id/123/@rendition/thumbnail?changeToken=1"));
+        assertEquals(TrafficClass.DOWNLOAD, TrafficClass.of("/nxfile/default/123/file:content/big.mp4"));
+    }
+
+    @Test
+    public void shouldLimitPerUser() {
+
+        assertFalse(new BandwidthLimiter(0, 0, 0, 0).isEnabled());
+
+        // 100 KB/s per user for downloads, thumbnails are not limited
+        BandwidthLimiter limiter = new BandwidthLimiter(0, 100, 0, 0);
+        assertNull(limiter.getThrottle(TrafficClass.THUMBNAIL, "john"));
+
+        Throttle john = limiter.getThrottle(TrafficClass.DOWNLOAD, "john");
+        assertNotNull(john);
+        // One second of burst, then half a second of debt
+        assertEquals(0, john.reserve(100 * 1024));
+        long delay = john.reserve(50 * 1024);
+        assertTrue(delay > TimeUnit.MILLISECONDS.toNanos(400) && delay <= TimeUnit.MILLISECONDS.toNanos(500));
+
+        // Same bucket for another stream of the same user, not for another user
+        assertTrue(limiter.getThrottle(TrafficClass.DOWNLOAD, "john").reserve(10 * 1024) > delay);
+        assertEquals(0, limiter.getThrottle(TrafficClass.DOWNLOAD, "jane").reserve(100 * 1024));
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.cache.BlobDiskCache;
+
+public class TestBlobDiskCache {
+
+    protected static final long ONE_MINUTE = 60 * 1000;
+
+    protected Path directory;
+
+    protected BlobDiskCache cache;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("test-blobcache");
+        cache = new BlobDiskCache(directory, 1000, 500, ONE_MINUTE);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        cache.clear();
+        Files.deleteIfExists(directory);
+    }
+
+    protected File createFile(int size) throws Exception {
+        File f = Files.createTempFile("test-blobcache", ".bin").toFile();
+        Files.write(f.toPath(), new byte[size]);
+        f.deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void shouldBuildKeys() {
+
+        String byPath = BlobDiskCache.buildKey("app", "john", null, "/nxfile/default/123/file:content/a.pdf");
+        String byDigest = BlobDiskCache.buildKey("app", "john", "abcdef", "/nxfile/default/123/file:content/a.pdf");
+        String byDigestOtherPath = BlobDiskCache.buildKey("app", "john", "abcdef", "/other/path");
+        String byDigestOtherUser = BlobDiskCache.buildKey("app", "jane", "abcdef", "/other/path");
+
+        assertNotEquals(byPath, byDigest);
+        // The digest is not verified, it never replaces the path
+        assertNotEquals(byDigest, byDigestOtherPath);
+        assertNotEquals(byDigestOtherPath, byDigestOtherUser);
+        assertEquals(byDigest, BlobDiskCache.buildKey("app", "john", "abcdef", "/nxfile/default/123/file:content/a.pdf"));
+    }
+
+    @Test
+    public void shouldCacheStreams() throws Exception {
+
+        assertTrue(cache.put("key1", new ByteArrayInputStream(new byte[100]), 100, "image/png", "a.png"));
+        assertEquals(100, cache.get("key1").length);
+
+        // Too big, with and without the length
+        assertFalse(cache.put("key2", new ByteArrayInputStream(new byte[600]), 600, "image/png", "b.png"));
+        assertFalse(cache.put("key3", new ByteArrayInputStream(new byte[600]), -1, "image/png", "c.png"));
+        assertNull(cache.get("key3"));
+    }
+
+    @Test
+    public void shouldCacheFiles() throws Exception {
+
+        File source = createFile(100);
+        assertTrue(cache.put("key1", source, "application/pdf", "a.pdf"));
+
+        // The source is still usable and can be deleted by the caller
+        assertTrue(source.exists());
+        source.delete();
+
+        BlobDiskCache.CachedBlob cached = cache.get("key1");
+        assertNotNull(cached);
+        assertEquals(100, cached.length);
+        assertEquals("a.pdf", cached.filename);
+        assertTrue(cached.file.exists());
+
+        cache.remove("key1");
+        assertNull(cache.get("key1"));
+        assertFalse(cached.file.exists());
+    }
+
+    @Test
+    public void shouldNotCacheBigFiles() throws Exception {
+
+        File source = createFile(600);
+        assertFalse(cache.put("big", source, "application/pdf", "big.pdf"));
+        assertNull(cache.get("big"));
+    }
+
+    @Test
+    public void shouldDeleteEvictedFiles() throws Exception {
+
+        for (int i = 0; i < 50; i++) {
+            cache.put("key" + i, createFile(100), "application/pdf", i + ".pdf");
+        }
+
+        long totalSize = 0;
+        try (var files = Files.list(directory)) {
+            totalSize = files.mapToLong(p -> p.toFile().length()).sum();
+        }
+        assertTrue(totalSize <= 1000);
+    }
+
+}
@@ -0,0 +1,87 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.BlobUrlRewriter;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServletUtils;
+
+public class TestBlobUrlRewriter {
+
+    protected static final String APP_URL = "https://remote.server.com/nuxeo";
+
+    protected static JSONObject createBlob(String name, String digest) {
+
+        JSONObject blob = new JSONObject();
+        blob.put("name", name);
+        blob.put("mime-type", "application/pdf");
+        blob.put("digestAlgorithm", "MD5");
+        blob.put("digest", digest);
+        blob.put("length", 1234);
+        blob.put("data", APP_URL + "/nxfile/default/123/file:content/" + name);
+        blob.put("blobUrl", APP_URL + "/nxfile/default/123/file:content/" + name);
+        return blob;
+    }
+
+    protected static JSONObject createDocument() {
+
+        JSONObject properties = new JSONObject();
+        properties.put("dc:title", "Doc");
+        properties.put("file:content", createBlob("main.pdf", "abc"));
+        JSONObject attachment = new JSONObject();
+        attachment.put("file", createBlob("other.pdf", "def"));
+        properties.put("files:files", new JSONArray().put(attachment));
+        // Not a blob, not all the fields
+        properties.put("custom:complex", new JSONObject().put("blobUrl", APP_URL + "/nxfile/x").put("digest", "x"));
+
+        JSONObject thumbnail = new JSONObject().put("url",
+                APP_URL + "/api/v1/repo/default/id/123/@rendition/thumbnail?changeToken=1");
+
+        JSONObject doc = new JSONObject();
+        doc.put("entity-type", "document");
+        doc.put("properties", properties);
+        doc.put("contextParameters", new JSONObject().put("thumbnail", thumbnail));
+        return doc;
+    }
+
+    @Test
+    public void shouldRewriteBlobsAndThumbnail() {
+
+        JSONObject doc = createDocument();
+        new BlobUrlRewriter("app", APP_URL, false).rewriteDocument(doc);
+
+        JSONObject properties = doc.getJSONObject("properties");
+        assertEquals("/nuxeo/multiNxApps/app/nxfile/default/123/file:content/main.pdf?nxAppsDigest=abc",
+                properties.getJSONObject("file:content").getString("nxAppsUrl"));
+        assertEquals("/nuxeo/multiNxApps/app/nxfile/default/123/file:content/other.pdf?nxAppsDigest=def",
+                properties.getJSONArray("files:files").getJSONObject(0).getJSONObject("file").getString("nxAppsUrl"));
+        assertFalse(properties.getJSONObject("custom:complex").has("nxAppsUrl"));
+        assertEquals("/nuxeo/multiNxApps/app/api/v1/repo/default/id/123/@rendition/thumbnail?changeToken=1",
+                doc.getJSONObject("contextParameters").getJSONObject("thumbnail").getString("nxAppsUrl"));
+
+        // Same result without the app URL (generic pattern only)
+        JSONObject other = createDocument();
+        NuxeoAppServletUtils.updateBlobUrlsInProperties(other, "app", false);
+        assertEquals(doc.toString(), other.toString());
+    }
+
+    @Test
+    public void shouldRemoveUrlPrefixLikeTheGenericPattern() {
+
+        BlobUrlRewriter rewriter = new BlobUrlRewriter("app", APP_URL + "/", false);
+        for (String url : List.of(APP_URL + "/nxfile/a.pdf", APP_URL + "/nxfile/a.pdf  ", APP_URL + "/",
+                "HTTPS://remote.server.com/nuxeo/nxfile/a.pdf", "https://other.host:8080/other/nxfile/a.pdf",
+                "/nuxeo/nxfile/a.pdf", "")) {
+            assertEquals(url, NuxeoAppServletUtils.removeUrlPrefix(url), rewriter.removeUrlPrefix(url));
+        }
+        // App URL with a deeper path: never the fast path
+        rewriter = new BlobUrlRewriter("app", "https://remote.server.com/a/nuxeo", false);
+        assertEquals("/nuxeo/nxfile/a.pdf", rewriter.removeUrlPrefix("https://remote.server.com/a/nuxeo/nxfile/a.pdf"));
+    }
+
+}
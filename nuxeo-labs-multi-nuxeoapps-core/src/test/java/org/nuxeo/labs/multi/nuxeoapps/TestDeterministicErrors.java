@@ -0,0 +1,116 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.query.QueryParseException;
+import org.nuxeo.labs.multi.nuxeoapps.cache.TinyLfuCache;
+import org.nuxeo.labs.multi.nuxeoapps.service.MultiNuxeoAppServiceImpl;
+
+public class TestDeterministicErrors {
+
+    protected static final long NEGATIVE_CACHE_TTL = 30;
+
+    /**
+     * Only the caches of the service, no component lifecycle
+     */
+    protected static class CachingService extends MultiNuxeoAppServiceImpl {
+
+        protected CachingService(boolean withResultsCache) {
+            negativeCacheTtl = NEGATIVE_CACHE_TTL;
+            negativeResultsCache = new TinyLfuCache<>("negativeResults", 1024 * 1024, 16,
+                    (key, value) -> key.length() + value.length());
+            searchResultsCache = withResultsCache
+                    ? new TinyLfuCache<>("searchResults", 1024 * 1024, 16, (key, value) -> key.length() + value.length())
+                    : null;
+        }
+
+        protected JSONObject search(AbstractNuxeoApp app, String nxql, AtomicInteger calls, JSONObject result) {
+            return cachedSearch(app, "alice", nxql, null, () -> {
+                calls.incrementAndGet();
+                return result;
+            });
+        }
+    }
+
+    protected static JSONObject errorResult(int status) {
+        return AbstractNuxeoApp.generateErrorObject(status, "HTTP " + status, "remote", true, (JSONObject) null);
+    }
+
+    protected static NuxeoApp newApp(long searchCacheTtl) {
+
+        NuxeoApp app = new NuxeoApp("remote", "https://remote.example.com/nuxeo", "user", "pwd");
+        app.setSearchCacheTtl(searchCacheTtl);
+
+        return app;
+    }
+
+    @Test
+    public void shouldOnlyFlagStableStatuses() {
+
+        assertTrue(AbstractNuxeoApp.isDeterministicErrorStatus(400));
+        assertTrue(AbstractNuxeoApp.isDeterministicErrorStatus(404));
+        assertTrue(AbstractNuxeoApp.isDeterministicErrorStatus(422));
+
+        // Authentication, permissions, load, server errors: may work next time
+        assertFalse(AbstractNuxeoApp.isDeterministicErrorStatus(401));
+        assertFalse(AbstractNuxeoApp.isDeterministicErrorStatus(403));
+        assertFalse(AbstractNuxeoApp.isDeterministicErrorStatus(408));
+        assertFalse(AbstractNuxeoApp.isDeterministicErrorStatus(429));
+        assertFalse(AbstractNuxeoApp.isDeterministicErrorStatus(500));
+        assertFalse(AbstractNuxeoApp.isDeterministicErrorStatus(503));
+        assertFalse(AbstractNuxeoApp.isDeterministicErrorStatus(-1));
+    }
+
+    @Test
+    public void shouldOnlyFlagQueryErrorsOfTheLocalSearch() {
+
+        assertTrue(NuxeoAppCurrent.isDeterministicException(new QueryParseException("Syntax error")));
+        // As thrown when the page provider failed
+        assertTrue(NuxeoAppCurrent.isDeterministicException(
+                new NuxeoException("Syntax error", new QueryParseException("Syntax error"))));
+        assertTrue(NuxeoAppCurrent.isDeterministicException(new NuxeoException("Unknown page provider", 404)));
+
+        assertFalse(NuxeoAppCurrent.isDeterministicException(new NuxeoException("No fulltext index")));
+        assertFalse(NuxeoAppCurrent.isDeterministicException(
+                new NuxeoException("Timeout", new RuntimeException("Timeout"))));
+    }
+
+    @Test
+    public void shouldCacheDeterministicErrors() {
+
+        for (boolean withResultsCache : new boolean[] { true, false }) {
+            CachingService service = new CachingService(withResultsCache);
+            NuxeoApp app = newApp(withResultsCache ? 60 : 0);
+            AtomicInteger calls = new AtomicInteger();
+
+            JSONObject error = AbstractNuxeoApp.markAsDeterministicError(errorResult(400));
+            service.search(app, "SELECT * FROM Nothing", calls, error);
+            JSONObject cached = service.search(app, "SELECT * FROM Nothing", calls, error);
+
+            assertEquals(1, calls.get());
+            assertTrue(AbstractNuxeoApp.isDeterministicError(cached));
+        }
+    }
+
+    @Test
+    public void shouldNotCacheOtherErrors() {
+
+        CachingService service = new CachingService(true);
+        NuxeoApp app = newApp(60);
+        AtomicInteger calls = new AtomicInteger();
+
+        JSONObject error = errorResult(503);
+        service.search(app, "SELECT * FROM Document", calls, error);
+        service.search(app, "SELECT * FROM Document", calls, error);
+
+        assertEquals(2, calls.get());
+    }
+
+}
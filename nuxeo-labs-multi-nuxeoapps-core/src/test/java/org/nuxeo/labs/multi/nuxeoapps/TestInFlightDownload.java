@@ -0,0 +1,181 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.InFlightDownload;
+
+public class TestInFlightDownload {
+
+    @Test
+    public void shouldShareOneDownload() throws Exception {
+
+        InFlightDownload leader = InFlightDownload.lead("key1");
+        assertNotNull(leader);
+        assertNull(InFlightDownload.lead("key1"));
+
+        InFlightDownload follower1 = InFlightDownload.join("key1");
+        InFlightDownload follower2 = InFlightDownload.join("key1");
+        assertSame(leader, follower1);
+
+        byte[] body = new byte[500 * 1024];
+        new Random(1).nextBytes(body);
+        Path file = Files.createTempFile("test-inflight", ".bin");
+        leader.start(null, file);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<byte[]> read1 = pool.submit(() -> copy(follower1));
+            Future<byte[]> read2 = pool.submit(() -> copy(follower2));
+
+            // Received little by little
+            try (OutputStream out = Files.newOutputStream(file)) {
+                for (int i = 0; i < body.length; i += 10000) {
+                    int length = Math.min(10000, body.length - i);
+                    out.write(body, i, length);
+                    leader.progress(i + length);
+                    Thread.sleep(1);
+                }
+            }
+            leader.end(true);
+            leader.release();
+
+            assertArrayEquals(body, read1.get(10, TimeUnit.SECONDS));
+            assertArrayEquals(body, read2.get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // Ended: a new request downloads again. The last one using the file deleted it
+        assertNull(InFlightDownload.join("key1"));
+        assertFalse(Files.exists(file));
+        assertEquals(0, InFlightDownload.getInFlightCount());
+    }
+
+    @Test
+    public void shouldFailFollowersWhenLeaderFails() throws Exception {
+
+        InFlightDownload leader = InFlightDownload.lead("key2");
+        InFlightDownload follower = InFlightDownload.join("key2");
+        Path file = Files.createTempFile("test-inflight", ".bin");
+        leader.start(null, file);
+        Files.write(file, new byte[100]);
+        leader.progress(100);
+        leader.end(false);
+        leader.release();
+
+        try {
+            follower.copyTo(new ByteArrayOutputStream());
+            fail("The download failed");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            follower.release();
+        }
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void shouldNotifyReadersWithoutBlocking() throws Exception {
+
+        InFlightDownload writer = InFlightDownload.lead("key3");
+        assertTrue(writer.hold());
+        AtomicInteger calls = new AtomicInteger();
+
+        assertTrue(writer.whenStarted(calls::incrementAndGet));
+        assertNull(writer.getInfo());
+        Path file = Files.createTempFile("test-inflight", ".bin");
+        writer.start(null, file);
+        assertEquals(1, calls.get());
+        assertFalse(writer.whenStarted(calls::incrementAndGet));
+
+        assertEquals(-1, writer.pollData(0, calls::incrementAndGet));
+        Files.write(file, new byte[100]);
+        writer.progress(100);
+        assertEquals(2, calls.get());
+        assertEquals(100, writer.pollData(0, calls::incrementAndGet));
+
+        assertEquals(-1, writer.pollData(100, calls::incrementAndGet));
+        writer.end(true);
+        assertEquals(3, calls.get());
+        // Complete, all read
+        assertEquals(100, writer.pollData(100, calls::incrementAndGet));
+
+        writer.release();
+        writer.release();
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void shouldGoOnWhenOneReaderLeaves() throws Exception {
+
+        InFlightDownload writer = InFlightDownload.lead("key4");
+        // The leader's browser, then a follower
+        assertTrue(writer.hold());
+        InFlightDownload follower = InFlightDownload.join("key4");
+        Path file = Files.createTempFile("test-inflight", ".bin");
+        writer.start(null, file);
+
+        // The leader's browser goes away
+        writer.release();
+        assertFalse(writer.abandonIfUnused());
+
+        Files.write(file, new byte[100]);
+        writer.progress(100);
+        writer.end(true);
+        writer.release();
+
+        assertEquals(100, copy(follower).length);
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void shouldAbandonWhenUnused() throws Exception {
+
+        InFlightDownload writer = InFlightDownload.lead("key5");
+        assertTrue(writer.hold());
+        Path file = Files.createTempFile("test-inflight", ".bin");
+        writer.start(null, file);
+        assertFalse(writer.abandonIfUnused());
+
+        writer.release();
+        assertTrue(writer.abandonIfUnused());
+        // Too late to join
+        assertNull(InFlightDownload.join("key5"));
+        assertEquals(0, InFlightDownload.getInFlightCount());
+
+        writer.release();
+        assertFalse(Files.exists(file));
+    }
+
+    protected static byte[] copy(InFlightDownload follower) throws Exception {
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            follower.copyTo(out);
+            return out.toByteArray();
+        } finally {
+            follower.release();
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.authentication.NuxeoAppAuthenticationJWT;
+import org.nuxeo.labs.multi.nuxeoapps.cache.ExpiringLruMap;
+import org.nuxeo.labs.multi.nuxeoapps.service.MultiNuxeoAppServiceImpl;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.interfaces.DecodedJWT;
+
+public class TestJWTTokenCache {
+
+    protected static class CountingJWT extends NuxeoAppAuthenticationJWT {
+
+        protected final AtomicInteger requests = new AtomicInteger();
+
+        protected long lifetimeMillis = 60000;
+
+        public CountingJWT() {
+            this("Administrator");
+        }
+
+        public CountingJWT(String tokenUser) {
+            super("http://localhost:8080/nuxeo", tokenUser, "clientId", "clientSecret", "secret");
+        }
+
+        @Override
+        protected String requestToken(String tokenUserId) {
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            String token = "token-" + tokenUserId;
+            usersAndTokens.put(tokenUserId,
+                    new TokenAndExpiration(token, Instant.now().plusMillis(lifetimeMillis)));
+            return token;
+        }
+
+        protected boolean hasToken(String tokenUserId) {
+            return usersAndTokens.containsKey(tokenUserId);
+        }
+
+        protected String getTokenPOSTData(String tokenUserId) throws UnsupportedEncodingException {
+            return createTokenPOSTData(tokenUserId);
+        }
+
+        protected Instant getAssertionReuseLimit(String tokenUserId) {
+            return signedAssertions.get(tokenUserId).tokenExpiration;
+        }
+
+        // As if the assertion was signed 9 minutes ago
+        protected void reachAssertionReuseLimit(String tokenUserId) {
+            signedAssertions.put(tokenUserId, new TokenAndExpiration(signedAssertions.get(tokenUserId).token,
+                    Instant.now().minusMillis(1)));
+        }
+    }
+
+    /**
+     * Only the apps and the token executor of the service
+     */
+    protected static class WarmUpService extends MultiNuxeoAppServiceImpl {
+
+        protected WarmUpService(NuxeoApp... apps) {
+            for (NuxeoApp app : apps) {
+                configuredNuxeoApps.put(app.getAppName(), app);
+            }
+        }
+
+        protected void warmUpAndWait(String userName) throws InterruptedException {
+            tokenExecutor = Executors.newSingleThreadExecutor();
+            warmUpTokens(userName);
+            tokenExecutor.shutdown();
+            assertTrue(tokenExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    protected static NuxeoApp newJWTApp(String appName, CountingJWT auth) {
+
+        NuxeoApp app = new NuxeoApp(appName, "http://localhost:8080/nuxeo", "unused", "clientId", "clientSecret",
+                "secret");
+        app.nuxeoAppAuthentication = auth;
+
+        return app;
+    }
+
+    @Test
+    public void shouldRequestTokenOncePerUser() throws Exception {
+
+        CountingJWT auth = new CountingJWT();
+        ExecutorService pool = Executors.newFixedThreadPool(20);
+        CountDownLatch start = new CountDownLatch(1);
+
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String user = i % 2 == 0 ? "john" : "jane";
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return auth.getAutorizationHeaderValue(user) + "/" + user;
+                }));
+            }
+            start.countDown();
+
+            for (Future<String> f : futures) {
+                String[] headerAndUser = f.get(10, TimeUnit.SECONDS).split("/");
+                // Never the token of another user
+                assertEquals("Bearer token-" + headerAndUser[1], headerAndUser[0]);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(2, auth.requests.get());
+        assertEquals("token-john", auth.getToken("john"));
+    }
+
+    @Test
+    public void shouldRefreshActiveTokensAndEvictIdleOnes() throws Exception {
+
+        CountingJWT auth = new CountingJWT();
+        auth.lifetimeMillis = 1000;
+
+        auth.getAutorizationHeaderValue("john");
+        auth.getAutorizationHeaderValue("jane");
+        assertEquals(2, auth.requests.get());
+
+        // Not due yet
+        auth.refreshTokens(0.5, 60000, Runnable::run);
+        assertEquals(2, auth.requests.get());
+
+        Thread.sleep(600);
+        auth.getToken("john");
+        // Both due, jane is idle for more than 300ms
+        auth.refreshTokens(0.5, 300, Runnable::run);
+        assertEquals(3, auth.requests.get());
+        assertTrue(auth.hasToken("john"));
+        assertFalse(auth.hasToken("jane"));
+    }
+
+    @Test
+    public void shouldReuseSignedAssertionUntilOneMinuteBeforeExpiration() throws Exception {
+
+        CountingJWT auth = new CountingJWT();
+        String postData = auth.getTokenPOSTData("john");
+        String prefix = "grant_type=urn%3Aietf%3Aparams%3Aoauth%3Agrant-type%3Ajwt-bearer&client_id=clientId"
+                + "&client_secret=clientSecret&assertion=";
+        assertTrue(postData.startsWith(prefix));
+        DecodedJWT assertion = JWT.decode(
+                URLDecoder.decode(postData.substring(prefix.length()), StandardCharsets.UTF_8));
+        assertEquals("john", assertion.getSubject());
+
+        // exp is in seconds
+        long margin = assertion.getExpiresAt().getTime() - auth.getAssertionReuseLimit("john").toEpochMilli();
+        assertTrue(margin > 59000 && margin <= 60000);
+
+        assertEquals(postData, auth.getTokenPOSTData("john"));
+        assertNotEquals(postData, auth.getTokenPOSTData("jane"));
+
+        // Signed again
+        auth.reachAssertionReuseLimit("john");
+        auth.getTokenPOSTData("john");
+        assertTrue(auth.getAssertionReuseLimit("john").isAfter(Instant.now().plusSeconds(500)));
+    }
+
+    @Test
+    public void shouldOnlyWarmUpFixedUserTokensAtStart() throws Exception {
+
+        CountingJWT fixedUser = new CountingJWT("Administrator");
+        CountingJWT perUser = new CountingJWT(NuxeoAppAuthenticationJWT.TAG_CURRENT_USER);
+        WarmUpService service = new WarmUpService(newJWTApp("fixed", fixedUser), newJWTApp("perUser", perUser),
+                new NuxeoApp("basic", "http://localhost:8080/nuxeo", "user", "pwd"));
+
+        // No user: at start
+        service.warmUpAndWait(null);
+        assertEquals(1, fixedUser.requests.get());
+        assertTrue(fixedUser.hasToken("Administrator"));
+        assertEquals(0, perUser.requests.get());
+
+        // At login
+        service.warmUpAndWait("john");
+        assertEquals(1, perUser.requests.get());
+        assertTrue(perUser.hasToken("john"));
+        assertEquals(1, fixedUser.requests.get());
+    }
+
+    @Test
+    public void shouldBoundTokenCache() {
+
+        // Values are expiration times
+        ExpiringLruMap<String, Long> map = new ExpiringLruMap<>(3, exp -> exp < System.currentTimeMillis());
+        long future = System.currentTimeMillis() + 60000;
+
+        map.put("user1", future);
+        map.put("expired", 0L);
+        map.put("user2", future);
+        map.get("user1");
+
+        // Full => the expired one goes first
+        map.put("user3", future);
+        assertEquals(3, map.size());
+        assertFalse(map.containsKey("expired"));
+
+        // Full, nothing expired => least recently used (user2, since user1 was read)
+        map.put("user4", future);
+        assertEquals(3, map.size());
+        assertFalse(map.containsKey("user2"));
+        assertTrue(map.containsKey("user1"));
+
+        assertEquals(1, map.getStatistics().getLong("expiredEvictions"));
+        assertEquals(1, map.getStatistics().getLong("lruEvictions"));
+    }
+
+}
@@ -0,0 +1,90 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServletUtils;
+
+public class TestNuxeoAppServletUtils {
+
+    @Test
+    public void shouldGetPresignedUrlExpiration() {
+
+        long expected = Instant.parse("2025-03-10T12:00:00Z").plusSeconds(3600).toEpochMilli();
+
+        String s3v4 = "https://bucket.s3.amazonaws.com/abc?X-Amz-Algorithm=AWS4-HMAC-SHA256&X-Amz-Date=20250310T120000Z"
+                + "&X-Amz-Expires=3600&X-Amz-Signature=xyz";
+        assertEquals(expected, NuxeoAppServletUtils.getPresignedUrlExpiration(s3v4));
+
+        String s3v2 = "https://bucket.s3.amazonaws.com/abc?AWSAccessKeyId=key&Expires="
+                + (expected / 1000) + "&Signature=xyz";
+        assertEquals(expected, NuxeoAppServletUtils.getPresignedUrlExpiration(s3v2));
+
+        String azure = "https://account.blob.core.windows.net/container/abc?sv=2021-08-06&se=2025-03-10T13%3A00%3A00Z&sig=xyz";
+        assertEquals(expected, NuxeoAppServletUtils.getPresignedUrlExpiration(azure));
+
+        assertEquals(-1, NuxeoAppServletUtils.getPresignedUrlExpiration("https://cdn.example.com/abc?v=1"));
+        assertEquals(-1, NuxeoAppServletUtils.getPresignedUrlExpiration("https://cdn.example.com/abc"));
+    }
+
+    @Test
+    public void shouldHandleDigestParameter() {
+
+        String url = NuxeoAppServletUtils.addDigestParameter("/nuxeo/multiNxApps/app/nxfile/a.pdf?changeToken=1-0",
+                "abc123");
+        assertEquals("/nuxeo/multiNxApps/app/nxfile/a.pdf?changeToken=1-0&nxAppsDigest=abc123", url);
+
+        String queryString = url.substring(url.indexOf('?') + 1);
+        assertEquals("abc123", NuxeoAppServletUtils.getDigestParameter(queryString));
+        assertEquals("changeToken=1-0", NuxeoAppServletUtils.removeDigestParameter(queryString));
+        assertEquals("", NuxeoAppServletUtils.removeDigestParameter("nxAppsDigest=abc123"));
+    }
+
+    @Test
+    public void shouldBuildAndMatchETag() {
+
+        String etag = NuxeoAppServletUtils.buildETag("5d41402abc4b2a76b9719d911017c592");
+        assertEquals("\"5d41402abc4b2a76b9719d911017c592\"", etag);
+        assertNull(NuxeoAppServletUtils.buildETag(null));
+        assertNull(NuxeoAppServletUtils.buildETag("abc\"\r\nX-Injected: 1"));
+
+        assertTrue(NuxeoAppServletUtils.matchesETag(etag, etag));
+        assertTrue(NuxeoAppServletUtils.matchesETag("\"other\", W/" + etag, etag));
+        assertFalse(NuxeoAppServletUtils.matchesETag("*", etag));
+        assertFalse(NuxeoAppServletUtils.matchesETag("\"other\"", etag));
+        assertFalse(NuxeoAppServletUtils.matchesETag(null, etag));
+        assertFalse(NuxeoAppServletUtils.matchesETag("*", null));
+
+        assertEquals("\"5d41402abc4b2a76b9719d911017c592-thumb\"",
+                NuxeoAppServletUtils.buildETag("5d41402abc4b2a76b9719d911017c592", "thumb"));
+        assertNull(NuxeoAppServletUtils.buildETag("not-a-digest"));
+    }
+
+    @Test
+    public void shouldMatchDigest() throws Exception {
+
+        assertTrue(NuxeoAppServletUtils.isVerifiableDigest("5d41402abc4b2a76b9719d911017c592"));
+        assertFalse(NuxeoAppServletUtils.isVerifiableDigest("5d41402abc4b2a76b9719d911017c592#thumb"));
+        assertFalse(NuxeoAppServletUtils.isVerifiableDigest("abc123"));
+        assertFalse(NuxeoAppServletUtils.isVerifiableDigest(null));
+
+        assertTrue(NuxeoAppServletUtils.matchesDigest(hello(), "5d41402abc4b2a76b9719d911017c592"));
+        assertTrue(NuxeoAppServletUtils.matchesDigest(hello(), "5D41402ABC4B2A76B9719D911017C592"));
+        assertTrue(NuxeoAppServletUtils.matchesDigest(hello(),
+                "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824"));
+        assertFalse(NuxeoAppServletUtils.matchesDigest(hello(), "00000000000000000000000000000000"));
+    }
+
+    protected static InputStream hello() {
+        return new ByteArrayInputStream("hello".getBytes(StandardCharsets.UTF_8));
+    }
+
+}
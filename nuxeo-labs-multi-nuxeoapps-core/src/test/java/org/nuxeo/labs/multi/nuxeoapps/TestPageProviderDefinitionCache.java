@@ -0,0 +1,38 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.nuxeo.ecm.platform.query.api.PageProviderDefinition;
+
+public class TestPageProviderDefinitionCache {
+
+    @Test
+    public void shouldReuseTheDefinitionOfTheSameNxql() {
+
+        NuxeoAppCurrent current = NuxeoAppCurrent.getInstance();
+        PageProviderDefinition ppDef = current.getQueryPageProviderDefinition(
+                "SELECT * FROM Document WHERE dc:title = 'cached'");
+
+        assertSame(ppDef, current.getQueryPageProviderDefinition("SELECT * FROM Document WHERE dc:title = 'cached'"));
+        // Written differently, same query
+        assertSame(ppDef,
+                current.getQueryPageProviderDefinition("  SELECT *\n FROM   Document WHERE dc:title = 'cached' "));
+
+        // Not the same literal
+        assertNotSame(ppDef,
+                current.getQueryPageProviderDefinition("SELECT * FROM Document WHERE dc:title = 'cached  '"));
+    }
+
+    @Test
+    public void shouldOnlyNormalizeOutsideLiterals() {
+
+        assertEquals("SELECT * FROM Document WHERE dc:title = 'a  b'",
+                NuxeoAppCurrent.normalizeNxql(" SELECT  *\tFROM Document\nWHERE dc:title = 'a  b' "));
+        assertEquals("SELECT * FROM Document WHERE dc:title = 'it\\'s  here'",
+                NuxeoAppCurrent.normalizeNxql("SELECT * FROM Document WHERE dc:title = 'it\\'s  here'"));
+    }
+
+}
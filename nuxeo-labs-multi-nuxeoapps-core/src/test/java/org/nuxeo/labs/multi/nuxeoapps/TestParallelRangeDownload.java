@@ -0,0 +1,195 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class TestParallelRangeDownload {
+
+    protected static final byte[] BLOB = new byte[1024 * 1024 + 17];
+
+    static {
+        new Random(42).nextBytes(BLOB);
+    }
+
+    protected HttpServer server;
+
+    protected ExecutorService executor;
+
+    protected final AtomicInteger requests = new AtomicInteger();
+
+    // The first response of the part starting at 0 is cut in the middle
+    protected final AtomicBoolean breakFirstPart = new AtomicBoolean();
+
+    protected volatile boolean ignoreRanges = false;
+
+    // The part starting at 0 is refused (not retried), the other ones are cut after a while
+    protected volatile boolean failFirstPart = false;
+
+    @Before
+    public void startServer() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/blob", exchange -> {
+            requests.incrementAndGet();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (range == null || ignoreRanges) {
+                    exchange.sendResponseHeaders(200, BLOB.length);
+                    out.write(BLOB);
+                    return;
+                }
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                int start = Integer.parseInt(bounds[0]);
+                int end = bounds.length > 1 ? Integer.parseInt(bounds[1]) : BLOB.length - 1;
+                int length = end - start + 1;
+                if (failFirstPart && start == 0) {
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + BLOB.length);
+                exchange.sendResponseHeaders(206, length);
+                if (start == 0 && breakFirstPart.compareAndSet(true, false)) {
+                    out.write(BLOB, 0, length / 2);
+                    // Closes the connection before the end
+                    throw new IOException("Broken on purpose");
+                }
+                if (failFirstPart) {
+                    out.write(BLOB, start, length / 2);
+                    out.flush();
+                    Thread.sleep(1000);
+                    throw new IOException("Broken on purpose");
+                }
+                out.write(BLOB, start, length);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    protected HttpRequest blobRequest() {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + server.getAddress().getPort() + "/blob"))
+                          .GET()
+                          .build();
+    }
+
+    @Test
+    public void shouldParseContentRange() {
+        assertEquals(12345, ParallelRangeDownload.parseTotalLength("bytes 0-0/12345"));
+        assertEquals(-1, ParallelRangeDownload.parseTotalLength("bytes 0-0/*"));
+        assertEquals(-1, ParallelRangeDownload.parseTotalLength(null));
+
+        assertTrue(ParallelRangeDownload.isWholeBlob("bytes 0-12344/12345"));
+        assertFalse(ParallelRangeDownload.isWholeBlob("bytes 0-0/12345"));
+        assertFalse(ParallelRangeDownload.isWholeBlob("bytes 1-12344/12345"));
+        assertFalse(ParallelRangeDownload.isWholeBlob(null));
+    }
+
+    @Test
+    public void shouldReadSmallBlobFromTheFirstRequest() throws Exception {
+
+        // Too small to be downloaded in parts
+        ParallelRangeDownload download = new ParallelRangeDownload(4, BLOB.length + 1, 3, 60);
+        HttpResponse<byte[]> response = HttpClient.newHttpClient()
+                                                  .send(ParallelRangeDownload.withRangeFromStart(blobRequest()),
+                                                          download.firstRequestHandler(
+                                                                  HttpResponse.BodyHandlers.ofByteArray()));
+        assertEquals(206, response.statusCode());
+        assertArrayEquals(BLOB, response.body());
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void shouldNotReadBigBlobFromTheFirstRequest() throws Exception {
+
+        ParallelRangeDownload download = new ParallelRangeDownload(4, 1, 3, 60);
+        HttpResponse<byte[]> response = HttpClient.newHttpClient()
+                                                  .send(ParallelRangeDownload.withRangeFromStart(blobRequest()),
+                                                          download.firstRequestHandler(
+                                                                  HttpResponse.BodyHandlers.ofByteArray()));
+        assertNull(response.body());
+        long totalLength = ParallelRangeDownload.parseTotalLength(
+                response.headers().firstValue("Content-Range").orElse(null));
+        assertEquals(BLOB.length, totalLength);
+        assertTrue(download.accepts(totalLength));
+    }
+
+    @Test
+    public void shouldDownloadInPartsAndResume() throws Exception {
+
+        breakFirstPart.set(true);
+        ParallelRangeDownload download = new ParallelRangeDownload(4, 1, 3, 60);
+        Path file = download.download(HttpClient.newHttpClient(), blobRequest(), BLOB.length, null);
+        try {
+            assertArrayEquals(BLOB, Files.readAllBytes(file));
+            // 4 parts + 1 resumed
+            assertEquals(5, requests.get());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void shouldFailWhenRangesAreIgnored() throws Exception {
+
+        ignoreRanges = true;
+        ParallelRangeDownload download = new ParallelRangeDownload(4, 1, 3, 60);
+        try {
+            download.download(HttpClient.newHttpClient(), blobRequest(), BLOB.length, null);
+            fail("Ranges are not supported");
+        } catch (IOException e) {
+            // Expected, and not retried
+            assertTrue(requests.get() <= 4);
+        }
+    }
+
+    @Test
+    public void shouldAbortTheOtherPartsWhenOneFails() throws Exception {
+
+        failFirstPart = true;
+        ParallelRangeDownload download = new ParallelRangeDownload(4, 1, 3, 60);
+        try {
+            download.download(HttpClient.newHttpClient(), blobRequest(), BLOB.length, null);
+            fail("The first part is refused");
+        } catch (IOException e) {
+            // Expected
+        }
+        // Longer than the other parts: they would have been resumed
+        Thread.sleep(2000);
+        assertEquals(4, requests.get());
+    }
+
+}
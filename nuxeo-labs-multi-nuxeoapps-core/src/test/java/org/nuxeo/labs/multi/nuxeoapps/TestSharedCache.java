@@ -0,0 +1,150 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.authentication.NuxeoAppAuthenticationJWT;
+import org.nuxeo.labs.multi.nuxeoapps.cache.SharedCache;
+import org.nuxeo.labs.multi.nuxeoapps.cache.TinyLfuCache;
+import org.nuxeo.labs.multi.nuxeoapps.service.MultiNuxeoAppServiceImpl;
+import org.nuxeo.runtime.kv.KeyValueStore;
+import org.nuxeo.runtime.kv.MemKeyValueStore;
+
+public class TestSharedCache {
+
+    /**
+     * Enables the shared cache with an in-memory store, no KeyValueService needed
+     */
+    protected static class MemSharedCache extends SharedCache {
+
+        protected MemSharedCache(KeyValueStore store) {
+            super(store);
+        }
+
+        protected static void install() {
+            instance = new MemSharedCache(new MemKeyValueStore());
+        }
+    }
+
+    /**
+     * One node of the cluster: its own local caches, the shared one
+     */
+    protected static class CachingService extends MultiNuxeoAppServiceImpl {
+
+        protected CachingService() {
+            searchResultsCache = new TinyLfuCache<>("searchResults", 1024 * 1024, 16,
+                    (key, value) -> key.length() + value.length());
+        }
+
+        protected JSONObject search(AbstractNuxeoApp app, String nxql, AtomicInteger calls) {
+            return cachedSearch(app, "alice", nxql, false, () -> {
+                calls.incrementAndGet();
+                JSONObject result = new JSONObject();
+                result.put("entries", new JSONArray());
+                result.put(AbstractNuxeoApp.MULTI_NUXEO_APPS_PROPERTY_NAME, new JSONObject());
+                return result;
+            });
+        }
+
+        protected int localSize() {
+            return searchResultsCache.size();
+        }
+    }
+
+    protected static class SharedTokenJWT extends NuxeoAppAuthenticationJWT {
+
+        public SharedTokenJWT() {
+            super("http://localhost:8080/nuxeo", "Administrator", "clientId", "clientSecret", "secret");
+        }
+
+        // As another node would have saved it
+        protected void shareToken(String tokenUserId, String token, long ttlMillis) {
+            SharedCache.get().put(SHARED_CACHE_TOKEN_NAMESPACE, getSharedCacheKey(tokenUserId), token, ttlMillis);
+        }
+
+        protected Instant getLocalExpiration(String tokenUserId) {
+            TokenAndExpiration tokenAndExp = usersAndTokens.get(tokenUserId);
+            return tokenAndExp == null ? null : tokenAndExp.tokenExpiration;
+        }
+    }
+
+    @Before
+    public void enableSharedCache() {
+        MemSharedCache.install();
+    }
+
+    @After
+    public void disableSharedCache() {
+        SharedCache.stop();
+    }
+
+    @Test
+    public void shouldPutAndGetWithTtl() throws Exception {
+
+        SharedCache cache = SharedCache.get();
+        cache.put("search", "key", "value", 60000);
+
+        SharedCache.Entry entry = cache.get("search", "key");
+        assertEquals("value", entry.value);
+        assertTrue(entry.remainingMillis > 0 && entry.remainingMillis <= 60000);
+        assertNull(cache.get("token", "key"));
+
+        // Not stored
+        cache.put("search", "noTtl", "value", 0);
+        assertNull(cache.get("search", "noTtl"));
+
+        // The store keeps it for 1s (TTL in seconds), but it is expired
+        cache.put("search", "short", "value", 50);
+        Thread.sleep(100);
+        assertNull(cache.get("search", "short"));
+    }
+
+    @Test
+    public void shouldPutSharedTokenLocallyWithItsRemainingTtl() {
+
+        SharedTokenJWT auth = new SharedTokenJWT();
+        assertNull(auth.getToken("john"));
+
+        auth.shareToken("john", "token-john", 30000);
+        Instant before = Instant.now();
+        assertEquals("token-john", auth.getToken("john"));
+
+        // Expires with the shared one, not a full lifetime later
+        Instant expiration = auth.getLocalExpiration("john");
+        assertNotNull(expiration);
+        assertTrue(expiration.isAfter(before.plusSeconds(25)));
+        assertFalse(expiration.isAfter(Instant.now().plusSeconds(30)));
+    }
+
+    @Test
+    public void shouldServeSearchFromTheSharedTier() {
+
+        NuxeoApp app = new NuxeoApp("remote", "https://remote.example.com/nuxeo", "user", "pwd");
+        app.setSearchCacheTtl(60);
+        AtomicInteger calls = new AtomicInteger();
+
+        CachingService node1 = new CachingService();
+        node1.search(app, "SELECT * FROM Document", calls);
+        assertEquals(1, calls.get());
+
+        // Empty local cache
+        CachingService node2 = new CachingService();
+        JSONObject result = node2.search(app, "SELECT * FROM Document", calls);
+        assertEquals(1, calls.get());
+        assertTrue(result.getJSONObject(AbstractNuxeoApp.MULTI_NUXEO_APPS_PROPERTY_NAME).getBoolean("fromCache"));
+        // And now in the local cache
+        assertEquals(1, node2.localSize());
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Flow;
+
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.cache.SpillingBuffer;
+
+public class TestSpillingBuffer {
+
+    protected static final Flow.Subscription NO_OP_SUBSCRIPTION = new Flow.Subscription() {
+
+        @Override
+        public void request(long n) {
+            // Nothing
+        }
+
+        @Override
+        public void cancel() {
+            // Nothing
+        }
+    };
+
+    protected static void receive(SpillingBuffer buffer, byte[] body, int chunkSize) {
+
+        buffer.onSubscribe(NO_OP_SUBSCRIPTION);
+        for (int i = 0; i < body.length; i += chunkSize) {
+            buffer.onNext(List.of(ByteBuffer.wrap(body, i, Math.min(chunkSize, body.length - i))));
+        }
+        buffer.onComplete();
+    }
+
+    protected static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void shouldKeepSmallBodiesInMemory() {
+
+        // More than one pooled chunk
+        byte[] body = randomBytes(SpillingBuffer.CHUNK_SIZE * 2 + 10);
+        SpillingBuffer buffer = new SpillingBuffer(1024 * 1024, -1);
+        receive(buffer, body, 10000);
+
+        assertTrue(buffer.isInMemory());
+        assertNull(buffer.getFile());
+        assertArrayEquals(body, buffer.toByteArray());
+    }
+
+    @Test
+    public void shouldSpillBigBodies() throws Exception {
+
+        byte[] body = randomBytes(300 * 1024);
+
+        // Spilled while receiving
+        SpillingBuffer buffer = new SpillingBuffer(100 * 1024, -1);
+        receive(buffer, body, 7000);
+        assertFalse(buffer.isInMemory());
+        File file = buffer.getFile();
+        assertArrayEquals(body, Files.readAllBytes(file.toPath()));
+        buffer.release();
+        assertFalse(file.exists());
+
+        // Content-Length above the threshold: in the file from the start
+        buffer = new SpillingBuffer(100 * 1024, body.length);
+        receive(buffer, body, 7000);
+        assertFalse(buffer.isInMemory());
+        assertArrayEquals(body, Files.readAllBytes(buffer.getFile().toPath()));
+        buffer.release();
+    }
+
+}
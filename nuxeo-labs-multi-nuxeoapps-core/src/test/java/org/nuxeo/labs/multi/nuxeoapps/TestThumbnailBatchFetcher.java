@@ -0,0 +1,254 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.JSONBlob;
+import org.nuxeo.labs.multi.nuxeoapps.service.MultiNuxeoAppService;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.BoundedBodySubscriber;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.ThumbnailBatchFetcher;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class TestThumbnailBatchFetcher {
+
+    protected static final String REDIRECT = "{\"status\": 302, \"location\": \"https://s3.example.com/abc\"}";
+
+    // Bigger than the default maximum inlined size
+    protected static final int BIG_SIZE = 1024 * 1024;
+
+    protected final NuxeoApp app = new NuxeoApp("remote", "https://remote.example.com/nuxeo", "user", "pwd");
+
+    // Served by the local HttpServer
+    protected NuxeoApp localApp;
+
+    protected HttpServer server;
+
+    protected ExecutorService executor;
+
+    protected final AtomicInteger requests = new AtomicInteger();
+
+    // The remote paths looked up in the cache
+    protected final List<String> lookedUpPaths = new ArrayList<>();
+
+    // Returned for the lookups of originals, null if not cached
+    protected Blob cachedOriginal;
+
+    @Before
+    public void startServer() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/nuxeo/", exchange -> {
+            requests.incrementAndGet();
+            String path = exchange.getRequestURI().getPath();
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (path.startsWith("/nuxeo/small")) {
+                    exchange.sendResponseHeaders(200, 3);
+                    out.write(new byte[] { 1, 2, 3 });
+                } else if (path.startsWith("/nuxeo/big")) {
+                    exchange.sendResponseHeaders(200, BIG_SIZE);
+                    out.write(new byte[BIG_SIZE]);
+                } else if (path.startsWith("/nuxeo/chunked")) {
+                    // No Content-Length
+                    exchange.sendResponseHeaders(200, 0);
+                    for (int i = 0; i < BIG_SIZE / 1024; i++) {
+                        out.write(new byte[1024]);
+                    }
+                } else if (path.startsWith("/nuxeo/slow")) {
+                    Thread.sleep(2000);
+                    exchange.sendResponseHeaders(200, 3);
+                    out.write(new byte[] { 1, 2, 3 });
+                } else {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+            } catch (IOException | InterruptedException e) {
+                // Cancelled by the client
+            }
+        });
+        server.start();
+
+        localApp = new NuxeoApp("local", "http://localhost:" + server.getAddress().getPort() + "/nuxeo", "user",
+                "pwd");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    protected MultiNuxeoAppService newService() {
+
+        return (MultiNuxeoAppService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { MultiNuxeoAppService.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getNuxeoApp":
+                        return app.getAppName().equals(args[0]) ? app
+                                : localApp.getAppName().equals(args[0]) ? localApp : null;
+                    case "getCachedRemoteBlob":
+                        lookedUpPaths.add((String) args[2]);
+                        // Variants are looked up without the redirect info
+                        return Boolean.TRUE.equals(args[4]) ? cachedOriginal : null;
+                    case "canCacheBlob":
+                        return false;
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    protected static Blob hugeBlob() {
+
+        return (Blob) Proxy.newProxyInstance(TestThumbnailBatchFetcher.class.getClassLoader(),
+                new Class<?>[] { Blob.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getLength":
+                        return 10L * 1024 * 1024 * 1024;
+                    case "getMimeType":
+                        return "image/png";
+                    default:
+                        throw new AssertionError("The blob must not be read");
+                    }
+                });
+    }
+
+    @Test
+    public void shouldDecodePathAsTheServlet() throws Exception {
+
+        cachedOriginal = new JSONBlob(REDIRECT) {
+            @Override
+            public String getString() {
+                return REDIRECT;
+            }
+        };
+        String url = "/nuxeo/multiNxApps/remote/nxfile/default/abc/file:content/My%20File+1%C3%A9.png?changeToken=1-0";
+        JSONObject result = new ThumbnailBatchFetcher(newService()).fetch(List.of(url));
+
+        // As getPathInfo() returns it: "+" is not a space in a path. The query string is not decoded
+        assertEquals(List.of("/nxfile/default/abc/file:content/My File+1é.png?changeToken=1-0"), lookedUpPaths);
+        JSONObject oneResult = result.getJSONObject(url);
+        assertEquals(302, oneResult.getInt("status"));
+        assertEquals("https://s3.example.com/abc", oneResult.getString("location"));
+    }
+
+    @Test
+    public void shouldReturnErrorsPerUrl() throws Exception {
+
+        String notOurs = "https://example.com/nuxeo/nxfile/default/abc";
+        String noPath = "/nuxeo/multiNxApps/remote";
+        String unknownApp = "/nuxeo/multiNxApps/unknown/nxfile/default/abc";
+        JSONObject result = new ThumbnailBatchFetcher(newService()).fetch(List.of(notOurs, noPath, unknownApp));
+
+        assertEquals(400, result.getJSONObject(notOurs).getInt("status"));
+        assertEquals(400, result.getJSONObject(noPath).getInt("status"));
+        assertEquals(404, result.getJSONObject(unknownApp).getInt("status"));
+        assertEquals(0, lookedUpPaths.size());
+    }
+
+    @Test
+    public void shouldNotReadBigBlobs() throws Exception {
+
+        String small = "/nuxeo/multiNxApps/local/small";
+        String big = "/nuxeo/multiNxApps/local/big";
+        String chunked = "/nuxeo/multiNxApps/local/chunked";
+        JSONObject result = new ThumbnailBatchFetcher(newService()).fetch(List.of(small, big, chunked));
+
+        assertEquals(200, result.getJSONObject(small).getInt("status"));
+        assertEquals(3, result.getJSONObject(small).getInt("length"));
+        assertEquals(413, result.getJSONObject(big).getInt("status"));
+        assertEquals(413, result.getJSONObject(chunked).getInt("status"));
+    }
+
+    @Test
+    public void shouldNotReadBigCachedOriginals() throws Exception {
+
+        cachedOriginal = hugeBlob();
+        String url = "/nuxeo/multiNxApps/local/huge.png?nxAppsSize=64";
+        JSONObject result = new ThumbnailBatchFetcher(newService()).fetch(List.of(url));
+
+        assertEquals(413, result.getJSONObject(url).getInt("status"));
+        assertEquals(0, requests.get());
+    }
+
+    @Test
+    public void shouldStopTheLanesOnTimeout() throws Exception {
+
+        // One lane: the requests are sent one after the other, the first one times out
+        ThumbnailBatchFetcher fetcher = new ThumbnailBatchFetcher(newService(), 10, 256 * 1024, BIG_SIZE, 1, 1);
+        List<String> urls = List.of("/nuxeo/multiNxApps/local/slow1", "/nuxeo/multiNxApps/local/slow2",
+                "/nuxeo/multiNxApps/local/slow3");
+        JSONObject result = fetcher.fetch(urls);
+
+        for (String url : urls) {
+            assertEquals(504, result.getJSONObject(url).getInt("status"));
+        }
+        // Longer than a slow request: the next one would have been sent
+        Thread.sleep(3000);
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void shouldBoundTheBody() {
+
+        // Content-Length too big: nothing read
+        BoundedBodySubscriber subscriber = new BoundedBodySubscriber(10, 11);
+        TestSubscription subscription = new TestSubscription();
+        subscriber.onSubscribe(subscription);
+        assertTrue(subscription.cancelled.get());
+        assertNull(subscriber.getBody().toCompletableFuture().join());
+
+        // Unknown length: cancelled once past the maximum
+        subscriber = new BoundedBodySubscriber(10, -1);
+        subscription = new TestSubscription();
+        subscriber.onSubscribe(subscription);
+        subscriber.onNext(List.of(ByteBuffer.wrap(new byte[6])));
+        assertEquals(false, subscription.cancelled.get());
+        subscriber.onNext(List.of(ByteBuffer.wrap(new byte[6])));
+        assertTrue(subscription.cancelled.get());
+        assertNull(subscriber.getBody().toCompletableFuture().join());
+
+        subscriber = new BoundedBodySubscriber(10, -1);
+        subscriber.onSubscribe(new TestSubscription());
+        subscriber.onNext(List.of(ByteBuffer.wrap(new byte[] { 1, 2 }), ByteBuffer.wrap(new byte[] { 3 })));
+        subscriber.onComplete();
+        assertArrayEquals(new byte[] { 1, 2, 3 }, subscriber.getBody().toCompletableFuture().join());
+    }
+
+    protected static class TestSubscription implements Flow.Subscription {
+
+        protected final AtomicBoolean cancelled = new AtomicBoolean();
+
+        @Override
+        public void request(long n) {
+            // Nothing
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+        }
+    }
+
+}
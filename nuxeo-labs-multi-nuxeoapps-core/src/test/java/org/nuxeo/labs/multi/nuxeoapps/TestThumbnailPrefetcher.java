@@ -0,0 +1,83 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.impl.blob.JSONBlob;
+import org.nuxeo.labs.multi.nuxeoapps.authentication.NuxeoAppAuthenticationJWT;
+import org.nuxeo.labs.multi.nuxeoapps.cache.BlobDiskCache;
+import org.nuxeo.labs.multi.nuxeoapps.service.MultiNuxeoAppService;
+import org.nuxeo.labs.multi.nuxeoapps.service.ThumbnailPrefetcher;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.NuxeoAppServletUtils;
+
+public class TestThumbnailPrefetcher {
+
+    protected static final String THUMBNAIL_URL = "https://remote.example.com/nuxeo/api/v1/repo/default/id/abc/@rendition/thumbnail";
+
+    // The cache keys looked up by the prefetcher. Everything is "cached": nothing is downloaded
+    protected final List<String> lookedUpKeys = new ArrayList<>();
+
+    protected MultiNuxeoAppService newService() {
+
+        return (MultiNuxeoAppService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { MultiNuxeoAppService.class }, (proxy, method, args) -> {
+                    if ("getCachedRemoteBlob".equals(method.getName())) {
+                        NuxeoApp app = (NuxeoApp) args[0];
+                        lookedUpKeys.add(BlobDiskCache.buildKey(app.getAppName(), (String) args[1],
+                                (String) args[3], (String) args[2]));
+                        return new JSONBlob("{}");
+                    }
+                    return null;
+                });
+    }
+
+    protected static JSONObject searchResult() {
+
+        JSONObject thumbnail = new JSONObject();
+        thumbnail.put("url", THUMBNAIL_URL);
+        thumbnail.put("nxAppsUrl", "/nuxeo/multiNxApps/remote/api/v1/repo/default/id/abc/@rendition/thumbnail");
+        JSONObject doc = new JSONObject();
+        doc.put("contextParameters", new JSONObject().put("thumbnail", thumbnail));
+
+        return new JSONObject().put("entries", new JSONArray().put(doc));
+    }
+
+    protected static String servletKey(NuxeoApp app) {
+        // What NuxeoAppServlet looks up for the nxAppsUrl (no digest)
+        return BlobDiskCache.buildKey(app.getAppName(), NuxeoAppServletUtils.getBlobUser(app), null,
+                NuxeoAppServletUtils.removeUrlPrefix(THUMBNAIL_URL));
+    }
+
+    @Test
+    public void shouldPrefetchWithTheServletKeyForAFixedTokenUser() {
+
+        NuxeoApp app = new NuxeoApp("remote", "https://remote.example.com/nuxeo", "tokenUser", "clientId",
+                "clientSecret", "secret");
+        // The searches run as the current user, the blob requests as the token user
+        assertEquals("alice", app.getEffectiveUser("alice"));
+
+        new ThumbnailPrefetcher(newService(), 10, 1).prefetch(app, "alice", searchResult());
+
+        assertEquals(List.of(servletKey(app)), lookedUpKeys);
+        assertEquals("tokenUser", app.getBlobUser("alice"));
+    }
+
+    @Test
+    public void shouldPrefetchForTheCurrentUser() {
+
+        NuxeoApp app = new NuxeoApp("remote", "https://remote.example.com/nuxeo",
+                NuxeoAppAuthenticationJWT.TAG_CURRENT_USER, "clientId", "clientSecret", "secret");
+
+        new ThumbnailPrefetcher(newService(), 10, 1).prefetch(app, "alice", searchResult());
+
+        assertEquals(List.of(BlobDiskCache.buildKey("remote", "alice", null,
+                NuxeoAppServletUtils.removeUrlPrefix(THUMBNAIL_URL))), lookedUpKeys);
+    }
+
+}
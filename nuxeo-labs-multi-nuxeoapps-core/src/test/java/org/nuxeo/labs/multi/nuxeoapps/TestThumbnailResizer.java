@@ -0,0 +1,69 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.ThumbnailResizer;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.ThumbnailResizer.Variant;
+
+public class TestThumbnailResizer {
+
+    protected static byte[] createImage(int width, int height, String format) throws IOException {
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void shouldParseVariant() {
+
+        assertNull(Variant.fromQueryString("nxAppsDigest=123"));
+
+        Variant variant = Variant.fromQueryString("a=b&nxAppsSize=200&nxAppsFormat=PNG&nxAppsQuality=500");
+        assertEquals("200-png-100", variant.getId());
+
+        // Unknown format => default
+        variant = Variant.fromQueryString("nxAppsSize=100000&nxAppsFormat=unknown");
+        assertEquals(ThumbnailResizer.MAX_SIZE + "-jpeg-80", variant.getId());
+        assertEquals("photo.jpg", variant.renameFile("photo.png"));
+    }
+
+    @Test
+    public void shouldResizeAndReencode() throws IOException {
+
+        // Transparent PNG to JPEG
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String mimeType = ThumbnailResizer.resize(new ByteArrayInputStream(createImage(1600, 1200, "png")),
+                new Variant(100, "jpeg", 80), out);
+        assertEquals("image/jpeg", mimeType);
+
+        BufferedImage result = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(100, result.getWidth());
+        assertEquals(75, result.getHeight());
+    }
+
+    @Test
+    public void shouldNotResizeWhenNotNeeded() throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // Already small enough, same format
+        assertNull(ThumbnailResizer.resize(new ByteArrayInputStream(createImage(50, 40, "png")),
+                new Variant(100, "png", 80), out));
+        // Not an image
+        assertNull(ThumbnailResizer.resize(new ByteArrayInputStream("Not an image".getBytes()),
+                new Variant(100, "jpeg", 80), out));
+        assertEquals(0, out.size());
+    }
+
+}
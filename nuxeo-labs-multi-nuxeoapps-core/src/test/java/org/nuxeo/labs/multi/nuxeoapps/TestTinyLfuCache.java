@@ -0,0 +1,178 @@
+package org.nuxeo.labs.multi.nuxeoapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.cache.TinyLfuCache;
+
+public class TestTinyLfuCache {
+
+    protected static final long ONE_MINUTE = 60 * 1000;
+
+    protected TinyLfuCache<String, String> newCache(long maximumWeight) {
+        return new TinyLfuCache<>("test", maximumWeight, 1024, (key, value) -> value.length());
+    }
+
+    @Test
+    public void shouldGetWhatWasPut() {
+
+        TinyLfuCache<String, String> cache = newCache(1000);
+
+        cache.put("key1", "value1", ONE_MINUTE);
+        assertEquals("value1", cache.get("key1"));
+        assertNull(cache.get("key2"));
+
+        cache.put("key1", "value1-updated", ONE_MINUTE);
+        assertEquals("value1-updated", cache.get("key1"));
+        assertEquals(1, cache.size());
+
+        assertEquals("value1-updated", cache.remove("key1"));
+        assertNull(cache.get("key1"));
+    }
+
+    @Test
+    public void shouldExpire() throws Exception {
+
+        TinyLfuCache<String, String> cache = newCache(1000);
+
+        cache.put("key1", "value1", 50);
+        assertNotNull(cache.get("key1"));
+
+        Thread.sleep(100);
+        assertNull(cache.get("key1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldReturnStaleValues() throws Exception {
+
+        TinyLfuCache<String, String> cache = newCache(1000);
+
+        cache.put("key1", "value1", 50, ONE_MINUTE);
+        TinyLfuCache.Lookup<String> lookup = cache.getAllowStale("key1");
+        assertEquals("value1", lookup.value);
+        assertFalse(lookup.stale);
+
+        Thread.sleep(100);
+        // Expired => get() ignores it, getAllowStale() returns it
+        assertNull(cache.get("key1"));
+        lookup = cache.getAllowStale("key1");
+        assertEquals("value1", lookup.value);
+        assertTrue(lookup.stale);
+
+        // Refreshed
+        cache.put("key1", "value2", ONE_MINUTE, ONE_MINUTE);
+        assertEquals("value2", cache.get("key1"));
+    }
+
+    @Test
+    public void shouldStayUnderMaximumWeight() {
+
+        TinyLfuCache<String, String> cache = newCache(1000);
+
+        for (int i = 0; i < 500; i++) {
+            cache.put("key" + i, "0123456789", ONE_MINUTE);
+            assertTrue(cache.weightedSize() <= 1000);
+        }
+
+        // Bigger than the cache => not cached
+        cache.put("big", "x".repeat(2000), ONE_MINUTE);
+        assertNull(cache.get("big"));
+    }
+
+    @Test
+    public void shouldKeepFrequentlyUsedEntries() {
+
+        TinyLfuCache<String, String> cache = newCache(1000);
+
+        // 10 hot entries, used often
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 10; i++) {
+                String key = "hot" + i;
+                if (cache.get(key) == null) {
+                    cache.put(key, "0123456789", ONE_MINUTE);
+                }
+            }
+        }
+
+        // A scan of one-time entries must not flush them
+        for (int i = 0; i < 1000; i++) {
+            cache.put("scan" + i, "0123456789", ONE_MINUTE);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertNotNull("hot" + i + " was evicted", cache.get("hot" + i));
+        }
+    }
+
+    @Test
+    public void shouldCountAMissThenPutOnce() {
+
+        FrequencyCache cache = new FrequencyCache(1000);
+
+        // The usual pattern: get, miss, fetch, put
+        assertNull(cache.get("key1"));
+        cache.put("key1", "value1", ONE_MINUTE);
+        assertEquals(1, cache.frequency("key1"));
+
+        cache.get("key1");
+        assertEquals(2, cache.frequency("key1"));
+    }
+
+    @Test
+    public void shouldNotifyRemovalsOutsideTheLock() {
+
+        TinyLfuCache<String, String> cache = newCache(1000);
+        List<String> removed = new ArrayList<>();
+        cache.setRemovalListener((key, value) -> {
+            assertFalse(Thread.holdsLock(cache));
+            removed.add(value);
+        });
+
+        cache.put("key1", "value1", ONE_MINUTE);
+        cache.put("key1", "value2", ONE_MINUTE);
+        assertEquals(List.of("value1"), removed);
+
+        cache.remove("key1");
+        cache.put("key2", "value3", ONE_MINUTE);
+        cache.clear();
+        assertEquals(List.of("value1", "value2", "value3"), removed);
+    }
+
+    @Test
+    public void shouldHaveStatistics() {
+
+        TinyLfuCache<String, String> cache = newCache(1000);
+
+        cache.put("key1", "value1", ONE_MINUTE);
+        cache.get("key1");
+        cache.get("key1");
+        cache.get("key2");
+
+        JSONObject stats = cache.getStatistics();
+        assertEquals(2, stats.getLong("hits"));
+        assertEquals(1, stats.getLong("misses"));
+        assertEquals(1, stats.getInt("entries"));
+        assertEquals(6, stats.getLong("weightedSize"));
+    }
+
+    protected static class FrequencyCache extends TinyLfuCache<String, String> {
+
+        protected FrequencyCache(long maximumWeight) {
+            super("test", maximumWeight, 1024, (key, value) -> value.length());
+        }
+
+        protected int frequency(String key) {
+            return sketch.frequency(key);
+        }
+    }
+
+}
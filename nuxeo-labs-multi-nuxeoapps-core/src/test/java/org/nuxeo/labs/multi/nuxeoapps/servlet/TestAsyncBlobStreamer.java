@@ -0,0 +1,140 @@
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.net.http.HttpHeaders;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.servlet.AsyncContext;
+
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.NuxeoApp;
+import org.nuxeo.labs.multi.nuxeoapps.servlet.TestRemoteBlobRelay.RecordedResponse;
+
+public class TestAsyncBlobStreamer {
+
+    protected static final byte[] BODY = TestRemoteBlobRelay.BODY;
+
+    /**
+     * Publishes one chunk per request, then completes
+     */
+    protected static class ChunksPublisher implements Flow.Publisher<List<ByteBuffer>> {
+
+        protected final byte[][] chunks;
+
+        protected final AtomicBoolean cancelled = new AtomicBoolean();
+
+        protected ChunksPublisher(byte[]... chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super List<ByteBuffer>> subscriber) {
+
+            subscriber.onSubscribe(new Flow.Subscription() {
+
+                protected int next = 0;
+
+                @Override
+                public void request(long n) {
+                    if (cancelled.get()) {
+                        return;
+                    }
+                    if (next < chunks.length) {
+                        subscriber.onNext(List.of(ByteBuffer.wrap(chunks[next++])));
+                    } else {
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled.set(true);
+                }
+            });
+        }
+    }
+
+    protected static class StreamedBlob {
+
+        protected final RecordedResponse recorded = new RecordedResponse();
+
+        protected final AtomicInteger cachedBlobs = new AtomicInteger();
+
+        protected final AtomicBoolean completed = new AtomicBoolean();
+
+        protected final AsyncBlobStreamer streamer;
+
+        protected StreamedBlob(int status, HttpHeaders headers, ChunksPublisher body) {
+
+            AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { AsyncContext.class }, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                        case "getResponse":
+                            return recorded.response;
+                        case "complete":
+                            completed.set(true);
+                            return null;
+                        default:
+                            return null;
+                        }
+                    });
+            NuxeoApp app = new NuxeoApp("remote", "https://remote.example.com/nuxeo", "user", "pwd");
+            streamer = new AsyncBlobStreamer(asyncContext, TestRemoteBlobRelay.remoteRequest(app, cachedBlobs));
+            streamer.onRemoteResponse(TestRemoteBlobRelay.remoteResponse(status, headers, body), null);
+        }
+    }
+
+    @Test
+    public void shouldStreamAndCacheTheWholeBlob() {
+
+        StreamedBlob streamed = new StreamedBlob(200,
+                TestRemoteBlobRelay.headers("Content-Type", "image/png", "Content-Length", "6"),
+                new ChunksPublisher(new byte[] { 1, 2 }, new byte[] { 3, 4, 5 }, new byte[] { 6 }));
+
+        assertTrue(streamed.completed.get());
+        assertEquals(200, streamed.recorded.status);
+        assertArrayEquals(BODY, streamed.recorded.body.toByteArray());
+        assertEquals(1, streamed.cachedBlobs.get());
+        assertNull(streamed.streamer.cacheFile);
+    }
+
+    @Test
+    public void shouldNotCacheShortWrites() {
+
+        // The remote stream ends before Content-Length
+        StreamedBlob streamed = new StreamedBlob(200,
+                TestRemoteBlobRelay.headers("Content-Type", "image/png", "Content-Length", "10"),
+                new ChunksPublisher(new byte[] { 1, 2 }, new byte[] { 3, 4, 5, 6 }));
+
+        assertTrue(streamed.completed.get());
+        assertArrayEquals(BODY, streamed.recorded.body.toByteArray());
+        assertEquals(0, streamed.cachedBlobs.get());
+        // Deleted
+        assertNull(streamed.streamer.cacheFile);
+    }
+
+    @Test
+    public void shouldNotCacheRanges() {
+
+        StreamedBlob streamed = new StreamedBlob(206,
+                TestRemoteBlobRelay.headers("Content-Type", "image/png", "Content-Length", "6", "Content-Range",
+                        "bytes 0-5/100"),
+                new ChunksPublisher(BODY));
+
+        assertTrue(streamed.completed.get());
+        assertEquals(206, streamed.recorded.status);
+        assertEquals("bytes 0-5/100", streamed.recorded.headers.get("Content-Range"));
+        assertArrayEquals(BODY, streamed.recorded.body.toByteArray());
+        assertEquals(0, streamed.cachedBlobs.get());
+    }
+
+}
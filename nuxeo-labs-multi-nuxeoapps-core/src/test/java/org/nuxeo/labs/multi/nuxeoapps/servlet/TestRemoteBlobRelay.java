@@ -0,0 +1,327 @@
+package org.nuxeo.labs.multi.nuxeoapps.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSession;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.nuxeo.labs.multi.nuxeoapps.NuxeoApp;
+import org.nuxeo.labs.multi.nuxeoapps.service.MultiNuxeoAppService;
+
+public class TestRemoteBlobRelay {
+
+    protected static final byte[] BODY = { 1, 2, 3, 4, 5, 6 };
+
+    /**
+     * The servlet response: status, headers and body as set by the servlet
+     */
+    protected static class RecordedResponse {
+
+        protected int status = HttpServletResponse.SC_OK;
+
+        protected String error;
+
+        protected final Map<String, String> headers = new HashMap<>();
+
+        protected final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        protected boolean outputRequested = false;
+
+        protected WriteListener writeListener;
+
+        protected final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "setStatus":
+                        status = (int) args[0];
+                        return null;
+                    case "sendError":
+                        status = (int) args[0];
+                        error = args.length > 1 ? (String) args[1] : "";
+                        return null;
+                    case "setHeader":
+                        headers.put((String) args[0], (String) args[1]);
+                        return null;
+                    case "setContentType":
+                        headers.put("Content-Type", (String) args[0]);
+                        return null;
+                    case "containsHeader":
+                        return headers.containsKey(args[0]);
+                    case "getStatus":
+                        return status;
+                    case "isCommitted":
+                        return outputRequested;
+                    case "getOutputStream":
+                        outputRequested = true;
+                        return new RecordedOutputStream();
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        /**
+         * Always ready: the container calls back as soon as the listener is set
+         */
+        protected class RecordedOutputStream extends ServletOutputStream {
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                RecordedResponse.this.writeListener = writeListener;
+                try {
+                    writeListener.onWritePossible();
+                } catch (IOException e) {
+                    writeListener.onError(e);
+                }
+            }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                body.write(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * Counts the blobs put in the cache, any length can be cached
+     */
+    protected static MultiNuxeoAppService newService(AtomicInteger cachedBlobs) {
+
+        return (MultiNuxeoAppService) Proxy.newProxyInstance(TestRemoteBlobRelay.class.getClassLoader(),
+                new Class<?>[] { MultiNuxeoAppService.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "cacheRemoteBlob":
+                        cachedBlobs.incrementAndGet();
+                        return true;
+                    case "canCacheBlob":
+                        return (long) args[0] >= 0;
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    protected static HttpHeaders headers(String... namesAndValues) {
+
+        Map<String, List<String>> map = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            map.put(namesAndValues[i], List.of(namesAndValues[i + 1]));
+        }
+
+        return HttpHeaders.of(map, (name, value) -> true);
+    }
+
+    /**
+     * A remote response, with {@code body} already received
+     */
+    protected static <T> HttpResponse<T> remoteResponse(int status, HttpHeaders headers, T body) {
+
+        return new HttpResponse<T>() {
+
+            @Override
+            public int statusCode() {
+                return status;
+            }
+
+            @Override
+            public HttpRequest request() {
+                return HttpRequest.newBuilder(URI.create("https://remote.example.com/nuxeo/nxfile/default/abc"))
+                                  .build();
+            }
+
+            @Override
+            public Optional<HttpResponse<T>> previousResponse() {
+                return Optional.empty();
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return headers;
+            }
+
+            @Override
+            public T body() {
+                return body;
+            }
+
+            @Override
+            public Optional<SSLSession> sslSession() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI uri() {
+                return request().uri();
+            }
+
+            @Override
+            public HttpClient.Version version() {
+                return HttpClient.Version.HTTP_1_1;
+            }
+        };
+    }
+
+    protected static NuxeoAppServlet.RemoteBlobRequest remoteRequest(NuxeoApp app, AtomicInteger cachedBlobs) {
+        return new NuxeoAppServlet.RemoteBlobRequest(newService(cachedBlobs), app, "user", "/nxfile/default/abc",
+                "digest", Map.of(), null);
+    }
+
+    /**
+     * Returns {@code response} to {@code getBlobStream}
+     */
+    protected static NuxeoApp newApp(HttpResponse<InputStream> response) {
+
+        return new NuxeoApp("remote", "https://remote.example.com/nuxeo", "user", "pwd") {
+            @Override
+            public HttpResponse<InputStream> getBlobStream(String relativePath, Map<String, String> requestHeaders) {
+                return response;
+            }
+        };
+    }
+
+    @Test
+    public void shouldStreamAndCacheOnlyWholeBlobs() throws Exception {
+
+        AtomicInteger cachedBlobs = new AtomicInteger();
+        RecordedResponse recorded = new RecordedResponse();
+        HttpResponse<InputStream> response = remoteResponse(200,
+                headers("Content-Type", "image/png", "Content-Length", "6"), new ByteArrayInputStream(BODY));
+        new NuxeoAppServlet().streamRemoteBlob(remoteRequest(newApp(response), cachedBlobs), recorded.response,
+                true);
+
+        assertEquals(200, recorded.status);
+        assertArrayEquals(BODY, recorded.body.toByteArray());
+        assertEquals(1, cachedBlobs.get());
+
+        // The remote stream ends before Content-Length
+        recorded = new RecordedResponse();
+        response = remoteResponse(200, headers("Content-Type", "image/png", "Content-Length", "10"),
+                new ByteArrayInputStream(BODY));
+        new NuxeoAppServlet().streamRemoteBlob(remoteRequest(newApp(response), cachedBlobs), recorded.response,
+                true);
+
+        assertArrayEquals(BODY, recorded.body.toByteArray());
+        assertEquals(1, cachedBlobs.get());
+    }
+
+    @Test
+    public void shouldRelayPartialContent() throws Exception {
+
+        AtomicInteger cachedBlobs = new AtomicInteger();
+        RecordedResponse recorded = new RecordedResponse();
+        HttpResponse<InputStream> response = remoteResponse(206,
+                headers("Content-Type", "image/png", "Content-Length", "6", "Content-Range", "bytes 10-15/100",
+                        "Accept-Ranges", "bytes", "ETag", "\"abc\""),
+                new ByteArrayInputStream(BODY));
+
+        new NuxeoAppServlet().streamRemoteBlob(remoteRequest(newApp(response), cachedBlobs), recorded.response,
+                true);
+
+        assertEquals(206, recorded.status);
+        assertEquals("bytes 10-15/100", recorded.headers.get("Content-Range"));
+        assertEquals("bytes", recorded.headers.get("Accept-Ranges"));
+        assertEquals("\"abc\"", recorded.headers.get("ETag"));
+        assertEquals("6", recorded.headers.get("Content-Length"));
+        assertEquals("image/png", recorded.headers.get("Content-Type"));
+        assertArrayEquals(BODY, recorded.body.toByteArray());
+        // A part is not the blob
+        assertEquals(0, cachedBlobs.get());
+    }
+
+    @Test
+    public void shouldRelayRangeNotSatisfiable() throws Exception {
+
+        AtomicInteger cachedBlobs = new AtomicInteger();
+        RecordedResponse recorded = new RecordedResponse();
+
+        NuxeoAppServlet.RemoteBlobInfo info = NuxeoAppServlet.relayRemoteResponseHeaders(
+                remoteRequest(newApp(null), cachedBlobs), 416, headers("Content-Range", "bytes */100"),
+                recorded.response);
+
+        assertNull(info);
+        assertEquals(416, recorded.status);
+        assertNull(recorded.error);
+        assertEquals("bytes */100", recorded.headers.get("Content-Range"));
+        assertFalse(recorded.outputRequested);
+        assertEquals(0, cachedBlobs.get());
+    }
+
+    @Test
+    public void shouldOnlyRelayHeadersForHead() throws Exception {
+
+        AtomicInteger cachedBlobs = new AtomicInteger();
+        RecordedResponse recorded = new RecordedResponse();
+        AtomicBoolean read = new AtomicBoolean();
+        AtomicBoolean closed = new AtomicBoolean();
+        InputStream in = new ByteArrayInputStream(BODY) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                read.set(true);
+                return super.read(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        HttpResponse<InputStream> response = remoteResponse(200,
+                headers("Content-Type", "application/pdf", "Content-Length", "6", "Accept-Ranges", "bytes",
+                        "Content-Disposition", "attachment; filename=\"doc.pdf\""),
+                in);
+
+        new NuxeoAppServlet().streamRemoteBlob(remoteRequest(newApp(response), cachedBlobs), recorded.response,
+                false);
+
+        assertEquals(200, recorded.status);
+        assertEquals("6", recorded.headers.get("Content-Length"));
+        assertEquals("bytes", recorded.headers.get("Accept-Ranges"));
+        assertNotNull(recorded.headers.get("Content-Disposition"));
+        assertTrue(recorded.headers.get("Content-Disposition").contains("doc.pdf"));
+        // The remote download is aborted, nothing is sent nor cached
+        assertFalse(read.get());
+        assertTrue(closed.get());
+        assertFalse(recorded.outputRequested);
+        assertEquals(0, cachedBlobs.get());
+    }
+
+}